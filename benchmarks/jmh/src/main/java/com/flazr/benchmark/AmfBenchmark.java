@@ -0,0 +1,128 @@
+package com.flazr.benchmark;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.mina.common.ByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flazr.AmfObject;
+import com.flazr.AmfProperty;
+import com.flazr.AmfReader;
+import com.flazr.Header;
+import com.flazr.Invoke;
+import com.flazr.Packet;
+import com.flazr.RtmpSession;
+
+/**
+ * AMF0 encode and decode of the two payloads that matter at startup, the
+ * connect invoke (with the parameters RtmpSession sends) and an onMetaData
+ * notify as a typical encoder writes it
+ */
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AmfBenchmark {
+
+	private RtmpSession session;
+	private Map<String, Object> metaData;
+	private byte[] connect;
+	private byte[] onMetaData;
+
+	static Map<String, Object> metaData() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("duration", 634.567);
+		map.put("width", 1280.0);
+		map.put("height", 720.0);
+		map.put("videodatarate", 1872.0);
+		map.put("framerate", 25.0);
+		map.put("videocodecid", 7.0);
+		map.put("audiodatarate", 128.0);
+		map.put("audiosamplerate", 44100.0);
+		map.put("audiosamplesize", 16.0);
+		map.put("stereo", true);
+		map.put("audiocodecid", 10.0);
+		map.put("encoder", "Lavf52.87.1");
+		map.put("filesize", 158641742.0);
+		map.put("hasVideo", true);
+		map.put("hasAudio", true);
+		map.put("hasMetadata", true);
+		map.put("canSeekToEnd", true);
+		map.put("creationdate", "Mon Oct 12 10:26:40 2009");
+		return map;
+	}
+
+	private static byte[] bytes(ByteBuffer buf) {
+		buf.flip();
+		byte[] bytes = new byte[buf.remaining()];
+		buf.get(bytes);
+		return bytes;
+	}
+
+	@Setup
+	public void setup() {
+		session = new RtmpSession("rtmp://localhost/vod/mp4:sample1_150kbps.f4v", null);
+		ByteBuffer data = new Invoke("connect", 3, session.getConnectParams()).encode(session).getData();
+		data.position(data.limit());
+		connect = bytes(data);
+		metaData = metaData();
+		onMetaData = bytes(AmfProperty.encode("onMetaData", new AmfObject(metaData)));
+	}
+
+	/**
+	 * through Invoke, so after the first call from the cached template
+	 */
+	@Benchmark
+	public Packet encodeConnect() {
+		Packet packet = new Invoke("connect", 3, session.getConnectParams()).encode(session);
+		packet.getData().release();
+		return packet;
+	}
+
+	/**
+	 * the plain AMF0 encoding of the same invoke, no template
+	 */
+	@Benchmark
+	public ByteBuffer encodeConnectAmf() {
+		ByteBuffer buf = AmfProperty.encode("connect", 1.0, new AmfObject(session.getConnectParams()));
+		buf.release();
+		return buf;
+	}
+
+	@Benchmark
+	public Invoke decodeConnect() {
+		Packet packet = new Packet(new Header(Header.Type.LARGE, 3, Packet.Type.INVOKE), 0);
+		packet.setData(ByteBuffer.wrap(connect));
+		Invoke invoke = new Invoke();
+		invoke.decode(packet);
+		return invoke;
+	}
+
+	@Benchmark
+	public ByteBuffer encodeMetaData() {
+		ByteBuffer buf = AmfProperty.encode("onMetaData", new AmfObject(metaData));
+		buf.release();
+		return buf;
+	}
+
+	/**
+	 * the way RtmpDecoder reads a notify
+	 */
+	@Benchmark
+	public AmfObject decodeMetaData() {
+		ByteBuffer in = ByteBuffer.wrap(onMetaData);
+		new AmfReader(in).readString();
+		in.rewind();
+		AmfObject notify = new AmfObject();
+		notify.decode(in, false);
+		return notify;
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.flazr.benchmark;
+
+import java.net.SocketAddress;
+
+import org.apache.mina.common.IoFilter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoHandler;
+import org.apache.mina.common.IoService;
+import org.apache.mina.common.IoServiceConfig;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.IoSessionConfig;
+import org.apache.mina.common.IdleStatus;
+import org.apache.mina.common.TransportType;
+import org.apache.mina.common.support.BaseIoSession;
+
+/**
+ * just enough of an IoSession to run a filter outside of a connector, and a
+ * NextFilter that keeps the last message passed on
+ */
+public class BenchmarkIoSession extends BaseIoSession {
+
+	public static class LastMessage implements IoFilter.NextFilter {
+
+		private Object received;
+		private IoFilter.WriteRequest written;
+
+		public Object getReceived() {
+			return received;
+		}
+
+		public IoFilter.WriteRequest getWritten() {
+			return written;
+		}
+
+		public void messageReceived(IoSession session, Object message) {
+			received = message;
+		}
+
+		public void filterWrite(IoSession session, IoFilter.WriteRequest writeRequest) {
+			written = writeRequest;
+		}
+
+		public void sessionCreated(IoSession session) { }
+
+		public void sessionOpened(IoSession session) { }
+
+		public void sessionClosed(IoSession session) { }
+
+		public void sessionIdle(IoSession session, IdleStatus status) { }
+
+		public void exceptionCaught(IoSession session, Throwable cause) { }
+
+		public void messageSent(IoSession session, Object message) { }
+
+		public void filterClose(IoSession session) { }
+
+	}
+
+	public IoService getService() {
+		return null;
+	}
+
+	public IoServiceConfig getServiceConfig() {
+		return null;
+	}
+
+	public IoHandler getHandler() {
+		return null;
+	}
+
+	public IoSessionConfig getConfig() {
+		return null;
+	}
+
+	public IoFilterChain getFilterChain() {
+		return null;
+	}
+
+	public TransportType getTransportType() {
+		return TransportType.SOCKET;
+	}
+
+	public SocketAddress getRemoteAddress() {
+		return null;
+	}
+
+	public SocketAddress getLocalAddress() {
+		return null;
+	}
+
+	public SocketAddress getServiceAddress() {
+		return null;
+	}
+
+	protected void updateTrafficMask() { }
+
+}
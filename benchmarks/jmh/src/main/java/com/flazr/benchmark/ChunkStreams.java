@@ -0,0 +1,102 @@
+package com.flazr.benchmark;
+
+import org.apache.mina.common.ByteBuffer;
+
+import com.flazr.ChannelTable;
+import com.flazr.Header;
+import com.flazr.Packet;
+
+/**
+ * synthetic input for the benchmarks, a 2 Mbps stream (25 fps video with a
+ * keyframe every 2 seconds, 44 audio frames per second) interleaved on two
+ * channels the way a server would send it, and that stream chunked and
+ * header compressed exactly like RtmpEncoder does
+ */
+public class ChunkStreams {
+
+	public static final int AUDIO_CHANNEL = 4;
+	public static final int VIDEO_CHANNEL = 5;
+	public static final int STREAM_ID = 1;
+
+	public static final int FPS = 25;
+	public static final int AUDIO_FRAMES = 44;
+	public static final int AUDIO_SIZE = 128 * 1000 / 8 / AUDIO_FRAMES;
+	public static final int FRAME_SIZE = 1872 * 1000 / 8 / FPS;
+	public static final int KEYFRAME_SIZE = FRAME_SIZE * 10;
+	public static final int INTER_FRAME_SIZE = (FRAME_SIZE * FPS * 2 - KEYFRAME_SIZE) / (FPS * 2 - 1);
+
+	public static byte[] payload(int size, int first) {
+		byte[] bytes = new byte[size];
+		for(int i = 0; i < size; i++) {
+			bytes[i] = (byte) i;
+		}
+		bytes[0] = (byte) first;
+		return bytes;
+	}
+
+	/**
+	 * @param data written from position 0 to the limit
+	 */
+	public static Packet packet(int channelId, Packet.Type type, int time, ByteBuffer data) {
+		Header header = new Header(Header.Type.LARGE, channelId, type);
+		header.setTime(time);
+		header.setStreamId(STREAM_ID);
+		data.position(data.limit()); // the constructor flips
+		return new Packet(header, data);
+	}
+
+	/**
+	 * the messages of the given number of seconds of media, in time order
+	 */
+	public static Packet[] media(int seconds) {
+		final byte[] audio = payload(AUDIO_SIZE, 0xaf);
+		final byte[] keyframe = payload(KEYFRAME_SIZE, 0x17);
+		final byte[] interFrame = payload(INTER_FRAME_SIZE, 0x27);
+		Packet[] packets = new Packet[seconds * (FPS + AUDIO_FRAMES)];
+		int count = 0;
+		int frames = 0;
+		for(int second = 0; second < seconds; second++) {
+			int v = 0;
+			int a = 0;
+			while(v < FPS || a < AUDIO_FRAMES) {
+				final int videoTime = second * 1000 + v * 1000 / FPS;
+				final int audioTime = second * 1000 + a * 1000 / AUDIO_FRAMES;
+				if(a == AUDIO_FRAMES || (v < FPS && videoTime <= audioTime)) {
+					byte[] bytes = frames++ % (FPS * 2) == 0 ? keyframe : interFrame;
+					packets[count++] = packet(VIDEO_CHANNEL, Packet.Type.VIDEO_DATA, videoTime, ByteBuffer.wrap(bytes.clone()));
+					v++;
+				} else {
+					packets[count++] = packet(AUDIO_CHANNEL, Packet.Type.AUDIO_DATA, audioTime, ByteBuffer.wrap(audio.clone()));
+					a++;
+				}
+			}
+		}
+		return packets;
+	}
+
+	/**
+	 * compresses the headers and chunks the messages into one buffer, the
+	 * packets are used up
+	 */
+	public static ByteBuffer encode(Packet[] packets, int chunkSize) {
+		ChannelTable<Header> prevHeaders = new ChannelTable<Header>();
+		ByteBuffer out = ByteBuffer.allocate(1024 * 1024, false);
+		out.setAutoExpand(true);
+		for(Packet packet : packets) {
+			packet.getHeader().compress(prevHeaders);
+			ByteBuffer encoded = packet.encode(chunkSize);
+			out.put(encoded);
+			encoded.release();
+		}
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * the given number of seconds of media as the server sends it
+	 */
+	public static ByteBuffer chunkStream(int seconds, int chunkSize) {
+		return encode(media(seconds), chunkSize);
+	}
+
+}
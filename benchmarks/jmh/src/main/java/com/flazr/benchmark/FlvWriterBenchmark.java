@@ -0,0 +1,94 @@
+package com.flazr.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.common.ByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flazr.AbstractFlvWriter;
+import com.flazr.FlvWriter;
+import com.flazr.MappedFlvWriter;
+import com.flazr.Packet.Type;
+
+/**
+ * time to save a minute of the 2 Mbps stream (about 15 MB) to a file and
+ * close it, with a write per tag, with a write-behind buffer and memory
+ * mapped, on the default temp directory
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FlvWriterBenchmark {
+
+	public enum Output { PER_TAG, WRITE_BEHIND, MAPPED }
+
+	private static final int SECONDS = 60;
+
+	@Param({ "PER_TAG", "WRITE_BEHIND", "MAPPED" })
+	public Output output;
+
+	private File file;
+	private ByteBuffer audio;
+	private ByteBuffer keyframe;
+	private ByteBuffer interFrame;
+
+	@Setup
+	public void setup() throws IOException {
+		file = File.createTempFile("benchmark", ".flv");
+		audio = ByteBuffer.wrap(ChunkStreams.payload(ChunkStreams.AUDIO_SIZE, 0xaf));
+		keyframe = ByteBuffer.wrap(ChunkStreams.payload(ChunkStreams.KEYFRAME_SIZE, 0x17));
+		interFrame = ByteBuffer.wrap(ChunkStreams.payload(ChunkStreams.INTER_FRAME_SIZE, 0x27));
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	private AbstractFlvWriter newWriter() {
+		switch(output) {
+			case WRITE_BEHIND: return new FlvWriter(0, file.getPath(), 256 * 1024, 0);
+			case MAPPED: return new MappedFlvWriter(0, file.getPath());
+			default: return new FlvWriter(0, file.getPath());
+		}
+	}
+
+	@Benchmark
+	public long writeCapture() {
+		AbstractFlvWriter writer = newWriter();
+		final int fps = ChunkStreams.FPS;
+		final int audioFrames = ChunkStreams.AUDIO_FRAMES;
+		int frames = 0;
+		for(int second = 0; second < SECONDS; second++) {
+			final int time = second * 1000;
+			for(int i = 0; i < fps; i++) {
+				ByteBuffer video = frames++ % (fps * 2) == 0 ? keyframe : interFrame;
+				video.clear();
+				writer.write(Type.VIDEO_DATA, video, time + i * 1000 / fps);
+			}
+			for(int i = 0; i < audioFrames; i++) {
+				audio.clear();
+				writer.write(Type.AUDIO_DATA, audio, time + i * 1000 / audioFrames);
+			}
+		}
+		writer.close();
+		return file.length();
+	}
+
+}
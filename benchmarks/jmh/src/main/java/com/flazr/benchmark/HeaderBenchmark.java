@@ -0,0 +1,95 @@
+package com.flazr.benchmark;
+
+import org.apache.mina.common.ByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flazr.ChannelTable;
+import com.flazr.Header;
+import com.flazr.Packet;
+import com.flazr.RtmpSession;
+
+/**
+ * chunk header decode and encode for each header type, decoding the smaller
+ * types resolves against the previous header on the channel like it does
+ * for a live stream
+ */
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HeaderBenchmark {
+
+	private static Header header(Header.Type type) {
+		Header h = new Header(type, ChunkStreams.VIDEO_CHANNEL, Packet.Type.VIDEO_DATA);
+		h.setTime(40);
+		h.setSize(ChunkStreams.INTER_FRAME_SIZE);
+		h.setStreamId(ChunkStreams.STREAM_ID);
+		return h;
+	}
+
+	@State(Scope.Thread)
+	public static class Encoded {
+
+		@Param({ "LARGE", "MEDIUM", "SMALL", "TINY" })
+		public Header.Type headerType;
+
+		private RtmpSession session;
+		private ByteBuffer encoded;
+		private ByteBuffer out;
+		private Header header;
+
+		@Setup
+		public void setup() {
+			session = new RtmpSession();
+			ByteBuffer large = ByteBuffer.allocate(32);
+			header(Header.Type.LARGE).encode(large);
+			large.flip();
+			Header.decode(large, session); // so that there is a previous header on the channel
+			header = header(headerType);
+			encoded = ByteBuffer.allocate(32);
+			header.encode(encoded);
+			encoded.flip();
+			out = ByteBuffer.allocate(32);
+		}
+
+	}
+
+	@State(Scope.Thread)
+	public static class Compressing {
+
+		private final Header header = header(Header.Type.LARGE);
+		private final ChannelTable<Header> prevHeadersOut = new ChannelTable<Header>();
+		private int time;
+
+	}
+
+	@Benchmark
+	public Header decode(Encoded state) {
+		state.encoded.position(0);
+		return Header.decode(state.encoded, state.session);
+	}
+
+	@Benchmark
+	public int encode(Encoded state) {
+		state.out.clear();
+		state.header.encode(state.out);
+		return state.out.position();
+	}
+
+	/**
+	 * picking the header type for an outbound message, same size and delta
+	 * every time so this settles on TINY
+	 */
+	@Benchmark
+	public int compress(Compressing state) {
+		state.header.setTime(state.time += 40);
+		return state.header.compress(state.prevHeadersOut);
+	}
+
+}
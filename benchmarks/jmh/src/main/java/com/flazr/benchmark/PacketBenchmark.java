@@ -0,0 +1,81 @@
+package com.flazr.benchmark;
+
+import org.apache.mina.common.ByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.flazr.ChannelTable;
+import com.flazr.Header;
+import com.flazr.Packet;
+import com.flazr.RtmpSession;
+
+/**
+ * message decode (chunk reassembly) and encode (chunking) at several chunk
+ * sizes, one decode op is 10 seconds of the 2 Mbps stream from ChunkStreams
+ * (about 2.5 MB, 690 messages), one encode op is one video frame
+ */
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PacketBenchmark {
+
+	private static final int SECONDS = 10;
+
+	@Param({ "128", "1024", "4096", "65536" })
+	public int chunkSize;
+
+	private ByteBuffer stream;
+	private RtmpSession session;
+	private byte[] frame;
+	private ChannelTable<Header> prevHeadersOut;
+	private int time;
+
+	@Setup
+	public void setup() {
+		stream = ChunkStreams.chunkStream(SECONDS, chunkSize);
+		session = new RtmpSession();
+		session.setChunkSize(chunkSize);
+		frame = ChunkStreams.payload(ChunkStreams.INTER_FRAME_SIZE, 0x27);
+		prevHeadersOut = new ChannelTable<Header>();
+	}
+
+	@Benchmark
+	public int decode(Blackhole blackhole) {
+		final ByteBuffer in = stream;
+		in.position(0);
+		int messages = 0;
+		while(in.hasRemaining()) {
+			Packet packet = new Packet();
+			if(!packet.decode(in, session)) {
+				throw new IllegalStateException("chunk stream ended half way");
+			}
+			if(packet.isComplete()) {
+				blackhole.consume(packet.getData());
+				packet.release();
+				messages++;
+			}
+		}
+		return messages;
+	}
+
+	@Benchmark
+	public int encode(Blackhole blackhole) {
+		Packet packet = ChunkStreams.packet(ChunkStreams.VIDEO_CHANNEL, Packet.Type.VIDEO_DATA,
+				time += 40, ByteBuffer.wrap(frame));
+		packet.getHeader().compress(prevHeadersOut);
+		ByteBuffer out = packet.encode(chunkSize);
+		final int size = out.remaining();
+		blackhole.consume(out);
+		out.release();
+		return size;
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.flazr.benchmark;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flazr.Packet;
+import com.flazr.Rc4;
+import com.flazr.RtmpSession;
+import com.flazr.RtmpeIoFilter;
+
+/**
+ * the RTMPE filter on an encrypted session after the handshake, decrypting
+ * socket reads in place, and encrypting outbound buffers in place (what the
+ * encoder writes for every message) and via a copy (read only buffers)
+ */
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RtmpeFilterBenchmark {
+
+	@Param({ "1460", "8192", "65536" })
+	public int readSize;
+
+	private RtmpeIoFilter filter;
+	private BenchmarkIoSession ioSession;
+	private BenchmarkIoSession.LastMessage next;
+	private ByteBuffer buf;
+	private byte[] frame;
+	private ByteBuffer payload;
+
+	@Setup
+	public void setup() {
+		RtmpSession session = new RtmpSession("localhost", 1935, "vod", "sample", null, true);
+		session.setCipherIn(new Rc4("0123456789abcdef".getBytes()));
+		session.setCipherOut(new Rc4("fedcba9876543210".getBytes()));
+		session.setHandshakeComplete(true);
+		ioSession = new BenchmarkIoSession();
+		session.putInto(ioSession);
+		filter = new RtmpeIoFilter();
+		next = new BenchmarkIoSession.LastMessage();
+		buf = ByteBuffer.allocate(readSize, false);
+		frame = ChunkStreams.payload(readSize, 0x27);
+		payload = ByteBuffer.wrap(frame);
+	}
+
+	@Benchmark
+	public Object messageReceived() throws Exception {
+		buf.clear();
+		filter.messageReceived(next, ioSession, buf);
+		return next.getReceived();
+	}
+
+	@Benchmark
+	public Object filterWriteInPlace() throws Exception {
+		buf.clear();
+		filter.filterWrite(next, ioSession, new IoFilter.WriteRequest(buf));
+		return next.getWritten();
+	}
+
+	@Benchmark
+	public Object filterWriteMessage() throws Exception {
+		Packet packet = ChunkStreams.packet(ChunkStreams.VIDEO_CHANNEL, Packet.Type.VIDEO_DATA, 0, ByteBuffer.wrap(frame));
+		filter.filterWrite(next, ioSession, new IoFilter.WriteRequest(packet.encode(128)));
+		ByteBuffer encrypted = (ByteBuffer) next.getWritten().getMessage();
+		encrypted.release();
+		return encrypted;
+	}
+
+	@Benchmark
+	public Object filterWriteReadOnly() throws Exception {
+		payload.clear();
+		filter.filterWrite(next, ioSession, new IoFilter.WriteRequest(payload.asReadOnlyBuffer()));
+		ByteBuffer encrypted = (ByteBuffer) next.getWritten().getMessage();
+		encrypted.release();
+		return encrypted;
+	}
+
+}
@@ -0,0 +1,105 @@
+package com.flazr.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.apache.mina.common.ByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.flazr.Packet;
+
+/**
+ * encoding one message and writing it to a loopback socket, either as the
+ * single buffer Packet.encode() returns or as the chunk headers and payload
+ * slices of Packet.encodeSliced(), one write call per buffer the way the MINA
+ * socket processor writes one buffer per write request, which is what the
+ * encoder has to weigh against copying the payload (see
+ * Packet.isSliceWorthwhile)
+ */
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmarks.properties")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SocketWriteBenchmark {
+
+	@Param({ "4096", "65536", "1048576" })
+	public int size;
+
+	@Param({ "128", "4096", "65536" })
+	public int chunkSize;
+
+	private byte[] payload;
+	private ServerSocketChannel server;
+	private SocketChannel channel;
+	private Thread reader;
+
+	@Setup
+	public void setup() throws IOException {
+		payload = ChunkStreams.payload(size, 0x27);
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+		channel.socket().setTcpNoDelay(true);
+		final SocketChannel accepted = server.accept();
+		reader = new Thread(new Runnable() {
+			public void run() {
+				java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocateDirect(256 * 1024);
+				try {
+					while(accepted.read(buf) >= 0) {
+						buf.clear();
+					}
+				} catch(IOException e) {
+					// closed at tear down
+				}
+			}
+		}, "socket-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		channel.close();
+		reader.join();
+		server.close();
+	}
+
+	private Packet packet() {
+		return ChunkStreams.packet(ChunkStreams.VIDEO_CHANNEL, Packet.Type.VIDEO_DATA, 0, ByteBuffer.wrap(payload));
+	}
+
+	private int write(ByteBuffer buffer) throws IOException {
+		int calls = 0;
+		while(buffer.hasRemaining()) {
+			channel.write(buffer.buf());
+			calls++;
+		}
+		buffer.release();
+		return calls;
+	}
+
+	@Benchmark
+	public int coalesced() throws IOException {
+		return write(packet().encode(chunkSize));
+	}
+
+	@Benchmark
+	public int sliced() throws IOException {
+		int calls = 0;
+		for(ByteBuffer fragment : packet().encodeSliced(chunkSize)) {
+			calls += write(fragment);
+		}
+		return calls;
+	}
+
+}
@@ -1,12 +1,16 @@
 import com.flazr.*def host = 'localhost'def app = 'oflaDemo'def playParam = 'IronMan.flv'
 // example of performance testing of a flash server
 // a null filename will skip writing to a file, but stats will be logged
+// for ramp-up, a target concurrency and latency percentiles use com.flazr.LoadTester
+
+// all sessions share one connector and its I/O processor threads
+def factory = new RtmpClientFactory(RtmpClientFactory.DEFAULT_PROCESSOR_COUNT)
 
 for(i in 0..9) {
 
     def session = new RtmpSession(host, 1935, app, playParam, null)        
 
-    RtmpClient.connect session      
+    factory.connect session      
     
 }
 
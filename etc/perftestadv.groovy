@@ -1,5 +1,9 @@
 import com.flazr.*import org.apache.mina.common.ByteBuffer
 def url = "rtmpe://localhost/vod/mp4:sample1_150kbps.f4v"
+// rtmpe handshakes take their DH key pairs from a pool that is filled in the
+// background, so opening all the sessions at once does not queue up on key generation
+def keyPool = new DhKeyPool(10)
+
 // example of advanced performance testing of a flash server
 // implementing the OutputWriter interface allows you to write event
 // handlers for when the session gets closed, etc.
@@ -8,14 +12,17 @@ class LoggingWriter implements OutputWriter {
 
     def startTime = System.currentTimeMillis()        
 
+    def keyPool
+
     void close() { 
         def elapsedTime = System.currentTimeMillis() - startTime
         println '*** elapsed time: ' +  elapsedTime
+        println '*** key pool: ' + keyPool
     }
     
     void write(Packet packet) { }
     
-    void writeFlvData(ByteBuffer buffer) { }
+    void writeFlvData(Packet packet) { }
 
 }
 
@@ -25,7 +32,9 @@ for(i in 0..9) {
     
     session.playDuration = 10000        
     
-    session.outputWriter = new LoggingWriter()
+    session.dhKeyPool = keyPool
+    
+    session.outputWriter = new LoggingWriter(keyPool: keyPool)
 
     RtmpClient.connect session      
     
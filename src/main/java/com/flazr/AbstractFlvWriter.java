@@ -0,0 +1,475 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.mina.common.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flazr.Packet.Type;
+
+/**
+ * turns packets into FLV tags, sub classes decide how the bytes of each tag
+ * (11 byte tag header, payload, 4 byte previous tag size) reach the file
+ *
+ * if a metadata reserve is given, an onMetaData tag of that size is written
+ * right after the file header and the keyframes (times and file positions) are
+ * indexed as they pass, the onMetaData sent by the server is merged into the
+ * reserved tag instead of being written where it arrives, and on close the
+ * tag is overwritten in place with the duration, file size and keyframe index,
+ * padded to the reserved size, only if it does not fit any more the file is
+ * copied once behind a tag of the size needed
+ */
+public abstract class AbstractFlvWriter implements OutputWriter {
+	
+	private static final Logger logger = LoggerFactory.getLogger(AbstractFlvWriter.class);
+	
+	public static final int DEFAULT_METADATA_RESERVE = 64 * 1024; // 3600 keyframes
+	
+	private static final int FILE_HEADER_SIZE = 13;
+	private static final int PADDING_OVERHEAD = 12; // name, type and length of a short string
+	private static final List<String> WRITER_KEYS = Arrays.asList(
+			"duration", "filesize", "lastkeyframetimestamp", "keyframes", "padding");
+	private static final java.nio.ByteBuffer EMPTY = java.nio.ByteBuffer.allocate(0);
+	
+	private final java.nio.ByteBuffer tagHeader = java.nio.ByteBuffer.allocate(11);
+	private final java.nio.ByteBuffer tagSize = java.nio.ByteBuffer.allocate(4);
+	protected final WriterStatus status;
+	private final File file;
+	private final int metaDataReserve;
+	private final KeyframeIndex index;
+	private List<AmfProperty> serverMetaData = new ArrayList<AmfProperty>();
+	private int lastTime;
+	private long tagCount;
+	
+	protected AbstractFlvWriter(int seekTime, String fileName, int metaDataReserve) {
+		if(metaDataReserve > 0 && metaDataReserve < 64) {
+			throw new IllegalArgumentException("metadata reserve too small: " + metaDataReserve);
+		}
+		status = new WriterStatus(seekTime);
+		file = new File(fileName);
+		this.metaDataReserve = metaDataReserve;
+		index = metaDataReserve > 0 ? new KeyframeIndex() : null;
+	}
+	
+	/**
+	 * the 13 bytes every FLV file starts with
+	 */
+	protected static java.nio.ByteBuffer fileHeader() {
+		java.nio.ByteBuffer out = java.nio.ByteBuffer.allocate(FILE_HEADER_SIZE);
+		out.put((byte) 0x46); // F
+		out.put((byte) 0x4C); // L
+		out.put((byte) 0x56); // V
+		out.put((byte) 0x01); // version		
+		out.put((byte) 0x05); // flags: audio + video
+		out.putInt(0x09); // header size = 9
+		out.putInt(0); // previous tag size, here = 0
+		out.flip();
+		return out;
+	}
+	
+	protected File getFile() {
+		return file;
+	}
+	
+	/**
+	 * to be called by the sub class once the file is open
+	 */
+	protected void writeStart() {
+		writeTag(fileHeader(), EMPTY, EMPTY);
+		if(metaDataReserve > 0) {
+			writeTag(metaDataTag(metaData(false, 0, 0), metaDataReserve), EMPTY, EMPTY);
+		}
+	}
+	
+	/**
+	 * the buffers are only valid until this returns
+	 */
+	protected abstract void writeTag(java.nio.ByteBuffer header, java.nio.ByteBuffer payload, java.nio.ByteBuffer trailer);
+	
+	/**
+	 * @return the file offset the next tag will be written at
+	 */
+	protected abstract long getPosition();
+	
+	/**
+	 * overwrites bytes already written
+	 */
+	protected abstract void writeAt(long position, java.nio.ByteBuffer buffer);
+	
+	protected abstract void closeFile();
+	
+	public synchronized void write(Packet packet) {			
+		Header header = packet.getHeader();
+		int time = status.getChannelAbsoluteTime(header);
+		write(header.getPacketType(), packet.getData(), time);
+	}		
+	
+	/**
+	 * the tags of the aggregate are already in FLV format, only their
+	 * timestamps (and stream id) are re-written in place, and then the whole
+	 * message goes to the file in one piece, it is only split around an
+	 * onMetaData that goes into the reserved tag instead
+	 */
+	public synchronized void writeFlvData(Packet packet) {
+		final int messageTime = status.getChannelAbsoluteTime(packet.getHeader());
+		final java.nio.ByteBuffer buf = packet.getData().buf();
+		final int start = buf.position();
+		final int end = buf.limit();
+		int runStart = start;
+		int firstTagTime = -1;
+		int time = messageTime;
+		int offset = start;
+		while(offset + 11 <= end) {
+			final Type packetType = Type.parseByte(buf.get(offset));
+			final int size = getInt24(buf, offset + 1);
+			final int tagEnd = offset + 11 + size + 4;
+			if(tagEnd > end) {
+				logger.warn("aggregate message truncated, ignoring {} bytes", end - offset);
+				break;
+			}
+			final int timestamp = getInt24(buf, offset + 4) | (buf.get(offset + 7) & 0xff) << 24;
+			if(firstTagTime == -1) {
+				firstTagTime = timestamp;
+			}
+			time = WriterStatus.getAggregateTagTime(messageTime, firstTagTime, timestamp);
+			putInt24(buf, offset + 4, time);
+			buf.putInt(offset + 7, (time >>> 24) << 24); // extended timestamp, stream id always zero
+			buf.putInt(tagEnd - 4, size + 11); // previous tag size
+			if(index != null) {
+				final java.nio.ByteBuffer payload = slice(buf, offset + 11, offset + 11 + size);
+				if(packetType == Type.NOTIFY && mergeMetaData(ByteBuffer.wrap(payload))) {
+					writeRun(buf, runStart, offset);
+					runStart = tagEnd;
+				} else if(packetType == Type.VIDEO_DATA && isKeyframe(payload)) {
+					index.add(time, getPosition() + offset - runStart);
+				}
+			}
+			if(time > lastTime) {
+				lastTime = time;
+			}
+			tagCount++;
+			offset = tagEnd;
+		}
+		writeRun(buf, runStart, offset);
+		status.updateVideoChannelTime(time);
+	}
+	
+	private void writeRun(java.nio.ByteBuffer buf, int start, int end) {
+		if(end > start) {
+			writeTag(slice(buf, start, end), EMPTY, EMPTY);
+		}
+	}
+	
+	private static java.nio.ByteBuffer slice(java.nio.ByteBuffer buf, int start, int end) {
+		java.nio.ByteBuffer slice = buf.duplicate();
+		slice.limit(end);
+		slice.position(start);
+		return slice.slice();
+	}
+	
+	public synchronized void write(Type packetType, ByteBuffer data, final int time) {		
+		if(logger.isDebugEnabled()) {
+			logger.debug("writing FLV tag {} t{} {}", new Object[]{ packetType, time, data});
+		}				
+		final int size = data.limit();
+		if(index != null) {
+			if(packetType == Type.NOTIFY && mergeMetaData(data)) {
+				return;
+			}
+			if(packetType == Type.VIDEO_DATA && isKeyframe(data.buf())) {
+				index.add(time, getPosition());
+			}
+		}
+		if(time > lastTime) {
+			lastTime = time;
+		}
+		tagHeader.clear();
+		tagHeader.put(packetType.byteValue());
+		putInt24(tagHeader, size);
+		putInt24(tagHeader, time);
+		tagHeader.putInt((time >>> 24) << 24); // extended timestamp, stream id always zero
+		tagHeader.flip();
+		tagSize.clear();
+		tagSize.putInt(size + 11); // previous tag size
+		tagSize.flip();
+		tagCount++;
+		writeTag(tagHeader, data.buf(), tagSize);
+	}
+	
+	private static boolean isKeyframe(java.nio.ByteBuffer data) {
+		final int first = data.position();
+		if(data.remaining() < 2 || (data.get(first) & 0xf0) != 0x10) {
+			return false;
+		}
+		// AVC sequence headers are flagged as keyframes but cannot be seeked to
+		return (data.get(first) & 0x0f) != 7 || data.get(first + 1) != 0;
+	}
+	
+	/**
+	 * @return true if this is the onMetaData of the server and it now is in
+	 * the reserved tag
+	 */
+	private boolean mergeMetaData(ByteBuffer data) {
+		AmfObject notify = new AmfObject();
+		try {
+			notify.decode(data, false);
+		} finally {
+			data.position(0);
+		}
+		List<AmfProperty> properties = notify.getProperties();
+		if(properties.size() < 2 || !"onMetaData".equals(properties.get(0).getValue()) 
+				|| !(properties.get(1).getValue() instanceof AmfObject)) {
+			return false;
+		}
+		List<AmfProperty> merged = new ArrayList<AmfProperty>();
+		for(AmfProperty property : ((AmfObject) properties.get(1).getValue()).getProperties()) {
+			if(property.getName() == null || WRITER_KEYS.contains(property.getName())) {
+				continue;
+			}
+			try {
+				property.getEncodedSize();
+			} catch(RuntimeException e) { // e.g. undefined, cannot be written back
+				logger.debug("dropping metadata property: {}", property);
+				continue;
+			}
+			merged.add(property);
+		}
+		java.nio.ByteBuffer tag = metaDataTag(metaData(false, 0, 0, merged), metaDataReserve);
+		if(tag == null) {
+			logger.warn("server metadata larger than the reserved " + metaDataReserve + " bytes, writing it in the stream");
+			return false;
+		}
+		serverMetaData = merged;
+		writeAt(FILE_HEADER_SIZE, tag);
+		logger.info("server metadata written to the reserved tag");
+		return true;
+	}
+	
+	private AmfObject metaData(boolean complete, long positionDelta, long fileSize) {
+		return metaData(complete, positionDelta, fileSize, serverMetaData);
+	}
+	
+	private AmfObject metaData(boolean complete, long positionDelta, long fileSize, List<AmfProperty> properties) {
+		AmfObject map = new AmfObject();
+		for(AmfProperty property : properties) {
+			map.add(property);
+		}
+		if(!complete) {
+			return map;
+		}
+		map.put("duration", lastTime / 1000.0);
+		map.put("filesize", fileSize);
+		AmfObject times = new AmfObject();
+		AmfObject positions = new AmfObject();
+		for(int i = 0; i < index.size(); i++) {
+			times.put(index.getTime(i) / 1000.0);
+			positions.put(index.getPosition(i) + positionDelta);
+		}
+		if(index.size() > 0) {
+			map.put("lastkeyframetimestamp", index.getTime(index.size() - 1) / 1000.0);
+		}
+		AmfObject keyframes = new AmfObject();
+		keyframes.add(new AmfProperty("times", times, AmfProperty.Type.ARRAY));
+		keyframes.add(new AmfProperty("filepositions", positions, AmfProperty.Type.ARRAY));
+		map.put("keyframes", keyframes);
+		return map;
+	}
+	
+	private static int metaDataSize(AmfObject map) {
+		return 13 + 1 + 4 + map.getEncodedSize(); // "onMetaData", type, count, properties and end marker
+	}
+	
+	/**
+	 * @param dataSize the size to pad to or 0 for the exact size
+	 * @return the complete tag or null if the metadata does not fit
+	 */
+	private static java.nio.ByteBuffer metaDataTag(AmfObject map, int dataSize) {
+		final int exactSize = metaDataSize(map);
+		if(dataSize == 0) {
+			dataSize = exactSize;
+		}
+		final int gap = dataSize - exactSize;
+		if(gap != 0 && gap < PADDING_OVERHEAD) {
+			return null;
+		}
+		ByteBuffer out = ByteBuffer.allocate(11 + dataSize + 4);
+		out.put(Type.NOTIFY.byteValue());
+		Utils.writeInt24(out, dataSize);
+		Utils.writeInt24(out, 0);
+		out.putInt(0);
+		new AmfProperty("onMetaData").encode(out);
+		out.put(AmfProperty.Type.MAP.byteValue());
+		out.putInt(map.getProperties().size() + (gap == 0 ? 0 : 1));
+		for(AmfProperty property : map.getProperties()) {
+			property.encode(out);
+		}
+		if(gap > 0) { // written by hand to always be able to fill the gap exactly
+			out.putShort((short) 7);
+			out.put("padding".getBytes());
+			final int length;
+			if(gap - PADDING_OVERHEAD <= 0xFFFF) {
+				length = gap - PADDING_OVERHEAD;
+				out.put(AmfProperty.Type.STRING.byteValue());
+				out.putShort((short) length);
+			} else {
+				length = gap - PADDING_OVERHEAD - 2;
+				out.put(AmfProperty.Type.LONG_STRING.byteValue());
+				out.putInt(length);
+			}
+			for(int i = 0; i < length; i++) {
+				out.put((byte) ' ');
+			}
+		}
+		out.put((byte) 0x00);
+		out.put((byte) 0x00);
+		out.put((byte) 0x09); // end marker
+		out.putInt(dataSize + 11);
+		out.flip();
+		return out.buf();
+	}
+	
+	public synchronized void close() {
+		java.nio.ByteBuffer tag = null;
+		if(index != null) {
+			tag = metaDataTag(metaData(true, 0, getPosition()), metaDataReserve);
+			if(tag != null) {
+				writeAt(FILE_HEADER_SIZE, tag);
+			}
+		}
+		final long length = getPosition();
+		closeFile();
+		if(index != null) {
+			if(tag == null) {
+				rewrite(length);
+			}
+			logger.info("metadata written with " + index.size() + " keyframes, duration: " + lastTime / 1000.0);
+		}
+		status.logFinalVideoDuration();
+	}
+	
+	/**
+	 * one copy of the file (without going through the heap where possible)
+	 * behind a metadata tag of the size actually needed
+	 */
+	private void rewrite(long length) {
+		final long oldTagSize = 11 + metaDataReserve + 4;
+		final int newDataSize = metaDataSize(metaData(true, 0, 0)); // values do not change the size
+		final long delta = 11 + newDataSize + 4 - oldTagSize;
+		logger.info("metadata does not fit into the reserved " + metaDataReserve + " bytes, re-writing file with "
+				+ newDataSize + " bytes");
+		java.nio.ByteBuffer tag = metaDataTag(metaData(true, delta, length + delta), 0);
+		File temp = new File(file.getPath() + ".tmp");
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		try {
+			in = new FileInputStream(file);
+			out = new FileOutputStream(temp);
+			FileChannel source = in.getChannel();
+			FileChannel target = out.getChannel();
+			java.nio.ByteBuffer header = fileHeader();
+			while(header.hasRemaining()) {
+				target.write(header);
+			}
+			while(tag.hasRemaining()) {
+				target.write(tag);
+			}
+			long position = FILE_HEADER_SIZE + oldTagSize;
+			while(position < length) {
+				position += source.transferTo(position, length - position, target);
+			}
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			close(in);
+			close(out);
+		}
+		replace(file, temp);
+	}
+	
+	/**
+	 * the original is only removed once the copy has taken its place, a
+	 * rename over an existing file works everywhere except on windows, where
+	 * the original is moved aside first (and back if the copy can not follow)
+	 */
+	private static void replace(File file, File temp) {
+		if(temp.renameTo(file)) {
+			return;
+		}
+		File backup = new File(file.getPath() + ".bak");
+		if(!file.renameTo(backup)) {
+			throw new RuntimeException("failed to replace " + file + ", re-written copy left in " + temp);
+		}
+		if(!temp.renameTo(file)) {
+			if(!backup.renameTo(file)) {
+				throw new RuntimeException("failed to replace " + file + ", original in " + backup + ", re-written copy in " + temp);
+			}
+			throw new RuntimeException("failed to replace " + file + ", re-written copy left in " + temp);
+		}
+		if(!backup.delete()) {
+			logger.warn("failed to delete " + backup);
+		}
+	}
+	
+	private static void close(java.io.Closeable closeable) {
+		if(closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch(IOException e) {
+			logger.warn("failed to close: " + closeable, e);
+		}
+	}
+	
+	public long getTagCount() {
+		return tagCount;
+	}
+	
+	/**
+	 * null if no metadata is reserved
+	 */
+	public KeyframeIndex getKeyframeIndex() {
+		return index;
+	}
+	
+	private static void putInt24(java.nio.ByteBuffer out, int value) {
+		out.put((byte) (value >>> 16));
+		out.put((byte) (value >>> 8));
+		out.put((byte) value);
+	}
+	
+	private static void putInt24(java.nio.ByteBuffer out, int index, int value) {
+		out.put(index, (byte) (value >>> 16));
+		out.put(index + 1, (byte) (value >>> 8));
+		out.put(index + 2, (byte) value);
+	}
+	
+	private static int getInt24(java.nio.ByteBuffer in, int index) {
+		return (in.get(index) & 0xff) << 16 | (in.get(index + 1) & 0xff) << 8 | (in.get(index + 2) & 0xff);
+	}
+	
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.mina.common.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * decodes AMF3 values into the same AmfObject model used for AMF0, numbers
+ * (integer or double) become Double, objects and arrays become AmfObject, typed
+ * objects keep their class name, byte arrays become byte[]
+ *
+ * one instance holds the string, object and trait reference tables so it has to
+ * be used for exactly one AMF3 context, i.e. one avmplus-object-marker
+ */
+public class Amf3Reader {
+
+	private static final Logger logger = LoggerFactory.getLogger(Amf3Reader.class);
+
+	public static enum Type implements ByteToEnum.Convert {
+
+		UNDEFINED(0x00),
+		NULL(0x01),
+		FALSE(0x02),
+		TRUE(0x03),
+		INTEGER(0x04),
+		DOUBLE(0x05),
+		STRING(0x06),
+		XML_DOC(0x07),
+		DATE(0x08),
+		ARRAY(0x09),
+		OBJECT(0x0A),
+		XML(0x0B),
+		BYTE_ARRAY(0x0C);
+
+		private final byte value;
+
+		private Type(int value) {
+			this.value = (byte) value;
+		}
+
+		public byte byteValue() {
+			return value;
+		}
+
+		private static ByteToEnum<Type> converter = new ByteToEnum<Type>(Type.values());
+
+		public static Type parseByte(byte b) {
+			return converter.parseByte(b);
+		}
+
+		@Override
+		public String toString() {
+			return converter.toString(this);
+		}
+
+	}
+
+	private static class Traits {
+
+		private String className;
+		private boolean dynamic;
+		private boolean externalizable;
+		private String[] names;
+
+	}
+
+	private final ByteBuffer in;
+	private final List<String> strings = new ArrayList<String>();
+	private final List<Object> objects = new ArrayList<Object>();
+	private final List<Traits> traits = new ArrayList<Traits>();
+
+	public Amf3Reader(ByteBuffer in) {
+		this.in = in;
+	}
+
+	public int readU29() {
+		int value = 0;
+		for(int i = 0; i < 3; i++) {
+			final int b = in.get() & 0xFF;
+			if((b & 0x80) == 0) {
+				return (value << 7) | b;
+			}
+			value = (value << 7) | (b & 0x7F);
+		}
+		return (value << 8) | (in.get() & 0xFF);
+	}
+
+	public String readString() {
+		final int ref = readU29();
+		if((ref & 1) == 0) {
+			return strings.get(ref >> 1);
+		}
+		final int length = ref >> 1;
+		if(length == 0) {
+			return ""; // never sent by reference
+		}
+		final String value = Utils.readUtf8(in, length);
+		strings.add(value);
+		return value;
+	}
+
+	public Object readValue() {
+		final Type type = Type.parseByte(in.get());
+		switch(type) {
+			case UNDEFINED:
+			case NULL:
+				return null;
+			case FALSE:
+				return false;
+			case TRUE:
+				return true;
+			case INTEGER:
+				return (double) ((readU29() << 3) >> 3); // sign extend 29 bits
+			case DOUBLE:
+				return in.getDouble();
+			case STRING:
+				return readString();
+			case XML_DOC:
+			case XML:
+				return readXml();
+			case DATE:
+				return readDate();
+			case ARRAY:
+				return readArray();
+			case OBJECT:
+				return readObject();
+			case BYTE_ARRAY:
+				return readByteArray();
+			default:
+				throw new RuntimeException("unknown type: " + type);
+		}
+	}
+
+	private String readXml() {
+		final int ref = readU29();
+		if((ref & 1) == 0) {
+			return (String) objects.get(ref >> 1);
+		}
+		final String value = Utils.readUtf8(in, ref >> 1);
+		objects.add(value);
+		return value;
+	}
+
+	private Date readDate() {
+		final int ref = readU29();
+		if((ref & 1) == 0) {
+			return (Date) objects.get(ref >> 1);
+		}
+		final Date value = new Date((long) in.getDouble());
+		objects.add(value);
+		return value;
+	}
+
+	private byte[] readByteArray() {
+		final int ref = readU29();
+		if((ref & 1) == 0) {
+			return (byte[]) objects.get(ref >> 1);
+		}
+		final byte[] value = new byte[ref >> 1];
+		in.get(value);
+		objects.add(value);
+		return value;
+	}
+
+	private Object readArray() {
+		final int ref = readU29();
+		if((ref & 1) == 0) {
+			return objects.get(ref >> 1);
+		}
+		final int denseCount = ref >> 1;
+		final AmfObject array = new AmfObject();
+		objects.add(array);
+		while(true) {
+			final String key = readString();
+			if(key.length() == 0) {
+				break;
+			}
+			array.add(new AmfProperty(key, readValue()));
+		}
+		for(int i = 0; i < denseCount; i++) {
+			array.add(new AmfProperty(readValue()));
+		}
+		if(logger.isDebugEnabled()) {
+			logger.debug("decoded array: " + array);
+		}
+		return array;
+	}
+
+	private Traits readTraits(int ref) {
+		if((ref & 3) == 1) {
+			return traits.get(ref >> 2);
+		}
+		final Traits t = new Traits();
+		t.externalizable = (ref & 4) != 0;
+		t.dynamic = (ref & 8) != 0;
+		t.names = new String[ref >>> 4];
+		final String className = readString();
+		t.className = className.length() == 0 ? null : className;
+		for(int i = 0; i < t.names.length; i++) {
+			t.names[i] = readString();
+		}
+		traits.add(t);
+		return t;
+	}
+
+	private Object readObject() {
+		final int ref = readU29();
+		if((ref & 1) == 0) {
+			return objects.get(ref >> 1);
+		}
+		final Traits t = readTraits(ref);
+		if(t.externalizable) {
+			return readExternalizable(t.className);
+		}
+		final AmfObject object = new AmfObject();
+		object.setClassName(t.className);
+		objects.add(object);
+		for(String name : t.names) {
+			object.add(new AmfProperty(name, readValue()));
+		}
+		if(t.dynamic) {
+			while(true) {
+				final String key = readString();
+				if(key.length() == 0) {
+					break;
+				}
+				object.add(new AmfProperty(key, readValue()));
+			}
+		}
+		if(logger.isDebugEnabled()) {
+			logger.debug("decoded object: " + object);
+		}
+		return object;
+	}
+
+	/**
+	 * the only externalizable types we understand are the flex wrappers that
+	 * simply serialize a single value
+	 */
+	private Object readExternalizable(String className) {
+		if(!"flex.messaging.io.ArrayCollection".equals(className)
+				&& !"flex.messaging.io.ObjectProxy".equals(className)) {
+			throw new RuntimeException("unsupported externalizable class: " + className);
+		}
+		final int index = objects.size();
+		objects.add(null); // reserve the reference slot
+		final Object value = readValue();
+		objects.set(index, value);
+		return value;
+	}
+
+}
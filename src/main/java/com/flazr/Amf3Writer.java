@@ -0,0 +1,271 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.mina.common.ByteBuffer;
+
+import com.flazr.Amf3Reader.Type;
+
+/**
+ * encodes values from the AmfObject model as AMF3, repeated strings, objects
+ * and traits are sent as references into the tables built up so far
+ *
+ * an AmfObject with a class name becomes a typed object with sealed members
+ * (so that repeated instances only cost a trait reference), one with any unnamed
+ * properties becomes an array (unnamed properties are the dense part) and
+ * everything else becomes an anonymous dynamic object
+ *
+ * one instance per AMF3 context, i.e. one avmplus-object-marker, an instance
+ * created without a buffer writes nothing and just counts the bytes so that the
+ * exact size is known before allocating
+ */
+public class Amf3Writer {
+
+	private static final int INT_MIN = -(1 << 28);
+	private static final int INT_MAX = (1 << 28) - 1;
+
+	private static final String ANONYMOUS_TRAITS = "";
+
+	private final ByteBuffer out;
+	private int size;
+	private final Map<String, Integer> strings = new HashMap<String, Integer>();
+	private final Map<Object, Integer> objects = new IdentityHashMap<Object, Integer>();
+	private final Map<String, Integer> traits = new HashMap<String, Integer>();
+
+	public Amf3Writer(ByteBuffer out) {
+		this.out = out;
+	}
+	
+	/**
+	 * counting only
+	 */
+	public Amf3Writer() {
+		this(null);
+	}
+	
+	/**
+	 * @return the number of bytes written (or counted) so far
+	 */
+	public int getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return the encoded size of the value in a fresh AMF3 context
+	 */
+	public static int sizeOf(Object value) {
+		Amf3Writer counter = new Amf3Writer();
+		counter.writeValue(value);
+		return counter.size;
+	}
+	
+	private void put(byte b) {
+		size++;
+		if(out != null) {
+			out.put(b);
+		}
+	}
+	
+	private void putDouble(double d) {
+		size += 8;
+		if(out != null) {
+			out.putDouble(d);
+		}
+	}
+	
+	private void put(byte[] bytes) {
+		size += bytes.length;
+		if(out != null) {
+			out.put(bytes);
+		}
+	}
+
+	public void writeU29(int value) {
+		value &= 0x1FFFFFFF;
+		if(value < 0x80) {
+			put((byte) value);
+		} else if(value < 0x4000) {
+			put((byte) ((value >> 7) | 0x80));
+			put((byte) (value & 0x7F));
+		} else if(value < 0x200000) {
+			put((byte) ((value >> 14) | 0x80));
+			put((byte) (((value >> 7) & 0x7F) | 0x80));
+			put((byte) (value & 0x7F));
+		} else {
+			put((byte) ((value >> 22) | 0x80));
+			put((byte) (((value >> 15) & 0x7F) | 0x80));
+			put((byte) (((value >> 8) & 0x7F) | 0x80));
+			put((byte) (value & 0xFF));
+		}
+	}
+
+	public void writeString(String value) {
+		if(value.length() == 0) {
+			writeU29(1); // empty string is never sent by reference
+			return;
+		}
+		final Integer ref = strings.get(value);
+		if(ref != null) {
+			writeU29(ref << 1);
+			return;
+		}
+		strings.put(value, strings.size());
+		final int length = Utils.utf8Length(value);
+		writeU29((length << 1) | 1);
+		size += length;
+		if(out != null) {
+			Utils.writeUtf8(out, value);
+		}
+	}
+
+	/**
+	 * @return true if a reference was written, else the object is added to the
+	 * table and the caller has to write it out in full
+	 */
+	private boolean writeReference(Object value) {
+		final Integer ref = objects.get(value);
+		if(ref != null) {
+			writeU29(ref << 1);
+			return true;
+		}
+		objects.put(value, objects.size());
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void writeValue(Object value) {
+		if(value == null) {
+			put(Type.NULL.byteValue());
+		} else if(value instanceof Boolean) {
+			put(((Boolean) value) ? Type.TRUE.byteValue() : Type.FALSE.byteValue());
+		} else if(value instanceof Number) {
+			final double d = ((Number) value).doubleValue();
+			final int i = (int) d;
+			if(i == d && i >= INT_MIN && i <= INT_MAX) {
+				put(Type.INTEGER.byteValue());
+				writeU29(i);
+			} else {
+				put(Type.DOUBLE.byteValue());
+				putDouble(d);
+			}
+		} else if(value instanceof String) {
+			put(Type.STRING.byteValue());
+			writeString((String) value);
+		} else if(value instanceof Date) {
+			put(Type.DATE.byteValue());
+			if(!writeReference(value)) {
+				writeU29(1);
+				putDouble(((Date) value).getTime());
+			}
+		} else if(value instanceof byte[]) {
+			put(Type.BYTE_ARRAY.byteValue());
+			if(!writeReference(value)) {
+				final byte[] bytes = (byte[]) value;
+				writeU29((bytes.length << 1) | 1);
+				put(bytes);
+			}
+		} else if(value instanceof AmfObject) {
+			writeObject((AmfObject) value);
+		} else if(value instanceof Map) {
+			writeObject(new AmfObject((Map<String, Object>) value));
+		} else {
+			throw new RuntimeException("unexpected parameter type: " + value.getClass());
+		}
+	}
+
+	private void writeObject(AmfObject object) {
+		int denseCount = 0;
+		for(AmfProperty property : object.getProperties()) {
+			if(property.getName() == null) {
+				denseCount++;
+			}
+		}
+		if(object.getClassName() == null && denseCount > 0) {
+			writeArray(object, denseCount);
+			return;
+		}
+		if(object.getClassName() != null && denseCount > 0) { // sealed members need names
+			throw new RuntimeException("typed object with unnamed properties: " + object.getClassName());
+		}
+		put(Type.OBJECT.byteValue());
+		if(writeReference(object)) {
+			return;
+		}
+		if(object.getClassName() == null) { // anonymous dynamic object
+			writeTraits(ANONYMOUS_TRAITS, object, true);
+			for(AmfProperty property : object.getProperties()) {
+				writeString(property.getName());
+				writeValue(property.getValue());
+			}
+			writeString("");
+			return;
+		}
+		StringBuilder key = new StringBuilder(object.getClassName());
+		for(AmfProperty property : object.getProperties()) {
+			key.append(',').append(property.getName());
+		}
+		writeTraits(key.toString(), object, false);
+		for(AmfProperty property : object.getProperties()) {
+			writeValue(property.getValue());
+		}
+	}
+
+	private void writeTraits(String key, AmfObject object, boolean dynamic) {
+		final Integer ref = traits.get(key);
+		if(ref != null) {
+			writeU29((ref << 2) | 1);
+			return;
+		}
+		traits.put(key, traits.size());
+		if(dynamic) {
+			writeU29(0x0B); // inline object, inline traits, dynamic, no sealed members
+			writeString("");
+			return;
+		}
+		writeU29((object.getProperties().size() << 4) | 0x03);
+		writeString(object.getClassName());
+		for(AmfProperty property : object.getProperties()) {
+			writeString(property.getName());
+		}
+	}
+
+	private void writeArray(AmfObject array, int denseCount) {
+		put(Type.ARRAY.byteValue());
+		if(writeReference(array)) {
+			return;
+		}
+		writeU29((denseCount << 1) | 1);
+		for(AmfProperty property : array.getProperties()) {
+			if(property.getName() != null) {
+				writeString(property.getName());
+				writeValue(property.getValue());
+			}
+		}
+		writeString("");
+		for(AmfProperty property : array.getProperties()) {
+			if(property.getName() == null) {
+				writeValue(property.getValue());
+			}
+		}
+	}
+
+}
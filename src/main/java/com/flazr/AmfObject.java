@@ -24,11 +24,16 @@ import org.apache.mina.common.ByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * materialized view of AMF encoded values, for picking out just a few values
+ * from a message use {@link AmfReader} directly instead
+ */
 public class AmfObject {		
 	
 	private static final Logger logger = LoggerFactory.getLogger(AmfObject.class);
 	
 	private List<AmfProperty> properties = new ArrayList<AmfProperty>();
+	private String className;
 		
 	public AmfObject() { }
 	
@@ -41,6 +46,17 @@ public class AmfObject {
 	public List<AmfProperty> getProperties() {
 		return properties;
 	}
+	
+	/**
+	 * only AMF3 has typed objects, null for anonymous objects
+	 */
+	public String getClassName() {
+		return className;
+	}
+	
+	public void setClassName(String className) {
+		this.className = className;
+	}
 		
     public AmfProperty getProperty(String name) {
     	for(AmfProperty property : properties) {
@@ -67,17 +83,19 @@ public class AmfObject {
 		properties.add(property);    	
     }    
     
-    public void decode(ByteBuffer in, boolean decodeName) {    	    	
-    	while(in.remaining() >= 3) {
-    		byte[] endMarker = new byte[3];
-    		in.get(endMarker);
-    		if(endMarker[0] == 0x00 && endMarker[1] == 0x00 && endMarker[2] == 0x09) {    			
+    public void decode(ByteBuffer in, boolean decodeName) {
+    	decode(new AmfReader(in), decodeName);
+    }
+    
+    public void decode(AmfReader reader, boolean decodeName) {    	    	
+    	while(reader.hasNext()) {
+    		if(reader.isObjectEnd()) {
+    			reader.skipObjectEnd();
     			logger.debug("decoded end marker: [00 00 09]");    			
     			return;
     		}    		
-    		in.position(in.position() - 3);
     		AmfProperty property = new AmfProperty();
-    		property.decode(in, decodeName);
+    		property.decode(reader, decodeName);
     		add(property);
     	}
     }        
@@ -87,21 +105,37 @@ public class AmfObject {
 		for(Object value : values) {
 			o.put(value);
 		}
-		ByteBuffer body = ByteBuffer.allocate(1024);
+		ByteBuffer body = ByteBuffer.allocate(o.getEncodedSize());
 		o.encode(body);
 		return body;
     }
     
+    /**
+     * @return the exact number of bytes {@link #encode(ByteBuffer)} will write
+     */
+    public int getEncodedSize() {
+    	int size = 3; // end marker
+    	for(AmfProperty property : properties) {
+    		size += property.getEncodedSize();
+    	}
+    	return size;
+    }
+    
     public void encode(ByteBuffer out) {    	
     	for(AmfProperty property : properties) {
     		property.encode(out);
     	}
     	logger.debug("encoding end marker: [00 00 09]");
-    	out.put(new byte[]{0x00, 0x00, 0x09});    	
+    	out.put((byte) 0x00);
+    	out.put((byte) 0x00);
+    	out.put((byte) 0x09);
     }
     
 	@Override
 	public String toString() {
+		if(className != null) {
+			return className + properties.toString();
+		}
 		return properties.toString();
 	}    
 
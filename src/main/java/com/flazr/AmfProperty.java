@@ -16,7 +16,10 @@
 
 package com.flazr;
 
+import static com.flazr.AmfProperty.Type.AVMPLUS;
 import static com.flazr.AmfProperty.Type.BOOLEAN;
+import static com.flazr.AmfProperty.Type.DATE;
+import static com.flazr.AmfProperty.Type.LONG_STRING;
 import static com.flazr.AmfProperty.Type.MAP;
 import static com.flazr.AmfProperty.Type.NULL;
 import static com.flazr.AmfProperty.Type.NUMBER;
@@ -46,7 +49,8 @@ public class AmfProperty {
 	    ARRAY(0x0A),
 	    DATE(0x0B),
 	    LONG_STRING(0x0C),
-	    UNSUPPORTED(0x0D);
+	    UNSUPPORTED(0x0D),
+	    AVMPLUS(0x11); // switch to AMF3 for the next value
 	    
 	    private final byte value;
 	    
@@ -93,12 +97,13 @@ public class AmfProperty {
 		this(null, o);
 	}		
 		
+	@SuppressWarnings("unchecked")
 	public AmfProperty(String name, Object o) {
 		this.name = name;
 		value = o;			
 		if (o instanceof Number) {
 			type = NUMBER;
-			value = Double.parseDouble(o.toString()); // converts int also
+			value = ((Number) o).doubleValue(); // converts int also
 		} else if (o instanceof Boolean) {
 			type = BOOLEAN;
 		} else if(o instanceof String) {
@@ -109,22 +114,36 @@ public class AmfProperty {
 			type = NULL;			
 		} else if (o instanceof Map) {
 			type = MAP;
+			value = new AmfObject((Map<String, Object>) o);
+		} else if (o instanceof Date) {
+			type = DATE;
+		} else if (o instanceof byte[]) {
+			type = AVMPLUS; // only AMF3 has a byte array type
 		} else {
 			throw new RuntimeException("unexpected parameter type: " + o.getClass());
 		}		
 	}
 	
-	private static String decodeString(ByteBuffer in) {
-		short size = in.getShort();
-		byte[] bytes = new byte[size];
-		in.get(bytes);
-		return new String(bytes); // TODO UTF-8 ?	
+	/**
+	 * for forcing a specific type e.g. {@link Type#AVMPLUS} to have the value
+	 * encoded as AMF3
+	 */
+	public AmfProperty(String name, Object o, Type type) {
+		this(name, o);
+		this.type = type;
+	}
+	
+	public Type getType() {
+		return type;
+	}
+	
+	private static int stringSize(String value) {
+		return 2 + Utils.utf8Length(value);
 	}
 	
 	private static void encodeString(ByteBuffer out, String value) {		
-		byte[] bytes = value.getBytes(); // TODO UTF-8 ?		
-		out.putShort((short) bytes.length);
-		out.put(bytes);
+		out.putShort((short) Utils.utf8Length(value));
+		Utils.writeUtf8(out, value);
 	}	
 	
 	public static void encode(ByteBuffer out, Object ... values) {
@@ -134,107 +153,126 @@ public class AmfProperty {
 		}
 	}
 	
+	/**
+	 * @return a buffer of exactly the encoded size, positioned at the end
+	 */
 	public static ByteBuffer encode(Object ... values) {
-		ByteBuffer out = ByteBuffer.allocate(1024);
-		encode(out, values);
+		AmfProperty[] properties = new AmfProperty[values.length];
+		int size = 0;
+		for(int i = 0; i < values.length; i++) {
+			properties[i] = new AmfProperty(values[i]);
+			size += properties[i].getEncodedSize();
+		}
+		ByteBuffer out = ByteBuffer.allocate(size);
+		for(AmfProperty property : properties) {
+			property.encode(out);
+		}
 		return out;
 	}
 	
+	/**
+	 * @return the exact number of bytes {@link #encode(ByteBuffer)} will write
+	 */
+	public int getEncodedSize() {
+		int size = name == null ? 1 : stringSize(name) + 1;
+		switch(type) {
+			case NUMBER:
+				return size + 8;
+			case BOOLEAN:
+				return size + 1;
+			case STRING:
+				final int length = Utils.utf8Length((String) value);
+				return size + (length > 0xFFFF ? 4 : 2) + length;
+			case NULL:
+				return size;
+			case DATE:
+				return size + 10;
+			case AVMPLUS:
+				return size + Amf3Writer.sizeOf(value);
+			case OBJECT:
+				return size + ((AmfObject) value).getEncodedSize();
+			case MAP:
+				return size + 4 + ((AmfObject) value).getEncodedSize();
+			case ARRAY:
+				size += 4;
+				for(AmfProperty prop : ((AmfObject) value).getProperties()) {
+					size += prop.getEncodedSize();
+				}
+				return size;
+			default:
+				throw new RuntimeException("unexpected type: " + type);
+		}
+	}
+	
+	public void decode(ByteBuffer in, boolean decodeName) {
+		decode(new AmfReader(in), decodeName);
+	}
 	
-	public void decode(ByteBuffer in, boolean decodeName) {		
+	public void decode(AmfReader reader, boolean decodeName) {		
     	if(decodeName) {
-    		name = decodeString(in);    		
-    	}    	
-    	type = Type.parseByte(in.get());    	
-    	switch(type) {
-    		case NUMBER:
-    			value = in.getDouble();    			
-    			break;
-    		case BOOLEAN:
-    			value = (in.get() == 0x01) ? true : false;
-    			break;
-    		case STRING:
-    			value = decodeString(in);
-    			break;
-    		case OBJECT:
-    			logger.debug("decoding nested object");
-    			AmfObject object = new AmfObject();
-    			object.decode(in, true);
-    			value = object;
-    			break;
-    		case NULL:
-    			break;
-    		case ARRAY:   
-    			int arraySize = in.getInt();
-    			logger.debug("decoding nested array of size: " + arraySize);   
-    			AmfObject array = new AmfObject();
-    			for(int i = 0; i < arraySize; i++) {
-    				AmfProperty prop = new AmfProperty();
-    				prop.decode(in, false);
-    				array.add(prop);
-    			}    			    			
-    			value = array;
-    			break;
-    		case MAP:  
-    			in.getInt(); // will always be 0
-    			logger.debug("decoding map (name value pairs)");
-    			AmfObject map = new AmfObject();
-    			map.decode(in, true);
-    			value = map;
-    			break;
-    		case DATE:
-    			value = new Date((long) in.getDouble()); // TODO UTC offset
-    			in.getShort(); // consume the timezone
-    			break;
-    		case LONG_STRING:
-    			int stringSize = in.getInt();   			    			
-    			byte[] bytes = new byte[stringSize];
-    			in.get(bytes);
-    			value = new String(bytes); // TODO UTF-8 ?
-    			break;    			
-    		case UNDEFINED:    			
-    		case UNSUPPORTED:
-    			break;
-    		default:
-    			throw new RuntimeException("unknown type");    		
+    		name = reader.readKey();    		
     	}    	
-    	logger.debug("decoded property: " + toString());		
+    	type = reader.peekType();
+    	value = reader.readValue();
+    	if(logger.isDebugEnabled()) {
+    		logger.debug("decoded property: " + toString());
+    	}
 	}
 		
 	public void encode(ByteBuffer out) {
-		logger.debug("encoding property: " + toString());
+		if(logger.isDebugEnabled()) {
+			logger.debug("encoding property: " + toString());
+		}
 		if(name != null) {
 			encodeString(out, name);
 		}
-		out.put(type.value);
 		switch(type) {
 			case NUMBER:				
+				out.put(type.value);
 				out.putDouble((Double) value);
 				break;
 			case BOOLEAN:				
+				out.put(type.value);
 				int bool = (Boolean) value ? 0x01 : 0x00;
 				out.put((byte) bool);
 				break;
 			case STRING:				
-				encodeString(out, (String) value);
+				final String string = (String) value;
+				final int length = Utils.utf8Length(string);
+				if(length > 0xFFFF) {
+					out.put(LONG_STRING.value);
+					out.putInt(length);
+				} else {
+					out.put(type.value);
+					out.putShort((short) length);
+				}
+				Utils.writeUtf8(out, string);
 				break;
 			case NULL:
+				out.put(type.value);
+				break;
+			case DATE:
+				out.put(type.value);
+				out.putDouble(((Date) value).getTime());
+				out.putShort((short) 0); // timezone
+				break;
+			case AVMPLUS:
+				out.put(type.value);
+				new Amf3Writer(out).writeValue(value);
 				break;
 			case OBJECT:
-				logger.debug("encoding nested object");
+				out.put(type.value);
 				AmfObject object = (AmfObject) value;
 				object.encode(out);		    			    					
 				break;
 			case MAP:
-				logger.debug("encoding nested map");				
-				out.putInt(0);	
+				out.put(type.value);
 				AmfObject map = (AmfObject) value;
-				for(AmfProperty prop : map.getProperties()) {
-					prop.encode(out);
-				}
+				out.putInt(map.getProperties().size());	
+				map.encode(out); // properties and end marker
 				break;
 			case ARRAY:
-				logger.debug("encoding nested array");
+				out.put(type.value);
 				AmfObject array = (AmfObject) value;
 				out.putInt(array.getProperties().size());	
 				for(AmfProperty prop : array.getProperties()) {
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.util.Date;
+
+import org.apache.mina.common.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flazr.AmfProperty.Type;
+
+/**
+ * pull style (cursor) reader over AMF0 encoded bytes, lets the decoder pick out
+ * the few values it needs e.g. the method name, transaction id or a single named
+ * property without materializing AmfObject / AmfProperty instances for the rest,
+ * AmfObject and AmfProperty decoding is built on top of this
+ */
+public class AmfReader {
+
+	private static final Logger logger = LoggerFactory.getLogger(AmfReader.class);
+
+	private static final int KEY_CACHE_SIZE = 256; // power of two
+	private static final int KEY_CACHE_MAX_LENGTH = 32;
+
+	/**
+	 * process wide cache of decoded property names, so that keys like "code" and
+	 * "level" that turn up in every status message are not allocated again and again,
+	 * unsynchronized on purpose, a lost update just means a cache miss
+	 */
+	private static final String[] keyCache = new String[KEY_CACHE_SIZE];
+
+	private final ByteBuffer in;
+
+	public AmfReader(ByteBuffer in) {
+		this.in = in;
+	}
+
+	public ByteBuffer getBuffer() {
+		return in;
+	}
+
+	public boolean hasNext() {
+		return in.hasRemaining();
+	}
+
+	public boolean isObjectEnd() {
+		final int position = in.position();
+		return in.remaining() >= 3 && in.get(position) == 0x00
+			&& in.get(position + 1) == 0x00 && in.get(position + 2) == 0x09;
+	}
+
+	public void skipObjectEnd() {
+		in.skip(3);
+	}
+
+	public Type peekType() {
+		return Type.parseByte(in.get(in.position()));
+	}
+
+	public Type readType() {
+		return Type.parseByte(in.get());
+	}
+
+	private void expect(Type expected, Type actual) {
+		if(actual != expected) {
+			throw new RuntimeException("expected " + expected + " but was: " + actual);
+		}
+	}
+
+	public double readNumber() {
+		expect(Type.NUMBER, readType());
+		return in.getDouble();
+	}
+
+	public boolean readBoolean() {
+		expect(Type.BOOLEAN, readType());
+		return in.get() == 0x01;
+	}
+
+	/**
+	 * @return the string value, or null if the value is AMF null
+	 */
+	public String readString() {
+		final Type type = readType();
+		switch(type) {
+			case STRING:
+				return readUtf8(in.getUnsignedShort());
+			case LONG_STRING:
+				return readUtf8(in.getInt());
+			case NULL:
+				return null;
+			default:
+				throw new RuntimeException("expected string but was: " + type);
+		}
+	}
+
+	/**
+	 * reads an object property name, short ASCII names are served from a cache
+	 */
+	public String readKey() {
+		final int length = in.getUnsignedShort();
+		if(length > KEY_CACHE_MAX_LENGTH) {
+			return readUtf8(length);
+		}
+		final int position = in.position();
+		int hash = length;
+		for(int i = 0; i < length; i++) {
+			final byte b = in.get(position + i);
+			if(b < 0) { // not ASCII
+				return readUtf8(length);
+			}
+			hash = 31 * hash + b;
+		}
+		final int index = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+		final String cached = keyCache[index];
+		if(cached != null && matches(cached, position, length)) {
+			in.skip(length);
+			return cached;
+		}
+		final String key = readUtf8(length);
+		keyCache[index] = key;
+		return key;
+	}
+
+	private boolean matches(String s, int position, int length) {
+		if(s.length() != length) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if(s.charAt(i) != in.get(position + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String readUtf8(int length) {
+		return Utils.readUtf8(in, length);
+	}
+
+	/**
+	 * to be called when positioned at the start of the properties of an object or
+	 * map, skips over properties until the one with the given name is found
+	 *
+	 * @return true if found, the reader is then positioned at the property value
+	 * otherwise the reader is positioned after the end of the object
+	 */
+	public boolean findProperty(String name) {
+		while(in.hasRemaining()) {
+			if(isObjectEnd()) {
+				skipObjectEnd();
+				return false;
+			}
+			final int length = in.getUnsignedShort();
+			final boolean found = matches(name, in.position(), length);
+			in.skip(length);
+			if(found) {
+				return true;
+			}
+			skipValue();
+		}
+		return false;
+	}
+
+	/**
+	 * reads an object or map value and returns the string value of the named
+	 * property without materializing the rest of the object
+	 *
+	 * @return the property value or null if not found or not a string
+	 */
+	public String readStringProperty(String name) {
+		final Type type = readType();
+		switch(type) {
+			case OBJECT:
+				break;
+			case MAP:
+				in.getInt(); // count, not reliable
+				break;
+			case NULL:
+			case UNDEFINED:
+				return null;
+			case AVMPLUS:
+				Object value = new Amf3Reader(in).readValue();
+				if(!(value instanceof AmfObject)) {
+					return null;
+				}
+				AmfProperty property = ((AmfObject) value).getProperty(name);
+				if(property == null || !(property.getValue() instanceof String)) {
+					return null;
+				}
+				return (String) property.getValue();
+			default:
+				throw new RuntimeException("expected object but was: " + type);
+		}
+		if(!findProperty(name)) {
+			return null;
+		}
+		final Type valueType = peekType();
+		if(valueType != Type.STRING && valueType != Type.LONG_STRING) {
+			skipValue();
+			return null;
+		}
+		return readString();
+	}
+
+	public void skipValue() {
+		final Type type = readType();
+		switch(type) {
+			case NUMBER:
+				in.skip(8);
+				break;
+			case BOOLEAN:
+				in.skip(1);
+				break;
+			case STRING:
+				in.skip(in.getUnsignedShort());
+				break;
+			case LONG_STRING:
+				in.skip(in.getInt());
+				break;
+			case MAP:
+				in.getInt();
+				skipProperties();
+				break;
+			case OBJECT:
+				skipProperties();
+				break;
+			case ARRAY:
+				final int arraySize = in.getInt();
+				for(int i = 0; i < arraySize; i++) {
+					skipValue();
+				}
+				break;
+			case DATE:
+				in.skip(10);
+				break;
+			case AVMPLUS: // AMF3 has to be decoded to know where it ends
+				new Amf3Reader(in).readValue();
+				break;
+			case NULL:
+			case UNDEFINED:
+			case UNSUPPORTED:
+				break;
+			default:
+				throw new RuntimeException("unknown type: " + type);
+		}
+	}
+
+	private void skipProperties() {
+		while(in.hasRemaining()) {
+			if(isObjectEnd()) {
+				skipObjectEnd();
+				return;
+			}
+			in.skip(in.getUnsignedShort());
+			skipValue();
+		}
+	}
+
+	/**
+	 * materializes the next value, nested objects, maps and arrays become AmfObject
+	 */
+	public Object readValue() {
+		final Type type = readType();
+		switch(type) {
+    		case NUMBER:
+    			return in.getDouble();
+    		case BOOLEAN:
+    			return in.get() == 0x01;
+    		case STRING:
+    			return readUtf8(in.getUnsignedShort());
+    		case OBJECT:
+    			logger.debug("decoding nested object");
+    			AmfObject object = new AmfObject();
+    			object.decode(this, true);
+    			return object;
+    		case NULL:
+    			return null;
+    		case ARRAY:
+    			final int arraySize = in.getInt();
+    			logger.debug("decoding nested array of size: " + arraySize);
+    			AmfObject array = new AmfObject();
+    			for(int i = 0; i < arraySize; i++) {
+    				AmfProperty prop = new AmfProperty();
+    				prop.decode(this, false);
+    				array.add(prop);
+    			}
+    			return array;
+    		case MAP:
+    			in.getInt(); // will always be 0
+    			logger.debug("decoding map (name value pairs)");
+    			AmfObject map = new AmfObject();
+    			map.decode(this, true);
+    			return map;
+    		case DATE:
+    			Date date = new Date((long) in.getDouble()); // TODO UTC offset
+    			in.getShort(); // consume the timezone
+    			return date;
+    		case LONG_STRING:
+    			return readUtf8(in.getInt());
+    		case AVMPLUS:
+    			logger.debug("switching to AMF3");
+    			return new Amf3Reader(in).readValue();
+    		case UNDEFINED:
+    		case UNSUPPORTED:
+    			return null;
+    		default:
+    			throw new RuntimeException("unknown type: " + type);
+		}
+	}
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.common.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * moves the actual writing off the thread that decodes the stream, packets are
+ * copied onto a bounded per session queue and a small pool of disk threads
+ * shared by all sessions drains the queues into the wrapped writer, in order
+ * and at most one thread per session at a time
+ *
+ * when the queue reaches the high-water mark reading from the socket is
+ * suspended via the DecoderOutput (if it is a ReadThrottle) and resumed once
+ * the disk has caught up to the low-water mark, if the queue is full anyway
+ * (the rest of what was already read is still being decoded) the decoding
+ * thread waits
+ */
+public class AsyncOutputWriter implements OutputWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(AsyncOutputWriter.class);
+
+	private static final int DISK_THREADS = 2;
+
+	private static final ExecutorService shared = Executors.newFixedThreadPool(DISK_THREADS, new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "disk-writer-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static class Entry {
+
+		private final Packet packet;
+		private final boolean flvData;
+		private final long queuedNanos;
+
+		public Entry(Packet packet, boolean flvData) {
+			this.packet = packet;
+			this.flvData = flvData;
+			queuedNanos = System.nanoTime();
+		}
+
+	}
+
+	private final OutputWriter writer;
+	private final RtmpSession session;
+	private final Executor executor;
+	private final BlockingQueue<Entry> queue;
+	private final int highWater;
+	private final int lowWater;
+	private final AtomicBoolean draining = new AtomicBoolean();
+	private final CountDownLatch closed = new CountDownLatch(1);
+	private volatile boolean closing;
+	private final Object readLock = new Object(); // so that suspend and resume calls are not re-ordered
+	private boolean suspended;
+	private volatile boolean failed;
+
+	private volatile int maxDepth;
+	private volatile long written;
+	private volatile long totalLatencyNanos;
+	private volatile long maxLatencyNanos;
+	private volatile int suspendCount;
+
+	public AsyncOutputWriter(OutputWriter writer, RtmpSession session, int capacity) {
+		this(writer, session, capacity, shared);
+	}
+
+	public AsyncOutputWriter(OutputWriter writer, RtmpSession session, int capacity, Executor executor) {
+		this.writer = writer;
+		this.session = session;
+		this.executor = executor;
+		queue = new ArrayBlockingQueue<Entry>(capacity);
+		highWater = Math.max(1, capacity * 3 / 4);
+		lowWater = capacity / 4;
+		logger.info("async writer queue capacity: " + capacity + ", high-water: " + highWater + ", low-water: " + lowWater);
+	}
+
+	public void write(Packet packet) {
+		enqueue(new Entry(copy(packet), false));
+	}
+
+	public void writeFlvData(Packet packet) {
+		enqueue(new Entry(copy(packet), true));
+	}
+
+	private Packet copy(Packet packet) {
+		final ByteBuffer data = packet.getData();
+		Packet copy = new Packet(packet.getHeader().copy(), data.remaining(), session.getBufferPool());
+		copy.getData().put(data.buf().duplicate());
+		copy.getData().flip();
+		return copy;
+	}
+
+	/**
+	 * waits for everything queued so far to be written, then closes the
+	 * wrapped writer
+	 */
+	public void close() {
+		closing = true;
+		schedule();
+		try {
+			closed.await();
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		logger.info("async writer closed: " + this);
+	}
+
+	private void enqueue(Entry entry) {
+		if(failed) {
+			release(entry);
+			return;
+		}
+		try {
+			queue.put(entry);
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		final int depth = queue.size();
+		if(depth > maxDepth) {
+			maxDepth = depth;
+		}
+		if(depth >= highWater) {
+			synchronized(readLock) {
+				if(!suspended) {
+					suspended = true;
+					suspendCount++;
+					logger.debug("queue depth {}, suspending read", depth);
+					final DecoderOutput output = session.getDecoderOutput();
+					if(output instanceof ReadThrottle) {
+						((ReadThrottle) output).suspendRead();
+					}
+				}
+			}
+		}
+		schedule();
+	}
+
+	private void schedule() {
+		if(draining.compareAndSet(false, true)) {
+			executor.execute(drain);
+		}
+	}
+
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			while(true) {
+				Entry entry;
+				while((entry = queue.poll()) != null) {
+					write(entry);
+					resumeIfDrained();
+				}
+				resumeIfDrained(); // the last entries may have been written before read got suspended
+				if(closing && closed.getCount() > 0) {
+					try {
+						writer.close();
+					} catch(Exception e) {
+						logger.error("close failed", e);
+					} finally {
+						closed.countDown();
+					}
+				}
+				draining.set(false);
+				// something may have been queued (or close called) after the poll, but gave up scheduling
+				final boolean pending = !queue.isEmpty() || (closing && closed.getCount() > 0);
+				if(!pending || !draining.compareAndSet(false, true)) {
+					return;
+				}
+			}
+		}
+	};
+
+	private void write(Entry entry) {
+		try {
+			if(!failed) {
+				if(entry.flvData) {
+					writer.writeFlvData(entry.packet);
+				} else {
+					writer.write(entry.packet);
+				}
+			}
+		} catch(Exception e) {
+			logger.error("write failed, discarding the rest of the stream", e);
+			failed = true;
+		} finally {
+			release(entry);
+		}
+		final long latency = System.nanoTime() - entry.queuedNanos;
+		totalLatencyNanos += latency;
+		if(latency > maxLatencyNanos) {
+			maxLatencyNanos = latency;
+		}
+		written++;
+	}
+
+	private void resumeIfDrained() {
+		if(queue.size() > lowWater) {
+			return;
+		}
+		synchronized(readLock) {
+			if(suspended) {
+				suspended = false;
+				logger.debug("queue depth down to low-water, resuming read");
+				final DecoderOutput output = session.getDecoderOutput();
+				if(output instanceof ReadThrottle) {
+					((ReadThrottle) output).resumeRead();
+				}
+			}
+		}
+	}
+
+	private static void release(Entry entry) {
+		entry.packet.release();
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxDepth;
+	}
+
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * average time from being queued to having been written
+	 */
+	public long getAverageLatencyNanos() {
+		final long count = written;
+		return count == 0 ? 0 : totalLatencyNanos / count;
+	}
+
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos;
+	}
+
+	public int getSuspendCount() {
+		return suspendCount;
+	}
+
+	@Override
+	public String toString() {
+		return "written: " + written + ", depth: " + queue.size() + ", max depth: " + maxDepth
+			+ ", avg latency micros: " + getAverageLatencyNanos() / 1000
+			+ ", max latency micros: " + maxLatencyNanos / 1000 + ", read suspended: " + suspendCount + " times";
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * pool of heap buffers used for re-assembling inbound messages, buffers are
+ * bucketed into power of two size classes so that a released buffer can be
+ * handed out again for any message that fits, messages bigger than the
+ * largest size class are simply allocated and left to the garbage collector
+ */
+public class BufferPool {
+
+	private static final int MIN_SHIFT = 7; // 128 bytes, the default chunk size
+	private static final int MAX_SHIFT = 20; // 1 MB
+
+	private static final BufferPool shared = new BufferPool(4 * 1024 * 1024);
+
+	private final List<Queue<byte[]>> free;
+	private final AtomicInteger[] freeCounts;
+	private final int maxBytesPerClass;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong releases = new AtomicLong();
+	private final AtomicLong discards = new AtomicLong();
+
+	public static BufferPool getShared() {
+		return shared;
+	}
+
+	public BufferPool(int maxBytesPerClass) {
+		this.maxBytesPerClass = maxBytesPerClass;
+		final int classes = MAX_SHIFT - MIN_SHIFT + 1;
+		free = new ArrayList<Queue<byte[]>>(classes);
+		freeCounts = new AtomicInteger[classes];
+		for(int i = 0; i < classes; i++) {
+			free.add(new ConcurrentLinkedQueue<byte[]>());
+			freeCounts[i] = new AtomicInteger();
+		}
+	}
+
+	private static int sizeClass(int size) {
+		int shift = MIN_SHIFT;
+		while((1 << shift) < size) {
+			shift++;
+		}
+		return shift - MIN_SHIFT;
+	}
+
+	/**
+	 * @return a buffer with position zero and limit set to the requested size
+	 */
+	public ByteBuffer acquire(int size) {
+		if(size > 1 << MAX_SHIFT) {
+			misses.incrementAndGet();
+			return ByteBuffer.wrap(new byte[size]);
+		}
+		final int sizeClass = sizeClass(size);
+		byte[] bytes = free.get(sizeClass).poll();
+		if(bytes == null) {
+			misses.incrementAndGet();
+			bytes = new byte[1 << (sizeClass + MIN_SHIFT)];
+		} else {
+			freeCounts[sizeClass].decrementAndGet();
+			hits.incrementAndGet();
+		}
+		return ByteBuffer.wrap(bytes, 0, size);
+	}
+
+	/**
+	 * only buffers obtained from {@link #acquire(int)} should be released, and
+	 * the caller must not touch the buffer after this, it could already be in
+	 * use by some other message
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer.isDirect()) {
+			return;
+		}
+		final byte[] bytes = buffer.array();
+		final int length = bytes.length;
+		if(length < 1 << MIN_SHIFT || length > 1 << MAX_SHIFT || (length & (length - 1)) != 0) {
+			return; // not one of ours
+		}
+		releases.incrementAndGet();
+		final int sizeClass = sizeClass(length);
+		if(freeCounts[sizeClass].incrementAndGet() * length > maxBytesPerClass) {
+			freeCounts[sizeClass].decrementAndGet();
+			discards.incrementAndGet();
+			return;
+		}
+		free.get(sizeClass).offer(bytes);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getReleases() {
+		return releases.get();
+	}
+
+	public long getDiscards() {
+		return discards.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("[hits: ").append(hits);
+		sb.append(", misses: ").append(misses);
+		sb.append(", releases: ").append(releases);
+		sb.append(", discards: ").append(discards);
+		sb.append(']');
+		return sb.toString();
+	}
+
+}
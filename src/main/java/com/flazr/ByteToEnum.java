@@ -16,9 +16,6 @@
 
 package com.flazr;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * a little bit of code reuse, would have been cleaner if enum types
  * could extend some other class - we implement an interface instead
@@ -30,17 +27,18 @@ public class ByteToEnum<T extends Enum<T> & ByteToEnum.Convert> {
 		byte byteValue();
 	}
 	
-	private Map<Byte, T> map;
+	// indexed by the unsigned byte value, avoids boxing on every lookup
+	private final Object[] table = new Object[256];
 	
 	public ByteToEnum(T[] values) {		
-		map = new HashMap<Byte, T>(values.length);
 		for(T t : values) {			
-			map.put(t.byteValue(), t);
+			table[t.byteValue() & 0xff] = t;
 		}
 	}
 	
+	@SuppressWarnings("unchecked")
 	public T parseByte(byte b) {
-		T t = map.get(b);
+		T t = (T) table[b & 0xff];
 		if(t == null) {
 			throw new RuntimeException("bad byte: " + Utils.toHex(b));
 		}
@@ -51,4 +49,4 @@ public class ByteToEnum<T extends Enum<T> & ByteToEnum.Convert> {
 		return t.name() + "(0x" + Utils.toHex(t.byteValue()) + ")";
 	}
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * per chunk stream (channel) state, looked up on every chunk so the one and
+ * two byte channel id range (up to 319) is kept in a plain array indexed by
+ * the channel id, and only the rare three byte ids fall back to a map
+ *
+ * not thread safe, only one I/O thread touches a session at a time
+ */
+public class ChannelTable<T> {
+
+	private static final int INITIAL_SIZE = 64; // one byte channel ids
+	private static final int MAX_ARRAY_SIZE = 320; // two byte channel ids
+
+	private Object[] table = new Object[INITIAL_SIZE];
+	private Map<Integer, T> sparse;
+
+	@SuppressWarnings("unchecked")
+	public T get(int channelId) {
+		if(channelId < table.length) {
+			return (T) table[channelId];
+		}
+		if(channelId < MAX_ARRAY_SIZE || sparse == null) {
+			return null;
+		}
+		return sparse.get(channelId);
+	}
+
+	public void put(int channelId, T value) {
+		if(channelId < table.length) {
+			table[channelId] = value;
+			return;
+		}
+		if(channelId < MAX_ARRAY_SIZE) {
+			Object[] temp = new Object[MAX_ARRAY_SIZE];
+			System.arraycopy(table, 0, temp, 0, table.length);
+			table = temp;
+			table[channelId] = value;
+			return;
+		}
+		if(sparse == null) {
+			sparse = new HashMap<Integer, T>();
+		}
+		sparse.put(channelId, value);
+	}
+
+	public void remove(int channelId) {
+		if(channelId < table.length) {
+			table[channelId] = null;
+		} else if(sparse != null) {
+			sparse.remove(channelId);
+		}
+	}
+
+	/**
+	 * removes everything
+	 *
+	 * @return what was removed
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> clear() {
+		List<T> values = new ArrayList<T>();
+		for(int i = 0; i < table.length; i++) {
+			if(table[i] != null) {
+				values.add((T) table[i]);
+				table[i] = null;
+			}
+		}
+		if(sparse != null) {
+			values.addAll(sparse.values());
+			sparse = null;
+		}
+		return values;
+	}
+
+}
@@ -27,6 +27,15 @@ public class DefaultInvokeResultHandler implements InvokeResultHandler {
 		String resultFor = session.getInvokedMethods().get(invoke.getSequenceId());
 		logger.info("result for method call: " + resultFor);		
 		if(resultFor.equals("connect")) {										
+			Object info = invoke.getArg(1);
+			if(info instanceof AmfObject) {
+				AmfProperty encoding = ((AmfObject) info).getProperty("objectEncoding");
+				if(encoding != null && encoding.getValue() instanceof Double) {
+					int objectEncoding = ((Double) encoding.getValue()).intValue();
+					logger.info("server object encoding: " + objectEncoding);
+					session.setObjectEncoding(objectEncoding);
+				}
+			}
 			session.send(Packet.serverBw(0x001312d0)); // hard coded for now	
 			session.send(Packet.ping(3, 0, 300)); 
 			session.send(new Invoke("createStream", 3));												
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.KeyAgreement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * keeps a number of ready to use Diffie-Hellman key pairs (each with its
+ * initialized KeyAgreement) for RTMPE handshakes, so that opening many sessions
+ * at once does not serialize on key generation, a daemon thread tops the pool
+ * up in the background, if the pool runs dry the key pair is generated inline
+ * and counted as an exhaustion
+ *
+ * every key pair is handed out exactly once
+ */
+public class DhKeyPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(DhKeyPool.class);
+
+	private static final long RETRY_MILLIS = 100;
+
+	public static class Entry {
+
+		private final KeyPair keyPair;
+		private final KeyAgreement keyAgreement;
+
+		public Entry(KeyPair keyPair, KeyAgreement keyAgreement) {
+			this.keyPair = keyPair;
+			this.keyAgreement = keyAgreement;
+		}
+
+		public KeyPair getKeyPair() {
+			return keyPair;
+		}
+
+		public KeyAgreement getKeyAgreement() {
+			return keyAgreement;
+		}
+
+	}
+
+	private final BlockingQueue<Entry> ready;
+	private final Thread worker;
+	private volatile boolean running = true;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong exhaustions = new AtomicLong();
+	private final AtomicLong generated = new AtomicLong();
+
+	public DhKeyPool(int size) {
+		ready = new ArrayBlockingQueue<Entry>(size);
+		worker = new Thread(new Runnable() {
+			public void run() {
+				refill();
+			}
+		}, "dh-key-pool");
+		worker.setDaemon(true);
+		worker.setPriority(Thread.MIN_PRIORITY); // connecting sessions come first
+		worker.start();
+	}
+
+	private void refill() {
+		while(running) {
+			try {
+				ready.put(generate()); // blocks while the pool is full
+			} catch(InterruptedException e) {
+				break;
+			} catch(RuntimeException e) {
+				logger.error("key pair generation failed, retrying", e);
+				try {
+					Thread.sleep(RETRY_MILLIS);
+				} catch(InterruptedException ie) {
+					break;
+				}
+			}
+		}
+		logger.debug("key pool worker exiting");
+	}
+
+	Entry generate() {
+		Entry entry = Handshake.generateDhKey();
+		generated.incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * never blocks, generates inline if none are ready
+	 */
+	public Entry take() {
+		Entry entry = ready.poll();
+		if(entry != null) {
+			hits.incrementAndGet();
+			return entry;
+		}
+		exhaustions.incrementAndGet();
+		if(logger.isDebugEnabled()) {
+			logger.debug("key pool exhausted, generating inline: " + this);
+		}
+		return generate();
+	}
+
+	/**
+	 * stops the background thread, take() still works but always generates inline
+	 */
+	public void shutdown() {
+		running = false;
+		worker.interrupt();
+	}
+
+	public int getReady() {
+		return ready.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getExhaustions() {
+		return exhaustions.get();
+	}
+
+	public long getGenerated() {
+		return generated.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("[ready: ").append(ready.size());
+		sb.append(", hits: ").append(hits);
+		sb.append(", exhaustions: ").append(exhaustions);
+		sb.append(", generated: ").append(generated);
+		sb.append(']');
+		return sb.toString();
+	}
+
+}
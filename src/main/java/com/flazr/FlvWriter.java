@@ -19,106 +19,191 @@ package com.flazr;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.mina.common.ByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.flazr.Packet.Type;
-
-public class FlvWriter implements OutputWriter {
+/**
+ * every tag (header, payload and previous tag size) goes to the file in a single
+ * gathering write, optionally tags are first collected in a write-behind buffer
+ * so that many small (audio) tags become one large sequential write, the buffer
+ * is written when full or, if a time limit is set, once the oldest buffered tag
+ * is older than that (checked when a tag arrives and by a timer shared by all
+ * writers, so also when the stream stalls), and always on flush() and close()
+ */
+public class FlvWriter extends AbstractFlvWriter {
 	
 	private static final Logger logger = LoggerFactory.getLogger(FlvWriter.class);
-		
-	private ByteBuffer out;
+	
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "write-behind-flusher");
+			thread.setDaemon(true); // close() writes whatever is left
+			return thread;
+		}
+	});
+	
+	private final java.nio.ByteBuffer[] gather = new java.nio.ByteBuffer[4];
+	private java.nio.ByteBuffer pending; // write-behind, null if disabled
+	private int writeBehindMillis;
+	private long pendingSince;
+	private ScheduledFuture<?> flushTask;
 	private FileChannel channel;
 	private FileOutputStream fos;	
-	private WriterStatus status;	
+	private long position;
+	private long writeCount;
+	
+	public FlvWriter(int seekTime, String fileName) {
+		this(seekTime, fileName, 0, 0, 0);
+	}
 	
-	public FlvWriter(int seekTime, String fileName) {	
-		status = new WriterStatus(seekTime);
+	public FlvWriter(int seekTime, String fileName, int writeBehindSize, int writeBehindMillis) {
+		this(seekTime, fileName, 0, writeBehindSize, writeBehindMillis);
+	}
+	
+	/**
+	 * @param metaDataReserve size of the onMetaData tag re-written on close, 0 for none 
+	 * @param writeBehindSize size of the write-behind buffer, 0 writes every tag straight away
+	 * @param writeBehindMillis if > 0 the buffer is also written once its oldest tag is older than this,
+	 * checked at least every quarter of it
+	 */
+	public FlvWriter(int seekTime, String fileName, int metaDataReserve, int writeBehindSize, int writeBehindMillis) {	
+		super(seekTime, fileName, metaDataReserve);
 		try {
-			File file = new File(fileName);
+			File file = getFile();
 			fos = new FileOutputStream(file);
 			channel = fos.getChannel();
 			logger.info("opened file for writing: " + file.getAbsolutePath());
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
-		out = ByteBuffer.allocate(1024);
-		out.setAutoExpand(true);		
-		writeHeader();	
+		if(writeBehindSize > 0) {
+			pending = java.nio.ByteBuffer.allocate(writeBehindSize);
+			this.writeBehindMillis = writeBehindMillis;
+			logger.info("write-behind buffer size: " + writeBehindSize + ", max age millis: " + writeBehindMillis);
+		}
+		writeStart();
+		if(pending != null && writeBehindMillis > 0) {
+			final long period = Math.max(1, writeBehindMillis / 4);
+			flushTask = flusher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						flushIfOld();
+					} catch(Exception e) {
+						logger.error("write-behind flush failed", e);
+					}
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
 	}
 	
-	public void close() {
+	protected void closeFile() {
+		if(flushTask != null) {
+			flushTask.cancel(false);
+		}
+		flush();
 		try {
 			channel.close();
 			fos.close();
 		} catch(Exception e) {
 			throw new RuntimeException(e);
 		}		
-		status.logFinalVideoDuration();
+		logger.info("tags written: " + getTagCount() + ", file writes: " + writeCount);
+	}
+	
+	protected void writeTag(java.nio.ByteBuffer tagHeader, java.nio.ByteBuffer payload, java.nio.ByteBuffer tagSize) {
+		final int size = payload.remaining();
+		position += tagHeader.remaining() + size + tagSize.remaining();
+		if(pending == null) {
+			gather[0] = tagHeader;
+			gather[1] = payload;
+			gather[2] = tagSize;
+			write(3);
+			return;
+		}
+		if(pending.remaining() >= tagHeader.remaining() + size + tagSize.remaining()) {
+			if(pending.position() == 0) {
+				pendingSince = System.currentTimeMillis();
+			}
+			pending.put(tagHeader);
+			pending.put(payload);
+			pending.put(tagSize);
+			flushIfOld();
+			return;
+		}
+		// does not fit, goes out together with whatever is buffered
+		pending.flip();
+		gather[0] = pending;
+		gather[1] = tagHeader;
+		gather[2] = payload;
+		gather[3] = tagSize;
+		write(4);
+		pending.clear();
 	}
 	
-	private void writeHeader() {
-		out.put((byte) 0x46); // F
-		out.put((byte) 0x4C); // L
-		out.put((byte) 0x56); // V
-		out.put((byte) 0x01); // version		
-		out.put((byte) 0x05); // flags: audio + video
-		out.putInt(0x09); // header size = 9
-		out.putInt(0); // previous tag size, here = 0
-		out.flip();
-		write(out);				
-	}	
+	/**
+	 * writes out the contents of the write-behind buffer, if any
+	 */
+	public synchronized void flush() {
+		if(pending == null || pending.position() == 0) {
+			return;
+		}
+		pending.flip();
+		gather[0] = pending;
+		write(1);
+		pending.clear();
+	}
 	
-	public synchronized void write(Packet packet) {			
-		Header header = packet.getHeader();
-		int time = status.getChannelAbsoluteTime(header);
-		write(header.getPacketType(), packet.getData(), time);
-	}		
+	private synchronized void flushIfOld() {
+		if(writeBehindMillis > 0 && pending.position() > 0
+				&& System.currentTimeMillis() - pendingSince >= writeBehindMillis) {
+			flush();
+		}
+	}
 	
-	public synchronized void writeFlvData(ByteBuffer data) {
-		while(data.hasRemaining()) {		
-			Type packetType = Type.parseByte(data.get());												
-			int size = Utils.readInt24(data);			
-			int timestamp = Utils.readInt24(data);
-			status.updateVideoChannelTime(timestamp);
-			data.getInt(); // 4 bytes of zeros (reserved)
-			byte[] bytes = new byte[size];
-			data.get(bytes);
-			ByteBuffer temp = ByteBuffer.wrap(bytes);
-			write(packetType, temp, timestamp);  
-			data.getInt(); // FLV tag size (size + 11)
-		}		
+	protected long getPosition() {
+		return position;
 	}
 	
-	public synchronized void write(Type packetType, ByteBuffer data, final int time) {		
-		if(logger.isDebugEnabled()) {
-			logger.debug("writing FLV tag {} t{} {}", new Object[]{ packetType, time, data});
-		}				
-		out.clear();
-		out.put(packetType.byteValue());		
-		final int size = data.limit();
-		Utils.writeInt24(out, size);
-		Utils.writeInt24(out, time);
-		out.putInt(0); // 4 bytes of zeros (reserved)	
-		out.flip();
-		write(out);			
-		write(data);		
-		//==========
-		out.clear();
-		out.putInt(size + 11); // previous tag size
-		out.flip();
-		write(out);
+	protected void writeAt(long at, java.nio.ByteBuffer buffer) {
+		flush(); // or the buffered bytes could land on top later
+		try {
+			while(buffer.hasRemaining()) {
+				at += channel.write(buffer, at);
+			}
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
 	}
 	
-	private void write(ByteBuffer buffer) {		
+	/**
+	 * number of write calls made on the file channel
+	 */
+	public long getWriteCount() {
+		return writeCount;
+	}
+	
+	private void write(int length) {
+		long remaining = 0;
+		for(int i = 0; i < length; i++) {
+			remaining += gather[i].remaining();
+		}
 		try {
-			channel.write(buffer.buf());
+			while(remaining > 0) { // a file channel normally takes it all at once
+				remaining -= channel.write(gather, 0, length);
+				writeCount++;
+			}
 		} catch(Exception e) {
 			throw new RuntimeException(e);
 		}
+		for(int i = 0; i < length; i++) {
+			gather[i] = null;
+		}
 	}		
 	
 }
@@ -25,12 +25,10 @@ import java.security.spec.KeySpec;
 import java.util.Arrays;
 import java.util.Random;
 
-import javax.crypto.Cipher;
 import javax.crypto.KeyAgreement;
 import javax.crypto.interfaces.DHPublicKey;
 import javax.crypto.spec.DHParameterSpec;
 import javax.crypto.spec.DHPublicKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.mina.common.ByteBuffer;
 import org.slf4j.Logger;
@@ -96,6 +94,18 @@ public class Handshake {
 		return offset;
 	}
 
+	/**
+	 * digest of a handshake part leaving out the 32 bytes where the digest itself
+	 * goes, fed to the HMAC in two pieces instead of copying into a message array
+	 */
+	private static byte[] digestAround(ByteBuffer buf, int digestOffset, byte[] key) {
+		final int afterDigestOffset = digestOffset + SHA256_LEN;
+		return HmacSha256.get().init(key)
+			.update(buf, 0, digestOffset)
+			.update(buf, afterDigestOffset, HANDSHAKE_SIZE - afterDigestOffset)
+			.doFinal();
+	}
+
 	private static byte[] getFourBytesFrom(ByteBuffer buf, int offset) {
 		int initial = buf.position();
 		buf.position(offset);
@@ -105,7 +115,10 @@ public class Handshake {
 		return bytes;
 	}
 
-	private static KeyPair generateKeyPair(RtmpSession session) {
+	/**
+	 * the expensive part of an encrypted handshake, see {@link DhKeyPool}
+	 */
+	public static DhKeyPool.Entry generateDhKey() {
 		DHParameterSpec keySpec = new DHParameterSpec(DH_MODULUS, DH_BASE);
 		try {
 			KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
@@ -113,13 +126,19 @@ public class Handshake {
 			KeyPair keyPair = keyGen.generateKeyPair();
 		    KeyAgreement keyAgreement = KeyAgreement.getInstance("DH");
 		    keyAgreement.init(keyPair.getPrivate());
-		    session.setKeyAgreement(keyAgreement);
-			return keyPair;
+			return new DhKeyPool.Entry(keyPair, keyAgreement);
 		} catch(Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	private static KeyPair generateKeyPair(RtmpSession session) {
+		DhKeyPool pool = session.getDhKeyPool();
+		DhKeyPool.Entry entry = pool == null ? generateDhKey() : pool.take();
+	    session.setKeyAgreement(entry.getKeyAgreement());
+		return entry.getKeyPair();
+	}
+
 	private static byte[] getPublicKey(KeyPair keyPair) {
 		 DHPublicKey publicKey = (DHPublicKey) keyPair.getPublic();
 	     BigInteger	dh_Y = publicKey.getY();	     
@@ -181,14 +200,7 @@ public class Handshake {
 
 	        byte[] digestPointer = getFourBytesFrom(buf, 8);
 	        int digestOffset = calculateOffset(digestPointer, 728, 12);
-	        buf.rewind();
-	        int messageLength = HANDSHAKE_SIZE - SHA256_LEN;
-	        byte[] message = new byte[messageLength];
-	        buf.get(message, 0, digestOffset);
-	        int afterDigestOffset = digestOffset + SHA256_LEN;
-	        buf.position(afterDigestOffset);
-	        buf.get(message, digestOffset, HANDSHAKE_SIZE - afterDigestOffset);
-			byte[] digest = Utils.sha256(message, CLIENT_CONST);
+			byte[] digest = digestAround(buf, digestOffset, CLIENT_CONST);
 			buf.position(digestOffset);
 			buf.put(digest);
 			buf.rewind();
@@ -236,15 +248,7 @@ public class Handshake {
 			byte[] digestPointer = new byte[4]; // position 8
 			partOne.get(digestPointer);
 			int digestOffset = calculateOffset(digestPointer, 728, 12);
-	        partOne.rewind();
-
-	        int messageLength = HANDSHAKE_SIZE - SHA256_LEN;
-	        byte[] message = new byte[messageLength];
-			partOne.get(message, 0, digestOffset);
-			int afterDigestOffset = digestOffset + SHA256_LEN;
-			partOne.position(afterDigestOffset);
-			partOne.get(message, digestOffset, HANDSHAKE_SIZE - afterDigestOffset);
-			byte[] digest = Utils.sha256(message, SERVER_CONST);
+			byte[] digest = digestAround(partOne, digestOffset, SERVER_CONST);
 			byte[] serverDigest = new byte[SHA256_LEN];
 			partOne.position(digestOffset);
 			partOne.get(serverDigest);
@@ -261,13 +265,7 @@ public class Handshake {
 				logger.warn("type 1 digest comparison failed, trying type 2 algorithm");
 				digestPointer = getFourBytesFrom(partOne, 772);
 				digestOffset = calculateOffset(digestPointer, 728, 776);
-				message = new byte[messageLength];
-				partOne.rewind();
-				partOne.get(message, 0, digestOffset);
-				afterDigestOffset = digestOffset + SHA256_LEN;
-				partOne.position(afterDigestOffset);
-				partOne.get(message, digestOffset, HANDSHAKE_SIZE - afterDigestOffset);
-				digest = Utils.sha256(message, SERVER_CONST);
+				digest = digestAround(partOne, digestOffset, SERVER_CONST);
 				serverDigest = new byte[SHA256_LEN];
 				partOne.position(digestOffset);
 				partOne.get(serverDigest);
@@ -286,22 +284,10 @@ public class Handshake {
 			byte[] sharedSecret = getSharedSecret(serverPublicKey, session.getKeyAgreement());					
 
 			byte[] digestOut = Utils.sha256(serverPublicKey, sharedSecret);
-			try {
-				Cipher cipherOut = Cipher.getInstance("RC4");
-				cipherOut.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(digestOut, 0, 16, "RC4"));
-				session.setCipherOut(cipherOut);
-			} catch(Exception e) {
-				throw new RuntimeException(e);
-			}
+			session.setCipherOut(new Rc4(digestOut, 0, 16));
 
 			byte[] digestIn = Utils.sha256(session.getClientPublicKey(), sharedSecret);
-			try {
-				Cipher cipherIn = Cipher.getInstance("RC4");
-				cipherIn.init(Cipher.DECRYPT_MODE, new SecretKeySpec(digestIn, 0, 16, "RC4"));
-				session.setCipherIn(cipherIn);
-			} catch(Exception e) {
-				throw new RuntimeException(e);
-			}
+			session.setCipherIn(new Rc4(digestIn, 0, 16));
 		}
 		
 		ByteBuffer partTwo = ByteBuffer.allocate(HANDSHAKE_SIZE);
@@ -316,11 +302,11 @@ public class Handshake {
 			if(Arrays.equals(new byte[]{0, 0, 0, 0}, firstFourBytes)) {
 				logger.warn("server response part 2 first four bytes are zero, did handshake fail ?");
 			}			
-			byte[] message = new byte[HANDSHAKE_SIZE - SHA256_LEN];
-			partTwo.get(message);
 			byte[] digest = Utils.sha256(session.getClientDigest(), SERVER_CONST_CRUD);
-			byte[] signature = Utils.sha256(message, digest);
+			byte[] signature = HmacSha256.get().init(digest)
+				.update(partTwo, 0, HANDSHAKE_SIZE - SHA256_LEN).doFinal();
 			byte[] serverSignature = new byte[SHA256_LEN];			
+			partTwo.position(HANDSHAKE_SIZE - SHA256_LEN);
 			partTwo.get(serverSignature);
 			if(Arrays.equals(signature, serverSignature)) {
 				logger.info("server response part 2 validation / Flash Player v9 handshake success");
@@ -335,16 +321,15 @@ public class Handshake {
 			partOne.position(HANDSHAKE_SIZE - SHA256_LEN);
 			partOne.get(bytesFromServer);
 			byte[] bytesFromServerHash = Utils.sha256(session.getSwfHash(), bytesFromServer);
-			// construct SWF verification pong payload
-			ByteBuffer swfv = ByteBuffer.allocate(42);
+			// construct the complete SWF verification pong body once, sent as is on every request
+			byte[] swfvBytes = new byte[44];
+			ByteBuffer swfv = ByteBuffer.wrap(swfvBytes);
+			swfv.putShort((short) 0x001B);
 			swfv.put((byte) 0x01);
 			swfv.put((byte) 0x01);
 			swfv.putInt(session.getSwfSize());
 			swfv.putInt(session.getSwfSize());
 			swfv.put(bytesFromServerHash);
-			byte[] swfvBytes = new byte[42];
-			swfv.flip();
-			swfv.get(swfvBytes);
 			session.setSwfVerification(swfvBytes);
 			logger.info("calculated swf verification response: " + Utils.toHex(swfvBytes));
 		}
@@ -361,10 +346,9 @@ public class Handshake {
 			random.nextBytes(randomBytes);
 			ByteBuffer buf = ByteBuffer.wrap(randomBytes);
 			byte[] digest = Utils.sha256(session.getServerDigest(), CLIENT_CONST_CRUD);
-			byte[] message = new byte[HANDSHAKE_SIZE - SHA256_LEN];
-			buf.rewind();
-			buf.get(message);
-			byte[] signature = Utils.sha256(message, digest);
+			byte[] signature = HmacSha256.get().init(digest)
+				.update(randomBytes, 0, HANDSHAKE_SIZE - SHA256_LEN).doFinal();
+			buf.position(HANDSHAKE_SIZE - SHA256_LEN);
 			buf.put(signature);
 			buf.rewind();
 
@@ -373,10 +357,9 @@ public class Handshake {
 			// effectively this hides / discards the first few bytes of encrypted session
 			// which is known to increase the secure-ness of RC4
 			// RC4 state is just a function of number of bytes processed so far
-			// that's why we just run 1536 arbitrary bytes through the keys below
-			byte[] dummyBytes = new byte[HANDSHAKE_SIZE];
-			session.getCipherIn().update(dummyBytes);
-			session.getCipherOut().update(dummyBytes);
+			// that's why we just skip 1536 bytes of keystream below
+			session.getCipherIn().skip(HANDSHAKE_SIZE);
+			session.getCipherOut().skip(HANDSHAKE_SIZE);
 
 			Handshake hs = new Handshake();
 			hs.data = buf;
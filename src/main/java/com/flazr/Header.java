@@ -63,6 +63,7 @@ public class Header {
 	private Packet.Type packetType;
 	private int streamId;
 	private boolean relative = true;
+	private int delta = -1; // outbound only, time delta last sent on the channel, -1 if not known
 	
 	public Header() { }	
 	
@@ -119,29 +120,61 @@ public class Header {
 	public void setRelative(boolean relative) {
 		this.relative = relative;
 	}
-	
-	public boolean decode(ByteBuffer in, RtmpSession session) {
+
+	/**
+	 * decoded headers are updated in place by the next chunk on the channel, a
+	 * copy is needed to hold on to one
+	 */
+	public Header copy() {
+		Header header = new Header(headerType, channelId, packetType);
+		header.time = time;
+		header.size = size;
+		header.streamId = streamId;
+		header.relative = relative;
+		return header;
+	}
+
+	/**
+	 * the header state for each channel is kept in the session and updated in
+	 * place, so in the steady state decoding a chunk header allocates nothing,
+	 * note that this means the returned instance changes with the next chunk
+	 * on the same channel
+	 * 
+	 * @return the header for the chunk or null if not enough bytes available
+	 */
+	public static Header decode(ByteBuffer in, RtmpSession session) {
 		
 		final int remaining = in.remaining();
 		
         if(remaining < 1) {
-        	return false;
+        	return null;
         }                
         
         final byte firstByte = in.get();
         
+        final ChannelTable<Header> prevHeaders = session.getPrevHeadersIn();
+        
+        // fast path for one byte TINY headers i.e. most chunks of a large message
+        if((firstByte & 0xc0) == 0xc0 && (firstByte & 0x3f) > 1) {
+        	final Header header = prevHeaders.get(firstByte & 0x3f);
+        	if(header != null) {
+        		header.headerType = Type.TINY;
+        		return header;
+        	}
+        }
+        
 		final int typeAndChannel;
 		final int markerSize;        
         
 		if ((firstByte & 0x3f) == 0) {
 			if (remaining < 2) {				
-				return false;
+				return null;
 			}
 			markerSize = 2;
 			typeAndChannel = ((int) firstByte & 0xff) << 8 | ((int) in.get() & 0xff);			
 		} else if ((firstByte & 0x3f) == 1) {
 			if (remaining < 3) {				
-				return false;
+				return null;
 			}
 			markerSize = 3;
 			typeAndChannel = ((int) firstByte & 0xff) << 16 | ((int) in.get() & 0xff) << 8 | ((int) in.get() & 0xff);			
@@ -150,6 +183,8 @@ public class Header {
 			typeAndChannel = (int) firstByte & 0xff;			
 		}				
 		
+		final int channelId;
+		
 		if (markerSize == 1) {
 			channelId = (typeAndChannel & 0x3f);
 		} else if (markerSize == 2) {
@@ -168,49 +203,114 @@ public class Header {
     		headerTypeByte = (byte) (typeAndChannel >> 22);
     	}		
 		
-    	headerType = Header.Type.parseByte(headerTypeByte);    	    	
+    	final Type headerType = Header.Type.parseByte(headerTypeByte);    	    	
     	
     	if(remaining < markerSize + headerType.size - 1) {    		
-    		return false;
+    		return null;
     	}    	    	
     	
-    	final Header prevHeader = session.getPrevHeadersIn().get(channelId);
+    	Header header = prevHeaders.get(channelId);
+    	if(header == null) {
+    		if(headerType != Type.LARGE) {
+    			throw new RuntimeException("no previous header for channel " + channelId + ", header type: " + headerType);
+    		}
+    		header = new Header();
+    		header.channelId = channelId;
+    		prevHeaders.put(channelId, header);
+    	}
+    	header.headerType = headerType;
     	    	
     	// TODO handle 'extended' time values greater than 3 bytes
+    	// fields not present on the wire keep the value of the previous chunk
 		switch(headerType) {
 			case LARGE:
-				time = Utils.readInt24(in);
-				size = Utils.readInt24(in);
-				packetType = Packet.Type.parseByte(in.get());
-				streamId = Utils.readInt32Reverse(in);
-				relative = false;
+				header.time = Utils.readInt24(in);
+				header.size = Utils.readInt24(in);
+				header.packetType = Packet.Type.parseByte(in.get());
+				header.streamId = Utils.readInt32Reverse(in);
+				header.relative = false;
 				break;
 			case MEDIUM:
-				time = Utils.readInt24(in);
-				size = Utils.readInt24(in);
-				packetType = Packet.Type.parseByte(in.get());
-				streamId = prevHeader.streamId;				
+				header.time = Utils.readInt24(in);
+				header.size = Utils.readInt24(in);
+				header.packetType = Packet.Type.parseByte(in.get());
+				header.relative = true;
 				break;
 			case SMALL:
-				time = Utils.readInt24(in);
-				size = prevHeader.size;
-				packetType = prevHeader.packetType;
-				streamId = prevHeader.streamId;				
+				header.time = Utils.readInt24(in);
+				header.relative = true;
 				break;
 			case TINY:
-				time = prevHeader.time;
-				size = prevHeader.size;
-				packetType = prevHeader.packetType;
-				streamId = prevHeader.streamId;				
 				break;
 		}    	    	
-    	return true;		
+    	return header;		
 	}		
 	
-	public void encode(ByteBuffer out) {		
+	/**
+	 * outbound counterpart of {@link #decode(ByteBuffer, RtmpSession)}, picks the
+	 * smallest header type that lets the other side rebuild this header from the
+	 * last one sent on the same channel, which is then updated in place
+	 * 
+	 * the time is expected to be absolute, for anything but LARGE it is replaced
+	 * by the delta to the previous message on the channel, TINY is only used once
+	 * a delta has actually been sent as some servers treat a TINY after a LARGE
+	 * header as repeating the absolute time
+	 * 
+	 * @return the number of bytes saved compared to always sending LARGE headers
+	 */
+	public int compress(ChannelTable<Header> prevHeaders) {
+		final int absoluteTime = time;
+		Header prev = prevHeaders.get(channelId);
+		final int timeDelta = prev == null ? -1 : absoluteTime - prev.time;
+		if(prev == null || prev.streamId != streamId || timeDelta < 0) {
+			headerType = Type.LARGE;
+		} else if(prev.size != size || prev.packetType != packetType) {
+			headerType = Type.MEDIUM;
+		} else if(prev.delta != timeDelta) {
+			headerType = Type.SMALL;
+		} else {
+			headerType = Type.TINY;
+		}
+		relative = headerType != Type.LARGE;
+		if(relative) {
+			time = timeDelta;
+		}
+		if(prev == null) {
+			prev = new Header();
+			prev.channelId = channelId;
+			prevHeaders.put(channelId, prev);
+		}
+		prev.headerType = headerType;
+		prev.time = absoluteTime;
+		prev.size = size;
+		prev.packetType = packetType;
+		prev.streamId = streamId;
+		prev.relative = false;
+		prev.delta = relative ? timeDelta : -1;
+		return getEncodedSize(Type.LARGE, channelId) - getEncodedSize();
+	}
+	
+	/**
+	 * @return the number of bytes {@link #encode(ByteBuffer)} writes for a header
+	 * of the given type, the basic header grows for channel ids above 63
+	 */
+	public static int getEncodedSize(Type headerType, int channelId) {
+		if(channelId <= 63) {
+			return headerType.size;
+		} else if(channelId < 320) { // the second byte holds 64 to 319
+			return headerType.size + 1;
+		}
+		return headerType.size + 2;
+	}
+	
+	public int getEncodedSize() {
+		return getEncodedSize(headerType, channelId);
+	}
+	
+	private static void encodeBasicHeader(ByteBuffer out, Type headerType, int channelId) {
 		if(channelId <= 63) {
 			out.put((byte) ((headerType.value << 6) + channelId));			
-		} else if(channelId <= 320) {
+		} else if(channelId < 320) {
 			out.put((byte) (headerType.value << 6));
 			out.put((byte) (channelId - 64));			
 		} else {
@@ -219,6 +319,19 @@ public class Header {
 			out.put((byte) (tempChannelId & 0xff));
 			out.put((byte) (tempChannelId >> 8));			
 		}
+	}
+	
+	/**
+	 * writes the TINY header that goes in front of every chunk after the first
+	 * without needing a Header instance
+	 */
+	public static void encodeContinuation(ByteBuffer out, int channelId) {
+		encodeBasicHeader(out, Type.TINY, channelId);
+	}
+	
+	public void encode(ByteBuffer out) {		
+		final int start = out.position();
+		encodeBasicHeader(out, headerType, channelId);
 		switch(headerType) {
 			case LARGE:
 				Utils.writeInt24(out, time);
@@ -238,9 +351,10 @@ public class Header {
 				break;
 		}
 		if(logger.isDebugEnabled()) {
-			byte[] bytes = new byte[out.position()];
-			out.rewind();
-			out.get(bytes);
+			byte[] bytes = new byte[out.position() - start];
+			for(int i = 0; i < bytes.length; i++) {
+				bytes[i] = out.get(start + i);
+			}
 			logger.debug("encoded header: " + toString() + " --> "+ Utils.toHex(bytes));
 		}
 	}	
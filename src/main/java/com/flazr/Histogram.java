@@ -0,0 +1,138 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+/**
+ * counts of non-negative long values in a fixed array of buckets, exact up to
+ * 15 and then 8 buckets per power of two (within 12.5 percent), so recording
+ * is a few shifts and an increment and never allocates
+ *
+ * not thread safe, {@link #add(Histogram)} is for combining histograms that
+ * were filled on different threads
+ */
+public class Histogram {
+
+	private static final int LINEAR = 16;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = LINEAR + (64 - 4) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long sum;
+	private long max;
+	private long min = Long.MAX_VALUE;
+
+	private static int bucket(long value) {
+		if(value < LINEAR) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value); // 4 or more
+		final int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the largest value that falls into the bucket
+	 */
+	private static long upperBound(int bucket) {
+		if(bucket < LINEAR) {
+			return bucket;
+		}
+		final int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+		final int sub = (bucket - LINEAR) % SUB_BUCKETS;
+		final int shift = exponent - SUB_BUCKET_BITS;
+		return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+	}
+
+	/**
+	 * negative values are recorded as zero
+	 */
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		counts[bucket(value)]++;
+		count++;
+		sum += value;
+		if(value > max) {
+			max = value;
+		}
+		if(value < min) {
+			min = value;
+		}
+	}
+
+	public void add(Histogram other) {
+		for(int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+		min = Math.min(min, other.min);
+	}
+
+	public Histogram copy() {
+		Histogram copy = new Histogram();
+		copy.add(this);
+		return copy;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * @param percentile e.g. 99 or 99.9
+	 * @return a value at least as large as the given percentage of the values
+	 * recorded, never larger than the maximum, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		if(count == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= rank) {
+				return Math.min(upperBound(i), max);
+			}
+		}
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return "count: " + count + ", mean: " + Math.round(getMean()) + ", p50: " + getPercentile(50)
+			+ ", p90: " + getPercentile(90) + ", p99: " + getPercentile(99) + ", max: " + max;
+	}
+
+}
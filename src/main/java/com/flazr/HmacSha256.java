@@ -0,0 +1,110 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * per thread HMAC-SHA256, the provider lookup happens once per thread and the
+ * Mac is only re-keyed when the key actually changes (most handshake digests use
+ * one of a few constant keys), input can be fed in pieces so that digests over
+ * handshake bytes with a hole in them need no copying
+ *
+ * use as HmacSha256.get().init(key).update(...).doFinal(), the instance must
+ * not be held on to across calls that could use it themselves
+ */
+public class HmacSha256 {
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private static final ThreadLocal<HmacSha256> instances = new ThreadLocal<HmacSha256>() {
+		@Override
+		protected HmacSha256 initialValue() {
+			return new HmacSha256();
+		}
+	};
+
+	public static HmacSha256 get() {
+		return instances.get();
+	}
+
+	private final Mac mac;
+	private byte[] key;
+
+	private HmacSha256() {
+		try {
+			mac = Mac.getInstance(ALGORITHM);
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * also discards anything fed in since the last doFinal()
+	 */
+	public HmacSha256 init(byte[] key) {
+		if(Arrays.equals(key, this.key)) {
+			mac.reset();
+			return this;
+		}
+		try {
+			mac.init(new SecretKeySpec(key, ALGORITHM));
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+		this.key = key.clone(); // the caller may re-use the array
+		return this;
+	}
+
+	public HmacSha256 update(byte[] bytes, int offset, int length) {
+		mac.update(bytes, offset, length);
+		return this;
+	}
+
+	/**
+	 * absolute, the position of the buffer is not changed
+	 */
+	public HmacSha256 update(ByteBuffer buf, int offset, int length) {
+		final java.nio.ByteBuffer nio = buf.buf();
+		if(nio.hasArray()) {
+			mac.update(nio.array(), nio.arrayOffset() + offset, length);
+		} else {
+			final java.nio.ByteBuffer view = nio.duplicate();
+			view.limit(offset + length);
+			view.position(offset);
+			mac.update(view);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the digest, the Mac is then ready for the next message with the same key
+	 */
+	public byte[] doFinal() {
+		return mac.doFinal();
+	}
+
+	public byte[] digest(byte[] message) {
+		return mac.doFinal(message);
+	}
+
+}
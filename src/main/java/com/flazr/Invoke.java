@@ -17,12 +17,14 @@
 package com.flazr;
 
 import static com.flazr.Header.Type.LARGE;
-import static com.flazr.Header.Type.MEDIUM;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.mina.common.ByteBuffer;
 import org.slf4j.Logger;
@@ -31,6 +33,15 @@ import org.slf4j.LoggerFactory;
 public class Invoke {
 	
 	private static final Logger logger = LoggerFactory.getLogger(Invoke.class);
+	
+	private static final int MAX_TEMPLATES = 256;
+	
+	/**
+	 * encoded bodies of invokes seen before, keyed on everything except the
+	 * transaction id, so that opening many sessions with the same "connect",
+	 * "createStream" and "play" only costs a copy and patching one double
+	 */
+	private static final Map<List<Object>, byte[]> templates = new ConcurrentHashMap<List<Object>, byte[]>();
 		
 	private String methodName;
 	private int sequenceId;
@@ -56,6 +67,16 @@ public class Invoke {
 		return new Double(args[args.length - 1].toString()).intValue();
 	}
 	
+	/**
+	 * @return the argument at the given index or null if there are not that many
+	 */
+	public Object getArg(int index) {
+		if(args == null || index >= args.length) {
+			return null;
+		}
+		return args[index];
+	}
+	
 	public AmfObject getSecondArgAsAmfObject() { // TODO significance of first ?
 		return (AmfObject) args[1];
 	}
@@ -72,53 +93,123 @@ public class Invoke {
 		return methodName;
 	}
 	
-	@SuppressWarnings("unchecked")
 	public Packet encode(RtmpSession session) {			
 		sequenceId = session.getNextInvokeId();
 		session.getInvokedMethods().put(sequenceId, methodName);
-		Header prevHeader = session.getPrevHeadersOut().get(channelId);
-		Header.Type headerType = prevHeader == null ? LARGE : MEDIUM;		
-		Header header = new Header(headerType, channelId, Packet.Type.INVOKE);
+		// once AMF3 is agreed invokes go out as flex messages, with objects encoded as AMF3
+		final boolean amf3 = session.getObjectEncoding() == 3;
+		Header header = new Header(LARGE, channelId, amf3 ? Packet.Type.FLEX_MESSAGE : Packet.Type.INVOKE);
 		if(streamId != -1) {
 			header.setStreamId(streamId);
 		}
-		List<Object> list = new ArrayList<Object>();
-		list.add(methodName);
-		list.add(sequenceId);		
+		header.setTime(time);
+		final List<Object> key = getTemplateKey(amf3);
+		final byte[] template = key == null ? null : templates.get(key);
+		final ByteBuffer body;
+		if(template != null) {
+			body = ByteBuffer.allocate(template.length);
+			body.put(template);
+			body.putDouble(getSequenceIdOffset(amf3), sequenceId);
+		} else {
+			body = encodeBody(amf3);
+			if(key != null) {
+				if(templates.size() >= MAX_TEMPLATES) {
+					templates.clear(); // callers that vary args per session, not worth caching
+				}
+				byte[] bytes = new byte[body.position()];
+				body.flip();
+				body.get(bytes); // leaves the position at the end again
+				templates.put(key, bytes);
+			}
+		}
+		Packet packet = new Packet(header, body);
+		logger.info("encoded invoke: " + toString());
+		return packet;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private ByteBuffer encodeBody(boolean amf3) {
+		List<AmfProperty> list = new ArrayList<AmfProperty>();
+		list.add(new AmfProperty(methodName));
+		list.add(new AmfProperty(sequenceId));		
 		if(args != null && args.length > 0) {
 			for(Object arg : args) {
 				if(arg instanceof Map) {
-					list.add(new AmfObject((Map) arg));
+					arg = new AmfObject((Map) arg);
+				}
+				if(amf3 && arg instanceof AmfObject) {
+					list.add(new AmfProperty(null, arg, AmfProperty.Type.AVMPLUS));
 				} else {
-					list.add(arg);
+					list.add(new AmfProperty(arg));
 				}
 			}
 		} else {
-			list.add(null);
+			list.add(new AmfProperty(null));
 		}
-		header.setTime(time);
-		ByteBuffer body = AmfProperty.encode(list.toArray());
-		Packet packet = new Packet(header, body);
-		session.getPrevHeadersOut().put(channelId, header);		
-		logger.info("encoded invoke: " + toString());
-		return packet;
+		int size = amf3 ? 1 : 0;
+		for(AmfProperty property : list) {
+			size += property.getEncodedSize();
+		}
+		ByteBuffer body = ByteBuffer.allocate(size);
+		if(amf3) {
+			body.put((byte) 0x00); // flex message format
+		}
+		for(AmfProperty property : list) {
+			property.encode(body);
+		}
+		return body;
+	}
+	
+	/**
+	 * method name marker, length and bytes then the number marker
+	 */
+	private int getSequenceIdOffset(boolean amf3) {
+		return (amf3 ? 1 : 0) + 3 + Utils.utf8Length(methodName) + 1;
+	}
+	
+	/**
+	 * @return null if the args can't be compared by value, AmfObject has no equals()
+	 */
+	private List<Object> getTemplateKey(boolean amf3) {
+		if(Utils.utf8Length(methodName) > 0xFFFF) {
+			return null;
+		}
+		List<Object> key = new ArrayList<Object>();
+		key.add(amf3);
+		key.add(methodName);
+		if(args != null) {
+			for(Object arg : args) {
+				if(arg instanceof AmfObject) {
+					return null;
+				}
+				if(arg instanceof Map) { // snapshot, the caller may change it later
+					for(Object value : ((Map<?, ?>) arg).values()) {
+						if(value instanceof AmfObject || value instanceof Map) {
+							return null;
+						}
+					}
+					arg = new LinkedHashMap<Object, Object>((Map<?, ?>) arg);
+				} else if(arg instanceof byte[] || arg instanceof Date) {
+					return null;
+				}
+				key.add(arg);
+			}
+		}
+		return key;
 	}
 	
 	public void decode(Packet packet) {
 		channelId = packet.getHeader().getChannelId();
 		streamId = packet.getHeader().getStreamId();
-		AmfObject object = new AmfObject();
-		object.decode(packet.getData(), false);	
-		List<AmfProperty> properties = object.getProperties();
-		methodName = (String) properties.get(0).getValue();
-		double temp = (Double) properties.get(1).getValue();
-		sequenceId = (int) temp;		
-		if(properties.size() > 2) {
-			int argsLength = properties.size() - 2;
-			args = new Object[argsLength];
-			for(int i = 0; i < argsLength; i++) {
-				args[i] = properties.get(i + 2).getValue();
-			}
+		AmfReader reader = new AmfReader(packet.getData());
+		methodName = reader.readString();
+		sequenceId = (int) reader.readNumber();
+		List<Object> list = new ArrayList<Object>();
+		while(reader.hasNext()) {
+			list.add(reader.readValue());
+		}
+		if(!list.isEmpty()) {
+			args = list.toArray();
 		}
 		logger.info("decoded invoke: " + toString());
 	}
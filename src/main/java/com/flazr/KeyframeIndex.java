@@ -0,0 +1,65 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+/**
+ * times and file positions of the keyframes written so far, kept in growing
+ * primitive arrays, 12 bytes per keyframe
+ */
+public class KeyframeIndex {
+
+	private int[] times = new int[256];
+	private long[] positions = new long[256];
+	private int size;
+
+	public void add(int time, long position) {
+		if(size == times.length) {
+			int[] newTimes = new int[size * 2];
+			System.arraycopy(times, 0, newTimes, 0, size);
+			times = newTimes;
+			long[] newPositions = new long[size * 2];
+			System.arraycopy(positions, 0, newPositions, 0, size);
+			positions = newPositions;
+		}
+		times[size] = time;
+		positions[size] = position;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * milliseconds
+	 */
+	public int getTime(int i) {
+		return times[i];
+	}
+
+	/**
+	 * offset of the start of the tag in the file
+	 */
+	public long getPosition(int i) {
+		return positions[i];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+}
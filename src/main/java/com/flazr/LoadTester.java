@@ -0,0 +1,451 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.flazr;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flazr.RtmpSession.Phase;
+
+/**
+ * opens sessions against a list of urls (round robin) keeping up to a target
+ * number of them open at the same time, new sessions are started at most at
+ * the ramp-up rate and a session that ends is replaced until the test
+ * duration is over, then the remaining ones are disconnected
+ *
+ * for every session the connect time, handshake time, time from connect to
+ * the first media packet and the media throughput from the first media packet
+ * on are recorded, along with the time spent in each startup phase (see
+ * {@link PhaseStats}), the summary has p50 / p90 / p99 / max of each and can
+ * be written as CSV along with a line per session
+ *
+ * sessions are created with a null file name so that only a StatsWriter is
+ * used, override {@link #newSession(String)} for swf verification etc.
+ */
+public class LoadTester {
+
+	private static final Logger logger = LoggerFactory.getLogger(LoadTester.class);
+
+	private static final long NANOS_PER_MILLI = 1000000;
+	private static final int TICK_MILLIS = 10;
+	private static final long STOP_GRACE_NANOS = 2000 * NANOS_PER_MILLI;
+
+	private static class Result {
+
+		private final String url;
+		private final RtmpSession session;
+
+		public Result(String url, RtmpSession session) {
+			this.url = url;
+			this.session = session;
+		}
+
+	}
+
+	private final List<String> urls;
+	private RtmpClientFactory factory = RtmpClientFactory.getShared();
+	private int concurrency = 10;
+	private double rampUpPerSecond = 10;
+	private int playDurationMillis = -1;
+	private long testDurationMillis = 60000;
+	private long closeWaitMillis = 10000;
+
+	private final List<Result> results = new ArrayList<Result>();
+	private final Histogram connectMicros = new Histogram();
+	private final Histogram handshakeMicros = new Histogram();
+	private final Histogram firstMediaMicros = new Histogram();
+	private final Histogram throughputKbps = new Histogram();
+	private final PhaseStats phaseStats = new PhaseStats();
+	private int started;
+	private int failed;
+	private int noMedia;
+	private int unfinished;
+	private long elapsedMillis;
+
+	public LoadTester(List<String> urls) {
+		if(urls.isEmpty()) {
+			throw new IllegalArgumentException("at least one url is needed");
+		}
+		this.urls = urls;
+	}
+
+	protected RtmpSession newSession(String url) {
+		RtmpSession session = new RtmpSession(url, null);
+		if(playDurationMillis > 0) {
+			session.setPlayDuration(playDurationMillis);
+		}
+		return session;
+	}
+
+	public void run() {
+		logger.info("starting load test, urls: " + urls + ", concurrency: " + concurrency
+				+ ", ramp-up per second: " + rampUpPerSecond + ", play duration millis: " + playDurationMillis
+				+ ", test duration millis: " + testDurationMillis);
+		final long start = System.nanoTime();
+		final long end = start + testDurationMillis * NANOS_PER_MILLI;
+		List<Result> active = new ArrayList<Result>();
+		while(true) {
+			final long now = System.nanoTime();
+			collect(active, now);
+			if(now - end >= 0) {
+				break;
+			}
+			final long allowed = rampUpPerSecond <= 0 ? Long.MAX_VALUE
+					: 1 + (long) ((now - start) / 1e9 * rampUpPerSecond);
+			while(active.size() < concurrency && started < allowed) {
+				final String url = urls.get(started++ % urls.size());
+				RtmpSession session = newSession(url);
+				active.add(new Result(url, session));
+				factory.connect(session);
+			}
+			sleep();
+		}
+		logger.info("test duration over, disconnecting " + active.size() + " sessions");
+		final long closeEnd = System.nanoTime() + closeWaitMillis * NANOS_PER_MILLI;
+		while(!active.isEmpty() && System.nanoTime() - closeEnd < 0) {
+			for(Result result : active) {
+				disconnect(result.session); // again each time, some may not have been open yet
+			}
+			sleep();
+			collect(active, System.nanoTime());
+		}
+		for(Result result : active) {
+			logger.warn("session did not close: " + result.url);
+			unfinished++;
+			record(result);
+		}
+		elapsedMillis = (System.nanoTime() - start) / NANOS_PER_MILLI;
+		logger.info("load test done, sessions: " + started + ", elapsed millis: " + elapsedMillis);
+	}
+
+	private void collect(List<Result> active, long now) {
+		for(Iterator<Result> i = active.iterator(); i.hasNext(); ) {
+			Result result = i.next();
+			RtmpSession session = result.session;
+			if(session.isClosed()) {
+				i.remove();
+				record(result);
+			} else if(playDurationMillis > 0 && session.isReached(Phase.FIRST_MEDIA)
+					&& now - session.getPhaseNanos(Phase.FIRST_MEDIA) > playDurationMillis * NANOS_PER_MILLI + STOP_GRACE_NANOS) {
+				logger.info("play duration over without the server stopping, disconnecting: " + result.url);
+				disconnect(session);
+			}
+		}
+	}
+
+	private static void disconnect(RtmpSession session) {
+		DecoderOutput output = session.getDecoderOutput();
+		if(output != null) {
+			output.disconnect();
+		}
+	}
+
+	private void record(Result result) {
+		results.add(result);
+		RtmpSession session = result.session;
+		phaseStats.add(session);
+		if(!session.isReached(Phase.TCP_CONNECTED)) {
+			failed++;
+			return;
+		}
+		connectMicros.record(micros(session, Phase.CONNECT, Phase.TCP_CONNECTED));
+		if(session.isReached(Phase.HANDSHAKE)) {
+			handshakeMicros.record(micros(session, Phase.TCP_CONNECTED, Phase.HANDSHAKE));
+		}
+		if(!session.isReached(Phase.FIRST_MEDIA)) {
+			noMedia++;
+			return;
+		}
+		firstMediaMicros.record(micros(session, Phase.CONNECT, Phase.FIRST_MEDIA));
+		final long kbps = kbps(session);
+		if(kbps >= 0) {
+			throughputKbps.record(kbps);
+		}
+	}
+
+	private static long micros(RtmpSession session, Phase from, Phase to) {
+		final long nanos = session.getPhaseNanos(from, to);
+		return nanos < 0 ? -1 : nanos / 1000;
+	}
+
+	/**
+	 * media bytes only (the handshake and invokes went before the first media
+	 * packet), from the first media packet to the close, -1 if that cannot be
+	 * told
+	 */
+	private static long kbps(RtmpSession session) {
+		final long nanos = session.getPhaseNanos(Phase.FIRST_MEDIA, Phase.CLOSED);
+		if(nanos <= 0) {
+			return -1;
+		}
+		return session.getMediaBytes() * 8 * 1000000 / nanos;
+	}
+
+	private static void sleep() {
+		try {
+			Thread.sleep(TICK_MILLIS);
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String millis(long micros) {
+		return micros < 0 ? "" : String.valueOf(Math.round(micros / 100.0) / 10.0);
+	}
+
+	private static String[] summaryRow(String name, Histogram histogram, boolean micros) {
+		long[] values = { histogram.getPercentile(50), histogram.getPercentile(90),
+				histogram.getPercentile(99), histogram.getMax() };
+		String[] row = new String[2 + values.length];
+		row[0] = name;
+		row[1] = String.valueOf(histogram.getCount());
+		for(int i = 0; i < values.length; i++) {
+			row[2 + i] = micros ? millis(values[i]) : String.valueOf(values[i]);
+		}
+		return row;
+	}
+
+	private List<String[]> summaryRows() {
+		List<String[]> rows = new ArrayList<String[]>();
+		rows.add(summaryRow("connect_ms", connectMicros, true));
+		rows.add(summaryRow("handshake_ms", handshakeMicros, true));
+		rows.add(summaryRow("first_media_ms", firstMediaMicros, true));
+		rows.add(summaryRow("throughput_kbps", throughputKbps, false));
+		for(Phase phase : Phase.values()) {
+			if(phase != Phase.CONNECT) {
+				rows.add(summaryRow("phase_" + phase.toString().toLowerCase() + "_ms", phaseStats.getPhaseMicros(phase), true));
+			}
+		}
+		return rows;
+	}
+
+	public void printSummary(PrintStream out) {
+		out.println("sessions: " + started + ", failed to connect: " + failed + ", no media: " + noMedia
+				+ ", not closed: " + unfinished + ", elapsed millis: " + elapsedMillis);
+		out.println(String.format("%-32s %8s %10s %10s %10s %10s", "", "count", "p50", "p90", "p99", "max"));
+		for(String[] row : summaryRows()) {
+			out.println(String.format("%-32s %8s %10s %10s %10s %10s", (Object[]) row));
+		}
+	}
+
+	/**
+	 * one line per metric: count, p50, p90, p99, max
+	 */
+	public void writeSummaryCsv(String fileName) {
+		List<String[]> rows = summaryRows();
+		rows.add(0, new String[] { "metric", "count", "p50", "p90", "p99", "max" });
+		writeCsv(fileName, rows);
+	}
+
+	/**
+	 * one line per session, milliseconds from connect to each phase, empty
+	 * where a phase was not reached
+	 */
+	public void writeSessionsCsv(String fileName) {
+		List<String[]> rows = new ArrayList<String[]>();
+		final Phase[] phases = Phase.values();
+		String[] header = new String[phases.length + 3];
+		header[0] = "url";
+		for(int i = 1; i < phases.length; i++) {
+			header[i] = phases[i].toString().toLowerCase() + "_ms";
+		}
+		header[phases.length] = "bytes_read";
+		header[phases.length + 1] = "media_bytes";
+		header[phases.length + 2] = "throughput_kbps";
+		rows.add(header);
+		for(Result result : results) {
+			RtmpSession session = result.session;
+			String[] row = new String[header.length];
+			row[0] = result.url;
+			for(int i = 1; i < phases.length; i++) {
+				row[i] = millis(micros(session, Phase.CONNECT, phases[i]));
+			}
+			final long kbps = kbps(session);
+			row[phases.length] = String.valueOf(session.getBytesRead());
+			row[phases.length + 1] = String.valueOf(session.getMediaBytes());
+			row[phases.length + 2] = kbps < 0 ? "" : String.valueOf(kbps);
+			rows.add(row);
+		}
+		writeCsv(fileName, rows);
+	}
+
+	private static void writeCsv(String fileName, List<String[]> rows) {
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(fileName));
+			try {
+				for(String[] row : rows) {
+					for(int i = 0; i < row.length; i++) {
+						if(i > 0) {
+							out.print(',');
+						}
+						out.print(row[i].indexOf(',') == -1 ? row[i] : '"' + row[i].replace("\"", "\"\"") + '"');
+					}
+					out.println();
+				}
+			} finally {
+				out.close();
+			}
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+		logger.info("written: " + fileName);
+	}
+
+	//==========================================================================
+
+	public int getStarted() {
+		return started;
+	}
+
+	public int getFailed() {
+		return failed;
+	}
+
+	public int getNoMedia() {
+		return noMedia;
+	}
+
+	public int getUnfinished() {
+		return unfinished;
+	}
+
+	public Histogram getConnectMicros() {
+		return connectMicros;
+	}
+
+	public Histogram getHandshakeMicros() {
+		return handshakeMicros;
+	}
+
+	public Histogram getFirstMediaMicros() {
+		return firstMediaMicros;
+	}
+
+	public Histogram getThroughputKbps() {
+		return throughputKbps;
+	}
+
+	/**
+	 * time spent in each startup phase, the phase_ lines of the summary
+	 */
+	public PhaseStats getPhaseStats() {
+		return phaseStats;
+	}
+
+	public void setFactory(RtmpClientFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * sessions open at the same time
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * new sessions per second, 0 or less to start them all at once
+	 */
+	public void setRampUpPerSecond(double rampUpPerSecond) {
+		this.rampUpPerSecond = rampUpPerSecond;
+	}
+
+	/**
+	 * passed on to the server with play, and the session is disconnected if
+	 * the server has not stopped it shortly after, -1 (default) plays to the end
+	 */
+	public void setPlayDurationMillis(int playDurationMillis) {
+		this.playDurationMillis = playDurationMillis;
+	}
+
+	/**
+	 * no new sessions are started after this, open ones are disconnected
+	 */
+	public void setTestDurationMillis(long testDurationMillis) {
+		this.testDurationMillis = testDurationMillis;
+	}
+
+	/**
+	 * how long to wait for sessions to close at the end of the test
+	 */
+	public void setCloseWaitMillis(long closeWaitMillis) {
+		this.closeWaitMillis = closeWaitMillis;
+	}
+
+	//==========================================================================
+
+	private static void usage() {
+		System.err.println("usage: LoadTester [-c concurrency] [-r ramp-up per second] [-p play seconds]"
+				+ " [-d test seconds] [-o csv file prefix] url...");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) {
+		List<String> urls = new ArrayList<String>();
+		int concurrency = 10;
+		double rampUp = 10;
+		int playSeconds = -1;
+		int testSeconds = 60;
+		String csvPrefix = null;
+		for(int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if(arg.startsWith("-") && i + 1 == args.length) {
+				usage();
+			}
+			if(arg.equals("-c")) {
+				concurrency = Integer.parseInt(args[++i]);
+			} else if(arg.equals("-r")) {
+				rampUp = Double.parseDouble(args[++i]);
+			} else if(arg.equals("-p")) {
+				playSeconds = Integer.parseInt(args[++i]);
+			} else if(arg.equals("-d")) {
+				testSeconds = Integer.parseInt(args[++i]);
+			} else if(arg.equals("-o")) {
+				csvPrefix = args[++i];
+			} else if(arg.startsWith("-")) {
+				usage();
+			} else {
+				urls.add(arg);
+			}
+		}
+		if(urls.isEmpty()) {
+			usage();
+		}
+		LoadTester tester = new LoadTester(urls);
+		tester.setConcurrency(concurrency);
+		tester.setRampUpPerSecond(rampUp);
+		tester.setPlayDurationMillis(playSeconds < 0 ? -1 : playSeconds * 1000);
+		tester.setTestDurationMillis(testSeconds * 1000L);
+		tester.run();
+		tester.printSummary(System.out);
+		if(csvPrefix != null) {
+			tester.writeSummaryCsv(csvPrefix + "-summary.csv");
+			tester.writeSessionsCsv(csvPrefix + "-sessions.csv");
+		}
+		System.exit(0); // sessions that did not close keep I/O threads alive
+	}
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * writes tags into a memory mapped window of the file instead of issuing a
+ * write call per tag, the file is grown in large extents ahead of the data and
+ * the window slides forward as it fills up, tags may straddle two windows, on
+ * close the file is truncated to the length actually written
+ *
+ * there is no portable way to unmap a window, old ones go away when they are
+ * garbage collected, so the window should be a lot larger than a tag
+ */
+public class MappedFlvWriter extends AbstractFlvWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(MappedFlvWriter.class);
+
+	public static final int DEFAULT_EXTENT_SIZE = 64 * 1024 * 1024;
+	public static final int DEFAULT_WINDOW_SIZE = 8 * 1024 * 1024;
+
+	private final int extentSize;
+	private final int windowSize;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long allocated;
+	private long extentCount;
+	private long windowCount;
+	private long closedLength;
+
+	public MappedFlvWriter(int seekTime, String fileName) {
+		this(seekTime, fileName, 0, DEFAULT_EXTENT_SIZE, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedFlvWriter(int seekTime, String fileName, int metaDataReserve) {
+		this(seekTime, fileName, metaDataReserve, DEFAULT_EXTENT_SIZE, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param metaDataReserve size of the onMetaData tag re-written on close, 0 for none 
+	 */
+	public MappedFlvWriter(int seekTime, String fileName, int metaDataReserve, int extentSize, int windowSize) {
+		super(seekTime, fileName, metaDataReserve);
+		if(windowSize > extentSize) {
+			throw new IllegalArgumentException("window size " + windowSize + " larger than extent size " + extentSize);
+		}
+		this.extentSize = extentSize;
+		this.windowSize = windowSize;
+		try {
+			File f = getFile();
+			file = new RandomAccessFile(f, "rw");
+			file.setLength(0);
+			channel = file.getChannel();
+			logger.info("opened file for mapped writing: " + f.getAbsolutePath());
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+		map(0);
+		writeStart();
+	}
+
+	private void map(long start) {
+		try {
+			while(start + windowSize > allocated) { // ahead of mapping so the file grows in whole extents
+				allocated += extentSize;
+				file.setLength(allocated);
+				extentCount++;
+			}
+			window = channel.map(FileChannel.MapMode.READ_WRITE, start, windowSize);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+		windowStart = start;
+		windowCount++;
+	}
+
+	private void put(java.nio.ByteBuffer buffer) {
+		while(buffer.remaining() > window.remaining()) {
+			final int limit = buffer.limit();
+			buffer.limit(buffer.position() + window.remaining());
+			window.put(buffer);
+			buffer.limit(limit);
+			map(windowStart + windowSize);
+		}
+		window.put(buffer);
+	}
+
+	protected void writeTag(java.nio.ByteBuffer header, java.nio.ByteBuffer payload, java.nio.ByteBuffer trailer) {
+		put(header);
+		put(payload);
+		put(trailer);
+	}
+
+	protected long getPosition() {
+		return getLength();
+	}
+
+	protected void writeAt(long position, java.nio.ByteBuffer buffer) {
+		try {
+			while(buffer.hasRemaining()) { // the mapping sees this, same pages
+				position += channel.write(buffer, position);
+			}
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * bytes written so far
+	 */
+	public long getLength() {
+		return window == null ? closedLength : windowStart + window.position();
+	}
+
+	public long getExtentCount() {
+		return extentCount;
+	}
+
+	public long getWindowCount() {
+		return windowCount;
+	}
+
+	protected void closeFile() {
+		final long length = getLength();
+		closedLength = length;
+		window.force(); // the tail, earlier windows were handed to the OS as they filled up
+		window = null;
+		try {
+			channel.truncate(length);
+			channel.force(true); // the length and anything written through the channel (metadata)
+			file.close();
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+		logger.info("tags written: " + getTagCount() + ", length: " + length
+				+ ", extents: " + extentCount + ", windows mapped: " + windowCount);
+	}
+
+}
@@ -16,14 +16,23 @@
 
 package com.flazr;
 
-import org.apache.mina.common.ByteBuffer;
-
+/**
+ * the packet data passed in is only valid until the write call returns, the
+ * decoder re-uses the buffer for the next message after that, so implementations
+ * that need to hold on to the data have to copy it
+ */
 public interface OutputWriter {		
 
 	public void close();
 
 	public void write(Packet packet);
 
-	public void writeFlvData(ByteBuffer data);	
+	/**
+	 * the data of an aggregate (FLV_DATA) message is a sequence of complete FLV
+	 * tags, with timestamps in the time base of the server where the first tag
+	 * is at the time of the message, implementations are free to modify the
+	 * data in place
+	 */
+	public void writeFlvData(Packet packet);	
 
 }
\ No newline at end of file
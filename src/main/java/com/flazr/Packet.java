@@ -17,7 +17,6 @@
 package com.flazr;
 
 import static com.flazr.Header.Type.LARGE;
-import static com.flazr.Header.Type.MEDIUM;
 import static com.flazr.Header.Type.TINY;
 import static com.flazr.Packet.Type.BYTES_READ;
 import static com.flazr.Packet.Type.CONTROL_MESSAGE;
@@ -31,6 +30,12 @@ public class Packet {
 	
 	private static final Logger logger = LoggerFactory.getLogger(Packet.class);
 	
+	/**
+	 * see {@link #isSliceWorthwhile(int)}
+	 */
+	public static final int SLICE_MIN_CHUNK_SIZE = 64 * 1024;
+	public static final int SLICE_MIN_SIZE = 1024 * 1024;
+	
 	public static enum Type implements ByteToEnum.Convert {
 		
 		CHUNK_SIZE(0x01),
@@ -77,6 +82,8 @@ public class Packet {
 	private Header header;
 	private ByteBuffer data;	
 	private boolean complete;
+	private BufferPool pool;
+	private boolean slice; // data is a view of the input buffer and holds a reference to it
 	
 	public Packet() { }
 	
@@ -92,8 +99,17 @@ public class Packet {
 		data = ByteBuffer.allocate(dataSize);
 	}
 	
+	public Packet(Header header, int dataSize, BufferPool pool) {
+		this.header = header;
+		this.pool = pool;
+		data = pool.acquire(dataSize);
+	}
+	
+	// the header type of outbound packets is only a default, the encoder picks
+	// the smallest one that works given what was last sent on the channel
+	
 	public static Packet bytesRead(int value) {
-		Header header = new Header(MEDIUM, 2, BYTES_READ);
+		Header header = new Header(LARGE, 2, BYTES_READ);
 		ByteBuffer body = ByteBuffer.allocate(4);
 		body.putInt(value);
 		return new Packet(header, body);		
@@ -107,7 +123,7 @@ public class Packet {
     }
     
     public static Packet ping(int type, int target, int bufferTime) {    	
-    	Header header = new Header(MEDIUM, 2, CONTROL_MESSAGE);    	
+    	Header header = new Header(LARGE, 2, CONTROL_MESSAGE);    	
     	ByteBuffer body = ByteBuffer.allocate(10);
     	body.putShort((short) type);
     	body.putInt(target);
@@ -117,11 +133,13 @@ public class Packet {
     	return new Packet(header, body);    	    
     }	
     
+    /**
+     * @param bytes the complete body as worked out during the handshake, not copied
+     */
     public static Packet swfVerification(byte[] bytes) {    	
-    	Header header = new Header(MEDIUM, 2, CONTROL_MESSAGE);    	
-    	ByteBuffer body = ByteBuffer.allocate(44);
-    	body.putShort((short) 0x001B);
-    	body.put(bytes);
+    	Header header = new Header(LARGE, 2, CONTROL_MESSAGE);    	
+    	ByteBuffer body = ByteBuffer.wrap(bytes);
+    	body.position(bytes.length);
     	return new Packet(header, body);    	    
     }    
 	
@@ -141,13 +159,30 @@ public class Packet {
 		return complete;
 	}
 	
+	/**
+	 * hands the data buffer back to the pool it came from (if any) or drops
+	 * the reference a slice holds on the input buffer, the packet data must not
+	 * be used after this
+	 */
+	public void release() {
+		if(pool != null) {
+			pool.release(data);
+			pool = null;
+			data = null;
+		} else if(slice) {
+			data.release();
+			slice = false;
+			data = null;
+		}
+	}
+	
 	public boolean decode(ByteBuffer in, RtmpSession session) {
 
 		final int position = in.position();
 
-		header = new Header();     				
+		header = Header.decode(in, session);
         
-    	if(!header.decode(in, session)) {
+    	if(header == null) {
     		return false;
     	}    	    	    	
     	    	    	    	        	
@@ -166,16 +201,23 @@ public class Packet {
 			return false;
 		}		
 		
-		session.getPrevHeadersIn().put(channelId, header);
-		
 		boolean isNewPacket = false; // just for debugging
     	
 		if (prevPacket == null) {
 			isNewPacket = true;
-			prevPacket = new Packet(header, header.getSize());			
+			if(header.getHeaderType() == TINY) { // new message, re-uses the previous time delta
+				header.setRelative(true);
+			}
+			if(toReadNow == header.getSize()) {
+				if(logger.isDebugEnabled()) {
+					logger.debug("====================");
+					logger.debug("single chunk header: " + header);
+				}
+				sliceFrom(in, toReadNow);
+				return true;
+			}
+			prevPacket = new Packet(header, header.getSize(), session.getBufferPool());			
 			session.getPrevPacketsIn().put(channelId, prevPacket);			
-		} else {
-			header.setRelative(prevPacket.header.isRelative());
 		}
 		
         if(logger.isDebugEnabled()) {        	
@@ -192,13 +234,15 @@ public class Packet {
         	}
         }		
 
-		data = prevPacket.data;						
-		byte[] bytes = new byte[toReadNow];
-		in.get(bytes);		
-		data.put(bytes);		
+		data = prevPacket.data;
+		final int limit = in.limit();
+		in.limit(in.position() + toReadNow);
+		data.put(in); // straight from the input buffer, no intermediate byte[]
+		in.limit(limit);
 		
 		if(data.position() == header.getSize()) {
 			complete = true;
+			pool = prevPacket.pool;
 			session.getPrevPacketsIn().remove(channelId);			
 			data.flip();
 		}
@@ -206,25 +250,127 @@ public class Packet {
 		return true;		
 	}
 	
+	/**
+	 * the whole message is in a single chunk, so hand on a view of the input
+	 * buffer instead of copying it, note that the view is only valid until
+	 * the decode call that produced it returns, after which the (cumulative)
+	 * input buffer may be compacted and re-used, the slice keeps the input
+	 * buffer from going back to the MINA allocator until {@link #release()}
+	 */
+	private void sliceFrom(ByteBuffer in, int size) {
+		final int limit = in.limit();
+		in.limit(in.position() + size);
+		data = in.slice();
+		in.limit(limit);
+		in.skip(size);
+		slice = true;
+		complete = true;
+	}
+	
+	/**
+	 * writes the message as chunks into a single buffer the caller owns (and
+	 * the transport releases), one write on the socket for the whole message
+	 *
+	 * the packet data is released afterwards so a packet can only be encoded
+	 * once
+	 */
 	public ByteBuffer encode(final int chunkSize) {
-    	ByteBuffer buffer = ByteBuffer.allocate(1024);
-    	header.encode(buffer);
-    	int remaining = header.getSize();    	     
-    	while(true) {
-    		final int toWrite = remaining > chunkSize ? chunkSize : remaining;
-    		byte[] bytes = new byte[toWrite];
-    		data.get(bytes);
-    		buffer.put(bytes);
-    		remaining -= chunkSize;
-    		if(remaining > 0) {
-    			Header tiny = new Header(TINY, header.getChannelId(), header.getPacketType());
-    			tiny.encode(buffer);
-    		} else {
-    			break;
-    		}        		
-    	}        	
-    	buffer.flip();
-    	return buffer;
+		final int size = header.getSize();
+		final int chunks = size == 0 ? 1 : (size + chunkSize - 1) / chunkSize;
+		final int channelId = header.getChannelId();
+		ByteBuffer out = ByteBuffer.allocate(header.getEncodedSize() + size
+				+ (chunks - 1) * Header.getEncodedSize(TINY, channelId));
+		header.encode(out);
+		final int limit = data.limit();
+		int remaining = size;
+		for(int i = 0; i < chunks; i++) {
+			if(i > 0) {
+				Header.encodeContinuation(out, channelId);
+			}
+			final int toWrite = remaining > chunkSize ? chunkSize : remaining;
+			data.limit(data.position() + toWrite);
+			out.put(data);
+			remaining -= toWrite;
+		}
+		data.limit(limit);
+		out.flip();
+		if(pool == null) {
+			data.release();
+		} else {
+			pool.release(data);
+			pool = null;
+		}
+		data = null;
+		return out;
+	}
+	
+	/**
+	 * true if {@link #encodeSliced(int)} is worth it for this packet, each
+	 * chunk then costs two writes on the socket (and two MINA write requests)
+	 * instead of a copy, at 128 byte chunks that is some 30 times slower and
+	 * even 64 KB chunks are only as fast (see SocketWriteBenchmark), so this
+	 * is only for not having to allocate and fill a copy of a huge message
+	 */
+	public boolean isSliceWorthwhile(final int chunkSize) {
+		return chunkSize >= SLICE_MIN_CHUNK_SIZE && header.getSize() >= SLICE_MIN_SIZE;
+	}
+	
+	/**
+	 * like {@link #encode(int)} but without copying the payload, the returned
+	 * buffers alternate between chunk headers and read only slices of the data
+	 * and have to be written out in that order, the caller owns (and the
+	 * transport releases) every one of them
+	 *
+	 * the packet data is handed over to the slices so a packet can only be
+	 * encoded once
+	 */
+	public ByteBuffer[] encodeSliced(final int chunkSize) {
+		final int size = header.getSize();
+		final int chunks = size == 0 ? 1 : (size + chunkSize - 1) / chunkSize;
+		final int firstHeaderSize = header.getEncodedSize();
+		final int tinyHeaderSize = Header.getEncodedSize(TINY, header.getChannelId());
+		// all the chunk headers go into one small buffer, sliced up below
+		ByteBuffer headers = ByteBuffer.allocate(firstHeaderSize + (chunks - 1) * tinyHeaderSize);
+		header.encode(headers);
+		for(int i = 1; i < chunks; i++) {
+			Header.encodeContinuation(headers, header.getChannelId());
+		}
+		final ByteBuffer[] fragments = new ByteBuffer[size == 0 ? 1 : chunks * 2];
+		final ByteBuffer payload = size == 0 ? null : data.asReadOnlyBuffer();
+		int headerPosition = 0;
+		int dataPosition = size == 0 ? 0 : payload.position();
+		int remaining = size;
+		for(int i = 0; i < chunks; i++) {
+			final int headerSize = i == 0 ? firstHeaderSize : tinyHeaderSize;
+			headers.clear();
+			headers.position(headerPosition);
+			headers.limit(headerPosition + headerSize);
+			headerPosition += headerSize;
+			if(size == 0) {
+				fragments[0] = headers.slice();
+				break;
+			}
+			fragments[i * 2] = headers.slice();
+			final int toWrite = remaining > chunkSize ? chunkSize : remaining;
+			payload.clear();
+			payload.position(dataPosition);
+			payload.limit(dataPosition + toWrite);
+			fragments[i * 2 + 1] = payload.slice();
+			dataPosition += toWrite;
+			remaining -= toWrite;
+		}
+		// the slices hold their own references from here on
+		headers.release();
+		if(payload != null) {
+			payload.release();
+		}
+		if(pool == null) {
+			data.release();
+		} else {
+			pool = null; // can't go back to the pool while the slices are being written
+		}
+		data = null;
+		return fragments;
 	}
 	
 	@Override
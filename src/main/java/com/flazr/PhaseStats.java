@@ -0,0 +1,125 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.flazr;
+
+import com.flazr.RtmpSession.Phase;
+
+/**
+ * startup latency per phase over many sessions, for each phase a histogram
+ * (in microseconds) of the time since the previous phase the session reached,
+ * plus the time from connect to the first media packet, so a slow start can
+ * be pinned on the phase that is slow
+ */
+public class PhaseStats {
+
+	private final Histogram[] phaseMicros = new Histogram[Phase.values().length];
+	private final Histogram startupMicros = new Histogram();
+	private long sessions;
+
+	public PhaseStats() {
+		for(int i = 0; i < phaseMicros.length; i++) {
+			phaseMicros[i] = new Histogram();
+		}
+	}
+
+	public synchronized void add(RtmpSession session) {
+		sessions++;
+		long previous = session.getPhaseNanos(Phase.CONNECT);
+		if(previous == 0) {
+			return;
+		}
+		for(Phase phase : Phase.values()) {
+			final long nanos = session.getPhaseNanos(phase);
+			if(phase == Phase.CONNECT || nanos == 0) {
+				continue;
+			}
+			phaseMicros[phase.ordinal()].record(Math.max(0, nanos - previous) / 1000);
+			previous = nanos;
+		}
+		final long startup = session.getPhaseNanos(Phase.CONNECT, Phase.FIRST_MEDIA);
+		if(startup >= 0) {
+			startupMicros.record(startup / 1000);
+		}
+	}
+
+	public synchronized long getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * copy of the histogram of the time spent reaching the phase
+	 */
+	public synchronized Histogram getPhaseMicros(Phase phase) {
+		return phaseMicros[phase.ordinal()].copy();
+	}
+
+	/**
+	 * copy of the histogram of the time from connect to first media
+	 */
+	public synchronized Histogram getStartupMicros() {
+		return startupMicros.copy();
+	}
+
+	/**
+	 * one line, milliseconds from the previous phase reached, e.g.
+	 * "TCP_CONNECTED: +1.2, HANDSHAKE: +30.5, ..."
+	 */
+	public static String format(RtmpSession session) {
+		StringBuilder sb = new StringBuilder();
+		long previous = session.getPhaseNanos(Phase.CONNECT);
+		for(Phase phase : Phase.values()) {
+			final long nanos = session.getPhaseNanos(phase);
+			if(phase == Phase.CONNECT || nanos == 0 || previous == 0) {
+				continue;
+			}
+			if(sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(phase).append(": +").append(millis((nanos - previous) / 1000));
+			previous = nanos;
+		}
+		return sb.length() == 0 ? "not connected" : sb.toString();
+	}
+
+	private static double millis(long micros) {
+		return Math.round(micros / 100.0) / 10.0;
+	}
+
+	/**
+	 * a line per phase, milliseconds
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("sessions: ").append(sessions);
+		for(Phase phase : Phase.values()) {
+			if(phase != Phase.CONNECT) {
+				line(sb, phase.toString(), phaseMicros[phase.ordinal()]);
+			}
+		}
+		line(sb, "connect to media", startupMicros);
+		return sb.toString();
+	}
+
+	private static void line(StringBuilder sb, String name, Histogram histogram) {
+		sb.append(String.format("%n%-22s count: %6d, p50: %9.1f, p90: %9.1f, p99: %9.1f, max: %9.1f", name,
+				histogram.getCount(), millis(histogram.getPercentile(50)), millis(histogram.getPercentile(90)),
+				millis(histogram.getPercentile(99)), millis(histogram.getMax())));
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * RC4 keystream applied straight to MINA buffers, heap or direct, so that RTMPE
+ * traffic does not have to be copied out into a byte[] and back the way
+ * Cipher.update(byte[]) requires, encryption and decryption are the same thing
+ *
+ * not thread safe, one instance per direction per session
+ */
+public class Rc4 {
+
+	private final int[] state = new int[256];
+	private int i;
+	private int j;
+
+	public Rc4(byte[] key, int offset, int length) {
+		for(int n = 0; n < 256; n++) {
+			state[n] = n;
+		}
+		int k = 0;
+		for(int n = 0; n < 256; n++) {
+			k = (k + state[n] + key[offset + n % length]) & 0xFF;
+			final int temp = state[n];
+			state[n] = state[k];
+			state[k] = temp;
+		}
+	}
+
+	public Rc4(byte[] key) {
+		this(key, 0, key.length);
+	}
+
+	private int next() {
+		i = (i + 1) & 0xFF;
+		final int si = state[i];
+		j = (j + si) & 0xFF;
+		final int sj = state[j];
+		state[i] = sj;
+		state[j] = si;
+		return state[(si + sj) & 0xFF];
+	}
+
+	/**
+	 * discards keystream, same as running that many bytes through the cipher
+	 */
+	public void skip(int count) {
+		for(int n = 0; n < count; n++) {
+			next();
+		}
+	}
+
+	/**
+	 * transforms the bytes between position and limit in place, the position
+	 * is left where it was
+	 */
+	public void process(ByteBuffer buf) {
+		final java.nio.ByteBuffer nio = buf.buf();
+		final int position = nio.position();
+		final int limit = nio.limit();
+		if(nio.hasArray()) {
+			final byte[] array = nio.array();
+			final int offset = nio.arrayOffset();
+			for(int n = offset + position; n < offset + limit; n++) {
+				array[n] ^= next();
+			}
+		} else {
+			for(int n = position; n < limit; n++) {
+				nio.put(n, (byte) (nio.get(n) ^ next()));
+			}
+		}
+	}
+
+	/**
+	 * for buffers that can't be changed e.g. read only payload slices, reads
+	 * everything remaining in the source and writes the result to the target
+	 */
+	public void process(ByteBuffer in, ByteBuffer out) {
+		while(in.hasRemaining()) {
+			out.put((byte) (in.get() ^ next()));
+		}
+	}
+
+}
@@ -16,26 +16,26 @@
 
 package com.flazr;
 
-import java.net.InetSocketAddress;
-
 import org.apache.mina.common.CloseFuture;
+import org.apache.mina.common.IoFuture;
+import org.apache.mina.common.IoFutureListener;
 import org.apache.mina.common.IoHandlerAdapter;
 import org.apache.mina.common.IoSession;
-import org.apache.mina.filter.codec.ProtocolCodecFactory;
-import org.apache.mina.filter.codec.ProtocolCodecFilter;
-import org.apache.mina.filter.codec.ProtocolDecoder;
-import org.apache.mina.filter.codec.ProtocolEncoder;
-import org.apache.mina.transport.socket.nio.SocketConnector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * handles one session, the connector and its threads are shared by all
+ * sessions via RtmpClientFactory
+ */
 public class RtmpClient extends IoHandlerAdapter {
 	
 	private static final Logger logger = LoggerFactory.getLogger(RtmpClient.class);
 	
 	private IoSession ioSession;
 	private RtmpSession session;
-	private SocketConnector connector;
+	private RtmpClientFactory factory;
+	private boolean disconnected;
 	
 	public static void main(String[] args) {
     	RtmpSession session = new RtmpSession("rtmpe://localhost/vod/mp4:sample1_150kbps.f4v", "test.flv");
@@ -44,20 +44,18 @@ public class RtmpClient extends IoHandlerAdapter {
     	connect(session);    	
 	}
 	
-	private RtmpClient(RtmpSession session) { 
+	RtmpClient(RtmpSession session, RtmpClientFactory factory) { 
 		this.session = session;
-		connector = new SocketConnector();
-		connector.getFilterChain().addLast("crypto", new RtmpeIoFilter());
-		connector.getFilterChain().addLast("codec", new ProtocolCodecFilter(new RtmpCodecFactory()));				
+		this.factory = factory;
 	}
 	
 	public static void connect(RtmpSession session) {
-		RtmpClient client = new RtmpClient(session);	
-		client.connector.connect(new InetSocketAddress(session.getHost(), session.getPort()), client);		
+		RtmpClientFactory.getShared().connect(session);
 	}   
     
     @Override
     public void sessionOpened(IoSession ioSession) {
+    	session.mark(RtmpSession.Phase.TCP_CONNECTED);
     	this.ioSession = ioSession;
     	session.setDecoderOutput(new MinaIoSessionOutput(this));
     	session.putInto(ioSession);
@@ -65,40 +63,43 @@ public class RtmpClient extends IoHandlerAdapter {
         ioSession.write(Handshake.generateClientRequest1(session));      
     }
     
+    @Override
+    public void sessionClosed(IoSession ioSession) {
+    	session.setClosed(ioSession.getReadBytes());
+    	factory.sessionClosed(session);
+    }
+    
     @Override
     public void exceptionCaught(IoSession ioSession, Throwable cause) throws Exception {    		
     	logger.error("exceptionCaught: ", cause);  
     	disconnect();    	
     }
     
-    public void disconnect() {		
-		session.getOutputWriter().close();		
+    public void disconnect() {
+    	synchronized(this) { // may also be called from outside, e.g. to end a load test
+    		if(disconnected) {
+    			return;
+    		}
+    		disconnected = true;
+    	}
+		// the output writer is closed by the factory once the connection is, off the I/O thread
 		logger.info("disconnecting, bytes read: " + ioSession.getReadBytes());
-		connector.setWorkerTimeout(0);		
+		logger.info("message buffer pool: " + session.getBufferPool());
+		logger.info("outbound header bytes saved: " + session.getHeaderBytesSaved());
 		CloseFuture future = ioSession.close();
-		logger.info("closing connection, waiting for thread exit");
-		future.join();
-		logger.info("connection closed successfully");	    	
+		logger.info("closing connection");
+		// no join, this is usually called on the I/O thread which is the one that has to do the closing
+		future.addListener(new IoFutureListener() {
+			public void operationComplete(IoFuture future) {
+				logger.info("connection closed successfully");
+			}
+		});
     }
     
-	private static class RtmpCodecFactory implements ProtocolCodecFactory {
-		
-		private ProtocolEncoder encoder = new RtmpEncoder();
-		private ProtocolDecoder decoder = new RtmpDecoder();
-
-		public ProtocolDecoder getDecoder() {
-			return decoder;
-		}
-
-		public ProtocolEncoder getEncoder() {
-			return encoder;
-		}		
-	}  
-	
 	/**
 	 * implementation used for connecting to a network stream
 	 */
-	private static class MinaIoSessionOutput implements DecoderOutput {
+	private static class MinaIoSessionOutput implements DecoderOutput, ReadThrottle {
 				
 		private RtmpClient client;
 		
@@ -112,6 +113,14 @@ public class RtmpClient extends IoHandlerAdapter {
 
 		public void disconnect() {
 			client.disconnect();			
-		}		
+		}
+		
+		public void suspendRead() {
+			client.ioSession.suspendRead();
+		}
+		
+		public void resumeRead() {
+			client.ioSession.resumeRead();
+		}
 	}	
 }
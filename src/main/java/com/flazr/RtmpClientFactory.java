@@ -0,0 +1,184 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.flazr;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.common.ConnectFuture;
+import org.apache.mina.common.IoFuture;
+import org.apache.mina.common.IoFutureListener;
+import org.apache.mina.filter.codec.ProtocolCodecFactory;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.transport.socket.nio.SocketConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flazr.RtmpSession.Phase;
+
+/**
+ * opens client sessions over one shared SocketConnector, so that all the
+ * sessions are served by a fixed number of I/O processor threads instead of
+ * a connector and its threads per session
+ *
+ * the filters and codec are shared as well, none of them hold state of their
+ * own, everything per session lives in the RtmpSession and the IoSession
+ * attributes
+ *
+ * the connector is created on the first connect and shut down once the last
+ * session has closed, a later connect starts a new one
+ *
+ * output writers are closed on threads of their own once the connection is
+ * closed, closing can take long (draining a write queue, re-writing the file
+ * to move the metadata) and must not hold up the I/O processor, which is
+ * shared with other sessions
+ */
+public class RtmpClientFactory {
+
+	private static final Logger logger = LoggerFactory.getLogger(RtmpClientFactory.class);
+
+	public static final int DEFAULT_PROCESSOR_COUNT = Runtime.getRuntime().availableProcessors();
+
+	private static final RtmpClientFactory shared = new RtmpClientFactory(DEFAULT_PROCESSOR_COUNT);
+
+	private final int processorCount;
+	private SocketConnector connector;
+	private ExecutorService executor;
+	private ExecutorService closer;
+	private int sessionCount;
+	private final PhaseStats phaseStats = new PhaseStats();
+
+	public static RtmpClientFactory getShared() {
+		return shared;
+	}
+
+	public RtmpClientFactory(int processorCount) {
+		if(processorCount < 1) {
+			throw new IllegalArgumentException("processor count must be at least 1: " + processorCount);
+		}
+		this.processorCount = processorCount;
+	}
+
+	public synchronized void connect(final RtmpSession session) {
+		if(connector == null) {
+			start();
+		}
+		sessionCount++;
+		session.mark(Phase.CONNECT);
+		ConnectFuture future = connector.connect(new InetSocketAddress(session.getHost(), session.getPort()), new RtmpClient(session, this));
+		future.addListener(new IoFutureListener() {
+			public void operationComplete(IoFuture future) {
+				if(!((ConnectFuture) future).isConnected()) {
+					logger.error("connect failed: " + session.getHost() + ":" + session.getPort());
+					session.setClosed(0);
+					sessionClosed(session);
+				}
+			}
+		});
+	}
+
+	private void start() {
+		final AtomicInteger count = new AtomicInteger();
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "rtmp-io-" + count.incrementAndGet());
+			}
+		});
+		final AtomicInteger closerCount = new AtomicInteger();
+		closer = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) { // not daemon, the file has to be complete before exit
+				return new Thread(runnable, "writer-closer-" + closerCount.incrementAndGet());
+			}
+		});
+		connector = new SocketConnector(processorCount, executor);
+		connector.getFilterChain().addLast("crypto", new RtmpeIoFilter());
+		connector.getFilterChain().addLast("codec", new ProtocolCodecFilter(new RtmpCodecFactory()));
+		logger.info("started connector, I/O processors: " + processorCount);
+	}
+
+	/**
+	 * called once per session that was connected, the last one to close
+	 * lets the connector threads exit
+	 */
+	synchronized void sessionClosed(RtmpSession session) {
+		phaseStats.add(session);
+		logger.info("session phases, millis: " + PhaseStats.format(session));
+		final OutputWriter writer = session.getOutputWriter();
+		if(writer != null) { // not there if the handshake did not complete
+			closer.execute(new Runnable() {
+				public void run() {
+					try {
+						writer.close();
+					} catch(Exception e) {
+						logger.error("closing output writer failed", e);
+					}
+				}
+			});
+		}
+		if(--sessionCount > 0) {
+			return;
+		}
+		logger.info("startup phases of all sessions so far, millis: " + phaseStats);
+		connector.setWorkerTimeout(0);
+		executor.shutdown(); // processor threads end on their own once they have no sessions left
+		closer.shutdown(); // after closing what was already handed over
+		connector = null;
+		executor = null;
+		closer = null;
+		logger.info("last session closed, connector shut down");
+	}
+
+	public synchronized int getSessionCount() {
+		return sessionCount;
+	}
+
+	public synchronized boolean isRunning() {
+		return connector != null;
+	}
+
+	/**
+	 * startup phases of every session closed so far
+	 */
+	public PhaseStats getPhaseStats() {
+		return phaseStats;
+	}
+
+	public int getProcessorCount() {
+		return processorCount;
+	}
+
+	private static class RtmpCodecFactory implements ProtocolCodecFactory {
+
+		private ProtocolEncoder encoder = new RtmpEncoder();
+		private ProtocolDecoder decoder = new RtmpDecoder();
+
+		public ProtocolDecoder getDecoder() {
+			return decoder;
+		}
+
+		public ProtocolEncoder getEncoder() {
+			return encoder;
+		}
+	}
+
+}
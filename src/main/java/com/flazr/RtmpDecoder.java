@@ -23,6 +23,8 @@ import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.flazr.RtmpSession.Phase;
+
 public class RtmpDecoder extends CumulativeProtocolDecoder {		
 	
 	private static final Logger logger = LoggerFactory.getLogger(RtmpDecoder.class);
@@ -39,6 +41,7 @@ public class RtmpDecoder extends CumulativeProtocolDecoder {
         		return false;
         	}
         	session.setServerHandshakeReceived(true);        	
+        	session.mark(Phase.HANDSHAKE);
     		logger.info("server handshake processed, sending reply");
     		session.send(Handshake.generateClientRequest2(session));    		
     		session.send(new Invoke("connect", 3, session.getConnectParams()));
@@ -46,10 +49,21 @@ public class RtmpDecoder extends CumulativeProtocolDecoder {
     			OutputWriter writer = null;
 	    		if(session.getSaveAsFileName() == null) {
 	    			logger.info("'save as' file name is null, stream will not be saved");
-	    			writer = new DummyWriter(session.getPlayStart());
+	    			writer = new StatsWriter(session.getPlayStart());
+	    		} else if(session.getSegmentMillis() > 0 || session.getSegmentBytes() > 0) {
+	    			writer = new SegmentingWriter(session.getPlayStart(), session.getSaveAsFileName(),
+	    					session.getSegmentMillis(), session.getSegmentBytes(), session.getMetaDataReserve(),
+	    					session.isMappedOutput(), session.getWriteBehindSize(), session.getWriteBehindMillis());
+	    		} else if(session.isMappedOutput()) {
+	    			writer = new MappedFlvWriter(session.getPlayStart(), session.getSaveAsFileName(),
+	    					session.getMetaDataReserve());
 	    		} else {
-	    			writer = new FlvWriter(session.getPlayStart(), session.getSaveAsFileName());
+	    			writer = new FlvWriter(session.getPlayStart(), session.getSaveAsFileName(), session.getMetaDataReserve(),
+	    					session.getWriteBehindSize(), session.getWriteBehindMillis());
 	    		} 
+	    		if(session.getAsyncWriteQueueSize() > 0) {
+	    			writer = new AsyncOutputWriter(writer, session, session.getAsyncWriteQueueSize());
+	    		}
 	    		session.setOutputWriter(writer);
     		}
 			return true;        	
@@ -105,40 +119,36 @@ public class RtmpDecoder extends CumulativeProtocolDecoder {
 				break;
 			case AUDIO_DATA:
 			case VIDEO_DATA:				
+				session.mark(Phase.FIRST_MEDIA);
+				session.addMediaBytes(data.remaining());
 				session.getOutputWriter().write(packet);
 				break;
 			case FLV_DATA:
-				session.getOutputWriter().writeFlvData(data);				
+				session.mark(Phase.FIRST_MEDIA);
+				session.addMediaBytes(data.remaining());
+				session.getOutputWriter().writeFlvData(packet);				
 				break;				
 			case NOTIFY:			
-				AmfObject notify = new AmfObject();
-				notify.decode(data, false);
-				String notifyMethod = notify.getFirstPropertyAsString();
-				logger.info("server notify: " + notify);
+				String notifyMethod = new AmfReader(data).readString();
+				logger.info("server notify: " + notifyMethod);
+				if(logger.isDebugEnabled()) {
+					data.rewind();
+					AmfObject notify = new AmfObject();
+					notify.decode(data, false);
+					logger.debug("server notify: " + notify);
+				}
 				if(notifyMethod.equals("onMetaData")) {
 					logger.info("notify is 'onMetadata', writing metadata");
 					data.rewind();
 					session.getOutputWriter().write(packet);
 				}
 				break;
-			case INVOKE:			
-				Invoke serverInvoke = new Invoke();
-				serverInvoke.decode(packet);				
-				String methodName = serverInvoke.getMethodName();
-				if(methodName.equals("_result")) {
-					session.getInvokeResultHandler().handle(serverInvoke, session);					
-				} else if(methodName.equals("onStatus")) {
-					AmfObject temp = serverInvoke.getSecondArgAsAmfObject();
-					String code = (String) temp.getProperty("code").getValue();					
-					logger.info("onStatus code: " + code);
-					if(code.equals("NetStream.Failed") 
-							|| code.equals("NetStream.Play.Failed") || code.equals("NetStream.Play.Stop")) {
-						logger.info("disconnecting");
-						session.getDecoderOutput().disconnect();
-					}
-				} else {
-					logger.info("unhandled server invoke: " + serverInvoke);
-				}
+			case FLEX_MESSAGE:
+				data.get(); // format, always 0, followed by an AMF0 invoke with AMF3 values
+				invoke(packet, session);
+				break;
+			case INVOKE:
+				invoke(packet, session);
 				break;
 			case BYTES_READ:
 			case SERVER_BANDWIDTH:
@@ -149,7 +159,46 @@ public class RtmpDecoder extends CumulativeProtocolDecoder {
 				throw new RuntimeException("unknown packet type: "  + packet.getHeader());
 		}	
 		
+		packet.release(); // output writer is done with it
+		
 		return true;
 	}  
+	
+	private static void invoke(Packet packet, RtmpSession session) {
+		final ByteBuffer data = packet.getData();
+		final int start = data.position();
+		AmfReader reader = new AmfReader(data);
+		String methodName = reader.readString();
+		if(methodName.equals("_result")) {
+			data.position(start);
+			Invoke serverInvoke = new Invoke();
+			serverInvoke.decode(packet);
+			final String resultFor = session.resultFor(serverInvoke);
+			if("connect".equals(resultFor)) {
+				session.mark(Phase.CONNECT_RESULT);
+			} else if("createStream".equals(resultFor)) {
+				session.mark(Phase.CREATE_STREAM_RESULT);
+			}
+			session.getInvokeResultHandler().handle(serverInvoke, session);					
+		} else if(methodName.equals("onStatus")) {
+			reader.readNumber(); // transaction id
+			reader.skipValue(); // command object, always null
+			String code = reader.readStringProperty("code");					
+			logger.info("onStatus code: " + code);
+			if(code.equals("NetStream.Play.Start")) {
+				session.mark(Phase.PLAY_START);
+			}
+			if(code.equals("NetStream.Failed") 
+					|| code.equals("NetStream.Play.Failed") || code.equals("NetStream.Play.Stop")) {
+				logger.info("disconnecting");
+				session.getDecoderOutput().disconnect();
+			}
+		} else {
+			data.position(start);
+			Invoke serverInvoke = new Invoke();
+			serverInvoke.decode(packet);
+			logger.info("unhandled server invoke: " + serverInvoke);
+		}
+	}
 
 }
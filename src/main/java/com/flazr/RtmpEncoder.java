@@ -52,11 +52,26 @@ public class RtmpEncoder implements ProtocolEncoder {
 		}
                 
     	Packet packet = (Packet) object;
-    	ByteBuffer buffer = packet.encode(session.getChunkSize());
-    	out.write(buffer);    	
-    	if(logger.isDebugEnabled()) {
-    		logger.debug("sent packet data: " + buffer);
-    	}       
+    	// header compression only works if packets hit the wire in the order they
+    	// were compressed, and writes can come from more than one thread
+    	synchronized(session) {
+    		session.addHeaderBytesSaved(packet.getHeader().compress(session.getPrevHeadersOut()));
+	    	if(logger.isDebugEnabled()) {
+	    		logger.debug("sending packet: " + packet);
+	    	}
+	    	final int chunkSize = session.getChunkSize();
+	    	// every buffer is a write request and a write call of its own, so
+	    	// only skip the copy when the chunks are big, and never for RTMPE,
+	    	// which encrypts in place and needs buffers it owns
+	    	if(!session.isEncrypted() && packet.isSliceWorthwhile(chunkSize)) {
+	    		for(ByteBuffer fragment : packet.encodeSliced(chunkSize)) {
+	    			out.write(fragment);
+	    		}
+	    	} else {
+	    		out.write(packet.encode(chunkSize));
+	    	}
+	    	out.flush();
+    	}
 
 	}
 	
@@ -20,10 +20,10 @@ import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.crypto.Cipher;
 import javax.crypto.KeyAgreement;
 
 import org.apache.mina.common.IoSession;
@@ -34,13 +34,32 @@ public class RtmpSession {
 	
 	private static final Logger logger = LoggerFactory.getLogger(RtmpSession.class);
 	
+	/**
+	 * startup milestones in the order they are normally reached, each is
+	 * stamped with System.nanoTime() the first time it happens, see
+	 * {@link RtmpSession#mark(Phase)} and {@link PhaseStats}
+	 */
+	public static enum Phase {
+		
+		CONNECT, // TCP connect started
+		TCP_CONNECTED,
+		HANDSHAKE, // server response S0 S1 S2 processed
+		CONNECT_RESULT,
+		CREATE_STREAM_RESULT,
+		PLAY, // play invoke sent
+		PLAY_START, // NetStream.Play.Start received
+		FIRST_MEDIA, // first audio or video packet decoded
+		CLOSED
+		
+	}
+	
 	private static final String RTMP_SESSION_KEY = "RTMP_SESSION_KEY";	
 	
 	private boolean serverHandshakeReceived;	
 	private boolean handshakeComplete;
-	private Map<Integer, Header> prevHeadersIn = new ConcurrentHashMap<Integer, Header>();
-	private Map<Integer, Header> prevHeadersOut = new ConcurrentHashMap<Integer, Header>();
-	private Map<Integer, Packet> prevPacketsIn = new ConcurrentHashMap<Integer, Packet>();
+	private ChannelTable<Header> prevHeadersIn = new ChannelTable<Header>();
+	private ChannelTable<Header> prevHeadersOut = new ChannelTable<Header>();
+	private ChannelTable<Packet> prevPacketsIn = new ChannelTable<Packet>();
 	private Map<Integer, String> invokedMethods = new ConcurrentHashMap<Integer, String>();	
 	private int chunkSize = 128;
 	private int nextInvokeId;	
@@ -58,14 +77,29 @@ public class RtmpSession {
 	private boolean encrypted;
 	private KeyAgreement keyAgreement;
 	private byte[] clientPublicKey;
-	private Cipher cipherIn;
-	private Cipher cipherOut;
+	private Rc4 cipherIn;
+	private Rc4 cipherOut;
 	private int swfSize;
 	private byte[] swfHash;
 	private byte[] swfVerification;
 	private byte[] clientDigest;
 	private byte[] serverDigest;
 	private byte[] serverResponse;
+	private BufferPool bufferPool = BufferPool.getShared();
+	private int objectEncoding;
+	private int requestedObjectEncoding;
+	private long headerBytesSaved;
+	private DhKeyPool dhKeyPool;
+	private int writeBehindSize;
+	private int writeBehindMillis;
+	private int asyncWriteQueueSize;
+	private boolean mappedOutput;
+	private int segmentMillis;
+	private long segmentBytes;
+	private int metaDataReserve = AbstractFlvWriter.DEFAULT_METADATA_RESERVE;
+	private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+	private volatile long bytesRead;
+	private volatile long mediaBytes; // only the decoding thread adds to it
 	
 	public RtmpSession() { }
 	
@@ -114,7 +148,7 @@ public class RtmpSession {
 		}
 		String tcUrl = (encrypted ? "rtmpe://" : "rtmp://") + host + ":" + port + "/" + app;				
 		connectParams = new HashMap<String, Object>();
-		connectParams.put("objectEncoding", 0);
+		connectParams.put("objectEncoding", requestedObjectEncoding);
 		connectParams.put("app", app);		
 		connectParams.put("flashVer", "WIN 9,0,124,2");
 		connectParams.put("fpad", false);
@@ -143,6 +177,9 @@ public class RtmpSession {
 	
 	public void send(Invoke invoke) {
 		send(invoke.encode(this));
+		if(invoke.getMethodName().equals("play")) {
+			mark(Phase.PLAY);
+		}
 	}
 	
 	public String resultFor(Invoke invoke) {
@@ -161,14 +198,14 @@ public class RtmpSession {
 		initSwfVerification(new File(pathToLocalSwfFile));
 	}
 	
+	/**
+	 * the size and hash are cached process wide, see {@link SwfHashCache}
+	 */
 	public void initSwfVerification(File localSwfFile) {
 		logger.info("initializing swf verification data for: " + localSwfFile.getAbsolutePath());
-    	byte[] bytes = Utils.readAsByteArray(localSwfFile);
-    	logger.info("swf size: " + bytes.length);
-    	byte[] hash = Utils.sha256(bytes, Handshake.CLIENT_CONST);
-    	logger.info("swf hash: " + Utils.toHex(hash));
-    	swfSize = bytes.length;
-    	swfHash = hash;		
+		SwfHashCache.Entry entry = SwfHashCache.get(localSwfFile);
+    	swfSize = entry.getSize();
+    	swfHash = entry.getHash();		
 	}		
 	
 	//==========================================================================
@@ -213,6 +250,10 @@ public class RtmpSession {
 		this.clientDigest = clientDigest;
 	}
 	
+	/**
+	 * complete body of the response to the server swf verification request
+	 * (ping type 0x1B), worked out once during the handshake
+	 */
 	public byte[] getSwfVerification() {
 		return swfVerification;
 	}
@@ -237,19 +278,19 @@ public class RtmpSession {
 		this.swfHash = swfHash;
 	}
 	
-	public Cipher getCipherIn() {
+	public Rc4 getCipherIn() {
 		return cipherIn;
 	}
 	
-	public void setCipherIn(Cipher cipherIn) {
+	public void setCipherIn(Rc4 cipherIn) {
 		this.cipherIn = cipherIn;
 	}
 	
-	public Cipher getCipherOut() {
+	public Rc4 getCipherOut() {
 		return cipherOut;
 	}
 	
-	public void setCipherOut(Cipher cipherOut) {
+	public void setCipherOut(Rc4 cipherOut) {
 		this.cipherOut = cipherOut;
 	}
 	
@@ -357,15 +398,15 @@ public class RtmpSession {
 		this.serverHandshakeReceived = serverHandshakeReceived;
 	}
 	
-	public Map<Integer, Header> getPrevHeadersIn() {
+	public ChannelTable<Header> getPrevHeadersIn() {
 		return prevHeadersIn;
 	}
 	
-	public Map<Integer, Header> getPrevHeadersOut() {
+	public ChannelTable<Header> getPrevHeadersOut() {
 		return prevHeadersOut;
 	}
 	
-	public Map<Integer, Packet> getPrevPacketsIn() {
+	public ChannelTable<Packet> getPrevPacketsIn() {
 		return prevPacketsIn;
 	}
 	
@@ -373,6 +414,218 @@ public class RtmpSession {
 		return chunkSize;
 	}
 	
+	/**
+	 * the object encoding agreed with the server, 0 (AMF0) until the connect
+	 * result says otherwise, see {@link #setRequestedObjectEncoding(int)}
+	 */
+	public int getObjectEncoding() {
+		return objectEncoding;
+	}
+	
+	public void setObjectEncoding(int objectEncoding) {
+		this.objectEncoding = objectEncoding;
+	}
+	
+	public int getRequestedObjectEncoding() {
+		return requestedObjectEncoding;
+	}
+	
+	/**
+	 * the object encoding asked for in the connect call, 0 (AMF0, the default)
+	 * or 3 (AMF3), sets the "objectEncoding" connect parameter, the server
+	 * answers with the one actually used
+	 */
+	public void setRequestedObjectEncoding(int requestedObjectEncoding) {
+		if(requestedObjectEncoding != 0 && requestedObjectEncoding != 3) {
+			throw new IllegalArgumentException("object encoding has to be 0 or 3: " + requestedObjectEncoding);
+		}
+		this.requestedObjectEncoding = requestedObjectEncoding;
+		if(connectParams != null) {
+			connectParams.put("objectEncoding", requestedObjectEncoding);
+		}
+	}
+	
+	/**
+	 * null (the default) means key pairs for encrypted handshakes are generated
+	 * inline, a pool is typically shared by all sessions of a load test
+	 */
+	public DhKeyPool getDhKeyPool() {
+		return dhKeyPool;
+	}
+	
+	public void setDhKeyPool(DhKeyPool dhKeyPool) {
+		this.dhKeyPool = dhKeyPool;
+	}
+	
+	/**
+	 * size of the FlvWriter write-behind buffer, 0 (the default) writes every
+	 * tag to the file as it arrives
+	 */
+	public int getWriteBehindSize() {
+		return writeBehindSize;
+	}
+	
+	public void setWriteBehindSize(int writeBehindSize) {
+		this.writeBehindSize = writeBehindSize;
+	}
+	
+	/**
+	 * if > 0 the write-behind buffer is also written out once the oldest tag in
+	 * it is older than this
+	 */
+	public int getWriteBehindMillis() {
+		return writeBehindMillis;
+	}
+	
+	public void setWriteBehindMillis(int writeBehindMillis) {
+		this.writeBehindMillis = writeBehindMillis;
+	}
+	
+	/**
+	 * size of the onMetaData tag reserved at the start of a saved file, on close
+	 * it is re-written with the duration, file size and keyframe index, 0 saves
+	 * the stream as it arrives
+	 */
+	public int getMetaDataReserve() {
+		return metaDataReserve;
+	}
+	
+	public void setMetaDataReserve(int metaDataReserve) {
+		this.metaDataReserve = metaDataReserve;
+	}
+	
+	/**
+	 * if > 0 the stream is saved as a series of files by a
+	 * {@link SegmentingWriter}, a new one started after this long
+	 */
+	public int getSegmentMillis() {
+		return segmentMillis;
+	}
+	
+	public void setSegmentMillis(int segmentMillis) {
+		this.segmentMillis = segmentMillis;
+	}
+	
+	/**
+	 * if > 0 the stream is saved as a series of files by a
+	 * {@link SegmentingWriter}, a new one started after this many bytes
+	 */
+	public long getSegmentBytes() {
+		return segmentBytes;
+	}
+	
+	public void setSegmentBytes(long segmentBytes) {
+		this.segmentBytes = segmentBytes;
+	}
+	
+	/**
+	 * if true the stream is saved with a {@link MappedFlvWriter} instead of a
+	 * {@link FlvWriter}, the write-behind settings then do not apply
+	 */
+	public boolean isMappedOutput() {
+		return mappedOutput;
+	}
+	
+	public void setMappedOutput(boolean mappedOutput) {
+		this.mappedOutput = mappedOutput;
+	}
+	
+	/**
+	 * if > 0 the output writer runs on the shared disk threads behind a queue
+	 * of this many packets, see {@link AsyncOutputWriter}, 0 (the default)
+	 * writes on the thread that decodes the stream
+	 */
+	public int getAsyncWriteQueueSize() {
+		return asyncWriteQueueSize;
+	}
+	
+	public void setAsyncWriteQueueSize(int asyncWriteQueueSize) {
+		this.asyncWriteQueueSize = asyncWriteQueueSize;
+	}
+	
+	/**
+	 * bytes saved on outbound chunk headers by not always sending LARGE ones
+	 */
+	public long getHeaderBytesSaved() {
+		return headerBytesSaved;
+	}
+	
+	public void addHeaderBytesSaved(int bytes) {
+		headerBytesSaved += bytes;
+	}
+	
+	/**
+	 * records the time of a phase unless it was already reached, costs a
+	 * nanoTime() call and a compare-and-set, so it can always be on
+	 */
+	public void mark(Phase phase) {
+		if(phaseNanos.get(phase.ordinal()) == 0) {
+			phaseNanos.compareAndSet(phase.ordinal(), 0, System.nanoTime());
+		}
+	}
+	
+	/**
+	 * System.nanoTime() when the phase was reached, 0 if not (yet)
+	 */
+	public long getPhaseNanos(Phase phase) {
+		return phaseNanos.get(phase.ordinal());
+	}
+	
+	public boolean isReached(Phase phase) {
+		return phaseNanos.get(phase.ordinal()) != 0;
+	}
+	
+	/**
+	 * nanos from one phase to another, -1 if either was not reached
+	 */
+	public long getPhaseNanos(Phase from, Phase to) {
+		final long start = getPhaseNanos(from);
+		final long end = getPhaseNanos(to);
+		return start == 0 || end == 0 ? -1 : end - start;
+	}
+	
+	public boolean isClosed() {
+		return isReached(Phase.CLOSED);
+	}
+	
+	/**
+	 * bytes read from the socket, set when the connection is closed
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+	
+	/**
+	 * audio, video and aggregate message payload bytes decoded so far
+	 */
+	public long getMediaBytes() {
+		return mediaBytes;
+	}
+	
+	public void addMediaBytes(int count) {
+		mediaBytes += count;
+	}
+	
+	/**
+	 * also hands the buffers of messages that were still being re-assembled
+	 * back to the pool
+	 */
+	public void setClosed(long bytesRead) {
+		this.bytesRead = bytesRead;
+		for(Packet packet : prevPacketsIn.clear()) {
+			packet.release();
+		}
+		mark(Phase.CLOSED);
+	}
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
 	public void setChunkSize(int chunkSize) {
 		this.chunkSize = chunkSize;
 	}
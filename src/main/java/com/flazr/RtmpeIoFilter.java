@@ -40,13 +40,7 @@ public class RtmpeIoFilter extends IoFilterAdapter {
             return;			
 		}				
 		ByteBuffer buf = (ByteBuffer) message;
-		int initial = buf.position();
-		byte[] encrypted = new byte[buf.remaining()];
-		buf.get(encrypted);		
-		byte[] plain = session.getCipherIn().update(encrypted);
-		buf.position(initial);
-		buf.put(plain);
-		buf.position(initial);
+		session.getCipherIn().process(buf); // in place
 		nextFilter.messageReceived(ioSession, buf);
 	}
 	
@@ -62,13 +56,17 @@ public class RtmpeIoFilter extends IoFilterAdapter {
             // ignore empty buffers
             nextFilter.filterWrite(ioSession, writeRequest);
         } else {       	
-        	int initial = buf.position();
-			byte[] plain = new byte[buf.remaining()];
-			buf.get(plain);			
-			byte[] encrypted = session.getCipherOut().update(plain);
-			buf.position(initial);
-			buf.put(encrypted);
-			buf.position(initial);
+			// the encoder hands over buffers it owns, a read only one can only come
+			// from somewhere else, send an encrypted copy of that instead
+			if(buf.isReadOnly()) {
+				ByteBuffer encrypted = ByteBuffer.allocate(buf.remaining());
+				session.getCipherOut().process(buf, encrypted);
+				encrypted.flip();
+				buf.release();
+				buf = encrypted;
+			} else {
+				session.getCipherOut().process(buf); // in place
+			}
             nextFilter.filterWrite(ioSession, new WriteRequest(buf, writeRequest.getFuture()));
         }		
 	}
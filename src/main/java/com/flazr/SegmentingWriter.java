@@ -0,0 +1,302 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.common.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flazr.Packet.Type;
+
+/**
+ * saves the stream as a series of self-contained FLV files (name-00001.flv,
+ * name-00002.flv and so on), a new segment is started at the first video
+ * keyframe after the segment reached the configured duration or size, every
+ * segment starts at time zero with the last onMetaData and the audio and video
+ * codec sequence headers seen so far
+ *
+ * the next segment file is opened ahead of time and the previous one closed
+ * (which includes its metadata re-write) on a small pool of threads shared by
+ * all recordings, so rotating costs the decoding thread nothing more than
+ * writing the cached tags
+ *
+ * segments are written by FlvWriter, with its write-behind buffer if set, or
+ * by MappedFlvWriter
+ */
+public class SegmentingWriter implements OutputWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(SegmentingWriter.class);
+
+	private static final int THREADS = 2;
+
+	private static final ExecutorService shared = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "segment-writer-" + count.incrementAndGet());
+			thread.setDaemon(true); // close() waits for what it has to
+			return thread;
+		}
+	});
+
+	private final WriterStatus status;
+	private final String prefix;
+	private final String suffix;
+	private final int segmentMillis;
+	private final long segmentBytes;
+	private final int metaDataReserve;
+	private final boolean mapped;
+	private final int writeBehindSize;
+	private final int writeBehindMillis;
+	private AbstractFlvWriter segment;
+	private Future<AbstractFlvWriter> next;
+	private final List<Future<?>> closing = new ArrayList<Future<?>>();
+	private int segmentCount;
+	private int segmentStart = -1;
+	private byte[] metaData;
+	private byte[] videoSequenceHeader;
+	private byte[] audioSequenceHeader;
+
+	public SegmentingWriter(int seekTime, String fileName, int segmentMillis, long segmentBytes, int metaDataReserve) {
+		this(seekTime, fileName, segmentMillis, segmentBytes, metaDataReserve, false, 0, 0);
+	}
+
+	/**
+	 * @param segmentMillis start a new segment after this long, 0 for no limit
+	 * @param segmentBytes start a new segment after this many bytes, 0 for no limit
+	 * @param mapped write segments with MappedFlvWriter, the write-behind settings do not apply then
+	 * @param writeBehindSize see {@link FlvWriter}
+	 */
+	public SegmentingWriter(int seekTime, String fileName, int segmentMillis, long segmentBytes, int metaDataReserve,
+			boolean mapped, int writeBehindSize, int writeBehindMillis) {
+		status = new WriterStatus(seekTime);
+		final int dot = fileName.lastIndexOf('.');
+		if(dot > fileName.lastIndexOf(File.separatorChar)) {
+			prefix = fileName.substring(0, dot);
+			suffix = fileName.substring(dot);
+		} else {
+			prefix = fileName;
+			suffix = ".flv";
+		}
+		this.segmentMillis = segmentMillis;
+		this.segmentBytes = segmentBytes;
+		this.metaDataReserve = metaDataReserve;
+		this.mapped = mapped;
+		this.writeBehindSize = writeBehindSize;
+		this.writeBehindMillis = writeBehindMillis;
+		logger.info("segment duration millis: " + segmentMillis + ", size: " + segmentBytes
+				+ (mapped ? ", memory mapped" : ", write-behind size: " + writeBehindSize));
+		next = openAhead();
+		segment = take();
+	}
+
+	public String getSegmentFileName(int number) {
+		return prefix + "-" + String.format("%05d", number) + suffix;
+	}
+
+	private Future<AbstractFlvWriter> openAhead() {
+		final String fileName = getSegmentFileName(++segmentCount);
+		return shared.submit(new Callable<AbstractFlvWriter>() {
+			public AbstractFlvWriter call() {
+				if(mapped) {
+					return new MappedFlvWriter(0, fileName, metaDataReserve);
+				}
+				return new FlvWriter(0, fileName, metaDataReserve, writeBehindSize, writeBehindMillis);
+			}
+		});
+	}
+
+	private AbstractFlvWriter take() {
+		try {
+			AbstractFlvWriter writer = next.get(); // usually done long ago
+			next = openAhead();
+			return writer;
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch(ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	public synchronized void write(Packet packet) {
+		Header header = packet.getHeader();
+		write(header.getPacketType(), packet.getData(), status.getChannelAbsoluteTime(header));
+	}
+
+	/**
+	 * tag by tag as any of them could start a new segment, each written as a
+	 * slice of the message
+	 */
+	public synchronized void writeFlvData(Packet packet) {
+		final int messageTime = status.getChannelAbsoluteTime(packet.getHeader());
+		final ByteBuffer data = packet.getData();
+		int firstTagTime = -1;
+		int time = messageTime;
+		while(data.remaining() >= 11) {
+			Type packetType = Type.parseByte(data.get());
+			int size = Utils.readInt24(data);
+			int timestamp = Utils.readInt24(data) | (data.get() & 0xff) << 24;
+			data.position(data.position() + 3); // stream id
+			if(firstTagTime == -1) {
+				firstTagTime = timestamp;
+			}
+			time = WriterStatus.getAggregateTagTime(messageTime, firstTagTime, timestamp);
+			java.nio.ByteBuffer slice = data.buf().slice();
+			slice.limit(size);
+			write(packetType, ByteBuffer.wrap(slice), time);
+			data.position(data.position() + size + 4); // previous tag size
+		}
+		status.updateVideoChannelTime(time);
+	}
+
+	public synchronized void write(Type packetType, ByteBuffer data, int time) {
+		switch(packetType) {
+			case NOTIFY:
+				if(isMetaData(data)) {
+					metaData = copy(data);
+				}
+				break;
+			case VIDEO_DATA:
+				if(isSequenceHeader(data, 7)) {
+					videoSequenceHeader = copy(data);
+				} else if(data.limit() > 0 && (data.get(0) & 0xf0) == 0x10 && isDue(time)) {
+					rotate(time);
+				}
+				break;
+			case AUDIO_DATA:
+				if(isSequenceHeader(data, 10)) {
+					audioSequenceHeader = copy(data);
+				}
+				break;
+		}
+		if(segmentStart == -1) {
+			segmentStart = time;
+		}
+		segment.write(packetType, data, Math.max(0, time - segmentStart));
+	}
+
+	private static boolean isMetaData(ByteBuffer data) {
+		try {
+			return "onMetaData".equals(new AmfReader(data).readString());
+		} catch(RuntimeException e) { // not starting with a string
+			return false;
+		} finally {
+			data.position(0);
+		}
+	}
+
+	/**
+	 * AVC (codec 7) and AAC (sound format 10) have a configuration packet
+	 * that must precede the frames
+	 */
+	private static boolean isSequenceHeader(ByteBuffer data, int codec) {
+		if(data.limit() < 2 || data.get(1) != 0) {
+			return false;
+		}
+		final int first = data.get(0) & 0xff;
+		return codec == 7 ? (first & 0x0f) == 7 : first >> 4 == codec;
+	}
+
+	private boolean isDue(int time) {
+		if(segmentStart == -1) {
+			return false;
+		}
+		return (segmentMillis > 0 && time - segmentStart >= segmentMillis)
+				|| (segmentBytes > 0 && segment.getPosition() >= segmentBytes);
+	}
+
+	private void rotate(int time) {
+		final AbstractFlvWriter previous = segment;
+		segment = take();
+		segmentStart = time;
+		for(Iterator<Future<?>> i = closing.iterator(); i.hasNext(); ) {
+			if(i.next().isDone()) {
+				i.remove();
+			}
+		}
+		closing.add(shared.submit(new Runnable() {
+			public void run() {
+				previous.close();
+			}
+		}));
+		if(metaData != null) {
+			segment.write(Type.NOTIFY, ByteBuffer.wrap(metaData), 0);
+		}
+		if(videoSequenceHeader != null) {
+			segment.write(Type.VIDEO_DATA, ByteBuffer.wrap(videoSequenceHeader), 0);
+		}
+		if(audioSequenceHeader != null) {
+			segment.write(Type.AUDIO_DATA, ByteBuffer.wrap(audioSequenceHeader), 0);
+		}
+		logger.info("started segment " + (segmentCount - 1) + " at time " + time);
+	}
+
+	private static byte[] copy(ByteBuffer data) {
+		byte[] bytes = new byte[data.limit()];
+		data.get(bytes);
+		data.position(0);
+		return bytes;
+	}
+
+	/**
+	 * closes the last segment and waits for the earlier ones to be closed, the
+	 * segment opened ahead is deleted
+	 */
+	public synchronized void close() {
+		segment.close();
+		try {
+			AbstractFlvWriter unused = next.get();
+			unused.closeFile();
+			if(!unused.getFile().delete()) {
+				logger.warn("failed to delete: " + unused.getFile());
+			}
+		} catch(Exception e) {
+			logger.warn("failed to remove the unused segment", e);
+		}
+		for(Future<?> future : closing) {
+			try {
+				future.get();
+			} catch(InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch(ExecutionException e) {
+				logger.error("failed to close segment", e.getCause());
+			}
+		}
+		closing.clear();
+		logger.info("segments written: " + getSegmentCount());
+		status.logFinalVideoDuration();
+	}
+
+	/**
+	 * segments started so far
+	 */
+	public int getSegmentCount() {
+		return segmentCount - 1; // one is always opened ahead
+	}
+
+}
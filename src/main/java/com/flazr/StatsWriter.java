@@ -0,0 +1,162 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import org.apache.mina.common.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flazr.Packet.Type;
+
+/**
+ * output writer that saves nothing but measures the stream, used when no
+ * file name is set, for load testing, counts and bytes per packet type,
+ * bitrate, media time against wall clock time, inter-arrival jitter and
+ * stalls (gaps between media packets longer than a threshold), everything is
+ * kept in primitive fields and histograms so that recording a packet does not
+ * allocate, see {@link #getStats()}
+ */
+public class StatsWriter implements OutputWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(StatsWriter.class);
+
+	public static final int DEFAULT_STALL_MILLIS = 1000;
+
+	private static final long NANOS_PER_MILLI = 1000000;
+	private static final long WINDOW_NANOS = 1000 * NANOS_PER_MILLI;
+
+	private final WriterStatus status;
+	private final long stallNanos;
+	private final long[] packets = new long[Type.values().length];
+	private final long[] bytes = new long[Type.values().length];
+	private final Histogram jitterHistogram = new Histogram();
+	private final Histogram stallHistogram = new Histogram();
+	private long firstArrival = -1;
+	private long lastArrival = -1;
+	private long lastMediaArrival = -1;
+	private int firstMediaTime = -1;
+	private int lastMediaTime = -1;
+	private int maxMediaTime = -1; // audio and video interleave, not always ascending
+	private long windowStart = -1;
+	private long windowBytes;
+	private long lastBitrate;
+	private long peakBitrate;
+	private double jitter;
+	private StreamStats stats;
+
+	public StatsWriter(int seekTime) {
+		this(seekTime, DEFAULT_STALL_MILLIS);
+	}
+
+	public StatsWriter(int seekTime, int stallMillis) {
+		status = new WriterStatus(seekTime);
+		stallNanos = stallMillis * NANOS_PER_MILLI;
+	}
+
+	public synchronized void write(Packet packet) {
+		final Header header = packet.getHeader();
+		final Type type = header.getPacketType();
+		if(type == Type.AUDIO_DATA || type == Type.VIDEO_DATA) {
+			record(type, packet.getData().limit(), status.getChannelAbsoluteTime(header));
+		} else {
+			record(type, packet.getData().limit(), -1);
+		}
+	}
+
+	public synchronized void writeFlvData(Packet packet) {
+		final int messageTime = status.getChannelAbsoluteTime(packet.getHeader());
+		final ByteBuffer data = packet.getData();
+		final int size = data.limit();
+		int firstTagTime = -1;
+		int time = messageTime;
+		for(int offset = data.position(); offset + 11 <= size;) {
+			final int tagSize = (data.get(offset + 1) & 0xff) << 16 | (data.get(offset + 2) & 0xff) << 8 | (data.get(offset + 3) & 0xff);
+			final int timestamp = (data.get(offset + 4) & 0xff) << 16 | (data.get(offset + 5) & 0xff) << 8
+					| (data.get(offset + 6) & 0xff) | (data.get(offset + 7) & 0xff) << 24;
+			if(firstTagTime == -1) {
+				firstTagTime = timestamp;
+			}
+			time = WriterStatus.getAggregateTagTime(messageTime, firstTagTime, timestamp);
+			offset += 11 + tagSize + 4;
+		}
+		status.updateVideoChannelTime(time);
+		record(Type.FLV_DATA, size, time);
+	}
+
+	/**
+	 * @param mediaTime -1 for packets that are not audio or video
+	 */
+	private void record(Type type, int size, int mediaTime) {
+		final long now = System.nanoTime();
+		packets[type.ordinal()]++;
+		bytes[type.ordinal()] += size;
+		if(firstArrival == -1) {
+			firstArrival = now;
+			windowStart = now;
+		}
+		lastArrival = now;
+		windowBytes += size;
+		if(now - windowStart >= WINDOW_NANOS) {
+			lastBitrate = windowBytes * 8 * 1000000000L / (now - windowStart);
+			if(lastBitrate > peakBitrate) {
+				peakBitrate = lastBitrate;
+			}
+			windowStart = now;
+			windowBytes = 0;
+		}
+		if(mediaTime == -1) {
+			return;
+		}
+		if(lastMediaArrival != -1) {
+			final long arrivalGap = now - lastMediaArrival;
+			final long difference = Math.abs(arrivalGap / NANOS_PER_MILLI - (mediaTime - lastMediaTime));
+			jitterHistogram.record(difference);
+			jitter += (difference - jitter) / 16;
+			if(arrivalGap >= stallNanos) {
+				stallHistogram.record(arrivalGap / NANOS_PER_MILLI);
+			}
+		}
+		if(firstMediaTime == -1) {
+			firstMediaTime = mediaTime;
+		}
+		lastMediaArrival = now;
+		lastMediaTime = mediaTime;
+		if(mediaTime > maxMediaTime) {
+			maxMediaTime = mediaTime;
+		}
+	}
+
+	/**
+	 * a snapshot of the stats so far, after close() the final ones
+	 */
+	public synchronized StreamStats getStats() {
+		if(stats != null) {
+			return stats;
+		}
+		final long wallMillis = firstArrival == -1 ? 0 : (lastArrival - firstArrival) / NANOS_PER_MILLI;
+		final long mediaMillis = firstMediaTime == -1 ? 0 : maxMediaTime - firstMediaTime;
+		return new StreamStats(packets.clone(), bytes.clone(), wallMillis, mediaMillis, lastBitrate, peakBitrate,
+				jitter, jitterHistogram.copy(), stallHistogram.copy());
+	}
+
+	public synchronized void close() {
+		stats = getStats();
+		logger.info("stream stats: " + stats);
+		status.logFinalVideoDuration();
+	}
+
+}
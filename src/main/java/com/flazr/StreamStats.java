@@ -0,0 +1,156 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import com.flazr.Packet.Type;
+
+/**
+ * snapshot of what a {@link StatsWriter} recorded for one session, times are
+ * in milliseconds and bitrates in bits per second
+ */
+public class StreamStats {
+
+	private final long[] packets;
+	private final long[] bytes;
+	private final long wallMillis;
+	private final long mediaMillis;
+	private final long lastBitrate;
+	private final long peakBitrate;
+	private final double jitter;
+	private final Histogram jitterHistogram;
+	private final Histogram stallHistogram;
+
+	StreamStats(long[] packets, long[] bytes, long wallMillis, long mediaMillis, long lastBitrate, long peakBitrate,
+			double jitter, Histogram jitterHistogram, Histogram stallHistogram) {
+		this.packets = packets;
+		this.bytes = bytes;
+		this.wallMillis = wallMillis;
+		this.mediaMillis = mediaMillis;
+		this.lastBitrate = lastBitrate;
+		this.peakBitrate = peakBitrate;
+		this.jitter = jitter;
+		this.jitterHistogram = jitterHistogram;
+		this.stallHistogram = stallHistogram;
+	}
+
+	public long getPackets(Type type) {
+		return packets[type.ordinal()];
+	}
+
+	public long getBytes(Type type) {
+		return bytes[type.ordinal()];
+	}
+
+	public long getTotalPackets() {
+		long total = 0;
+		for(long count : packets) {
+			total += count;
+		}
+		return total;
+	}
+
+	public long getTotalBytes() {
+		long total = 0;
+		for(long count : bytes) {
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * from the first to the last packet received
+	 */
+	public long getWallMillis() {
+		return wallMillis;
+	}
+
+	/**
+	 * stream time covered by the packets received
+	 */
+	public long getMediaMillis() {
+		return mediaMillis;
+	}
+
+	/**
+	 * media time over wall clock time, below 1 the stream is not keeping up
+	 * with real time
+	 */
+	public double getRealtimeRatio() {
+		return wallMillis == 0 ? 0 : (double) mediaMillis / wallMillis;
+	}
+
+	public long getAverageBitrate() {
+		return wallMillis == 0 ? 0 : getTotalBytes() * 8 * 1000 / wallMillis;
+	}
+
+	/**
+	 * over the last complete second
+	 */
+	public long getLastBitrate() {
+		return lastBitrate;
+	}
+
+	public long getPeakBitrate() {
+		return peakBitrate;
+	}
+
+	/**
+	 * running estimate of the inter-arrival jitter (as in RFC 3550)
+	 */
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * difference between the arrival gap and the media time gap of consecutive
+	 * media packets
+	 */
+	public Histogram getJitterHistogram() {
+		return jitterHistogram;
+	}
+
+	/**
+	 * the length of every gap between media packets longer than the stall threshold
+	 */
+	public Histogram getStallHistogram() {
+		return stallHistogram;
+	}
+
+	public long getStallCount() {
+		return stallHistogram.getCount();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("packets: ").append(getTotalPackets()).append(", bytes: ").append(getTotalBytes());
+		for(Type type : Type.values()) {
+			if(packets[type.ordinal()] > 0) {
+				sb.append(", ").append(type).append(": ").append(packets[type.ordinal()])
+					.append('/').append(bytes[type.ordinal()]);
+			}
+		}
+		sb.append(", wall millis: ").append(wallMillis).append(", media millis: ").append(mediaMillis);
+		sb.append(", realtime ratio: ").append(Math.round(getRealtimeRatio() * 100) / 100.0);
+		sb.append(", bitrate avg/last/peak: ").append(getAverageBitrate()).append('/').append(lastBitrate)
+			.append('/').append(peakBitrate);
+		sb.append(", jitter: ").append(Math.round(jitter * 10) / 10.0).append(" [").append(jitterHistogram).append(']');
+		sb.append(", stalls: [").append(stallHistogram).append(']');
+		return sb.toString();
+	}
+
+}
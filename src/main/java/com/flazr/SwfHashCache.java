@@ -0,0 +1,127 @@
+/*
+ * Copyright 2002-2005 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.flazr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * process wide cache of the size and hash of local SWF files used for SWF
+ * verification, so that many sessions using the same player SWF only read and
+ * hash it once, an entry is re-computed when the file modification time or size
+ * changes, on a miss the file is streamed through the HMAC in chunks and never
+ * loaded into the heap as a whole
+ */
+public class SwfHashCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(SwfHashCache.class);
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	public static class Entry {
+
+		private final long lastModified;
+		private final int size;
+		private final byte[] hash;
+
+		private Entry(long lastModified, int size, byte[] hash) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.hash = hash;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * shared, must not be modified
+		 */
+		public byte[] getHash() {
+			return hash;
+		}
+
+	}
+
+	private static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	private SwfHashCache() { }
+
+	public static Entry get(File file) {
+		final String path = file.getAbsolutePath();
+		final long lastModified = file.lastModified();
+		final long length = file.length();
+		Entry entry = entries.get(path);
+		if(entry != null && entry.lastModified == lastModified && entry.size == length) {
+			hits.incrementAndGet();
+			return entry;
+		}
+		misses.incrementAndGet();
+		// two sessions missing at the same time both hash, harmless
+		entry = new Entry(lastModified, (int) length, hash(file));
+		entries.put(path, entry);
+		logger.info("swf size: " + entry.size + ", hash: " + Utils.toHex(entry.hash) + " for: " + path);
+		return entry;
+	}
+
+	private static byte[] hash(File file) {
+		HmacSha256 hmac = HmacSha256.get().init(Handshake.CLIENT_CONST);
+		byte[] chunk = new byte[CHUNK_SIZE];
+		FileInputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			int read;
+			while((read = is.read(chunk)) >= 0) {
+				hmac.update(chunk, 0, read);
+			}
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if(is != null) {
+				try {
+					is.close();
+				} catch(IOException e) {
+					logger.warn("failed to close: " + file, e);
+				}
+			}
+		}
+		return hmac.doFinal();
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	public static void clear() {
+		entries.clear();
+	}
+
+}
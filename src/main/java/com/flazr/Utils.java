@@ -20,9 +20,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
-
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import java.io.UnsupportedEncodingException;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
@@ -65,6 +63,81 @@ public class Utils {
 		out.put((byte) (0xFF & (value >> 24)));
 	}
 	
+	public static String readUtf8(ByteBuffer in, int length) {
+		final byte[] bytes;
+		final int offset;
+		if(in.isDirect() || in.isReadOnly()) {
+			bytes = new byte[length];
+			offset = 0;
+			in.get(bytes);
+		} else { // decode straight from the backing array
+			bytes = in.array();
+			offset = in.arrayOffset() + in.position();
+			in.skip(length);
+		}
+		try {
+			return new String(bytes, offset, length, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * @return the number of bytes the string takes up encoded as UTF-8
+	 */
+	public static int utf8Length(String value) {
+		final int length = value.length();
+		int bytes = length;
+		for(int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if(c >= 0x800) {
+				if(Character.isHighSurrogate(c)) {
+					bytes += 2; // 4 bytes for 2 chars
+					i++;
+				} else {
+					bytes += 2;
+				}
+			} else if(c >= 0x80) {
+				bytes++;
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * encodes straight into the buffer without going through a byte[]
+	 */
+	public static void writeUtf8(ByteBuffer out, String value) {
+		final int length = value.length();
+		for(int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if(c < 0x80) {
+				out.put((byte) c);
+			} else if(c < 0x800) {
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			} else if(Character.isHighSurrogate(c) && i + 1 < length) {
+				final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				out.put((byte) (0xF0 | (codePoint >> 18)));
+				out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (codePoint & 0x3F)));
+			} else {
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+	
+	public static byte[] toUtf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	private static final char[] HEX_DIGITS = { 
 		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 
 		'A', 'B', 'C', 'D', 'E', 'F' };	
@@ -178,23 +251,34 @@ public class Utils {
 	}	
 	
 	public static void convert(String inFileName, String outFileName) {
-		FlvWriter flvWriter = new FlvWriter(0, outFileName);
+		convert(ByteBuffer.wrap(readAsByteArray(inFileName)),
+				new FlvWriter(0, outFileName, AbstractFlvWriter.DEFAULT_METADATA_RESERVE, 0, 0));
+	}
+	
+	/**
+	 * replays a raw capture of what the server sent, from the handshake
+	 * response on (already decrypted for RTMPE), through the decoder into
+	 * the writer, and closes the writer
+	 * 
+	 * @return the session used for decoding
+	 */
+	public static RtmpSession convert(ByteBuffer in, OutputWriter writer) {
 		DecoderOutput decoderOutput = new DecoderOutput() {
 			public void write(Object packet) { }			
 			public void disconnect() { }
 		};
 		RtmpSession session = new RtmpSession();
-		session.setOutputWriter(flvWriter);
+		session.setOutputWriter(writer);
 		session.setDecoderOutput(decoderOutput);
 		session.setInvokeResultHandler(new DefaultInvokeResultHandler());
-		byte[] bytes = readAsByteArray(inFileName);						
-		ByteBuffer buf = ByteBuffer.wrap(bytes);	
 		int prevPosition = -1;
-		while(prevPosition < buf.position()) {
-			prevPosition = buf.position();
-			RtmpDecoder.decode(buf, session);			
+		while(prevPosition < in.position()) {
+			prevPosition = in.position();
+			RtmpDecoder.decode(in, session);			
 		}
-		flvWriter.close();
+		session.setClosed(in.position());
+		writer.close();
+		return session;
 	}
 	
     public static String getOverHttp(String url) {        
@@ -212,15 +296,11 @@ public class Utils {
         return response;
     }	
     
+	/**
+	 * HMAC-SHA256, see {@link HmacSha256} for digesting without building the message first
+	 */
 	public static byte[] sha256(byte[] message, byte[] key) {
-        Mac mac;
-        try {
-			mac = Mac.getInstance("HmacSHA256");
-			mac.init(new SecretKeySpec(key, "HmacSHA256"));
-        } catch(Exception e) {
-        	throw new RuntimeException(e);
-        }
-		return mac.doFinal(message);
+		return HmacSha256.get().init(key).digest(message);
 	}   
 	
 	public static Packet hexToPacket(String hex) {
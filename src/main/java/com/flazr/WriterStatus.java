@@ -16,9 +16,6 @@
 
 package com.flazr;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,7 +25,8 @@ public class WriterStatus {
 	
 	private static final Logger logger = LoggerFactory.getLogger(WriterStatus.class);
 	
-	private Map<Integer, Integer> channelTimeMap = new ConcurrentHashMap<Integer, Integer>();
+	// one int[1] per channel so that tracking the time does not box per packet
+	private ChannelTable<int[]> channelTimes = new ChannelTable<int[]>();
 	private int videoChannel = -1;
 	private double lastLoggedSeconds;	
 	private int seekTime;
@@ -38,22 +36,25 @@ public class WriterStatus {
 	}
 	
 	public void logFinalVideoDuration() {
-		Integer time = channelTimeMap.get(videoChannel);
+		int[] time = videoChannel == -1 ? null : channelTimes.get(videoChannel);
 		if(time == null) {
 			logger.warn("video duration is null");
 			return;
 		}
-		logger.info("final video duration: " + (time - seekTime) / 1000 + " seconds, start (seek) time: " + seekTime);		
+		logger.info("final video duration: " + (time[0] - seekTime) / 1000 + " seconds, start (seek) time: " + seekTime);		
 	}
 	
 	public int getChannelAbsoluteTime(Header header) {
 		final int channelId = header.getChannelId();		
-		Integer channelTime = channelTimeMap.get(channelId);		
-		if(channelTime == null) { // first packet
+		int[] time = channelTimes.get(channelId);		
+		if(time == null) { // first packet
 			logger.debug("first packet!");
-			channelTime = seekTime;
+			time = new int[] { seekTime };
+			channelTimes.put(channelId, time);
 		}
-		if(videoChannel == -1 && header.getPacketType() == Type.VIDEO_DATA) {
+		int channelTime = time[0];
+		// aggregate messages carry the video too when the server uses them
+		if(videoChannel == -1 && (header.getPacketType() == Type.VIDEO_DATA || header.getPacketType() == Type.FLV_DATA)) {
 			videoChannel = channelId;			
 			logger.info("video channel id is: " + videoChannel);			
 		}
@@ -62,18 +63,26 @@ public class WriterStatus {
 		} else {
 			channelTime = seekTime + header.getTime();
 		}
-		channelTimeMap.put(channelId, channelTime);
+		time[0] = channelTime;
 		if(header.getPacketType() == Type.VIDEO_DATA) {
 			logVideoProgress(channelTime);
 		}
 		return channelTime;
 	}
 	
+	/**
+	 * the timestamps of the tags in an aggregate (FLV_DATA) message are in the
+	 * time base of the server, the first tag is at the time of the message
+	 */
+	public static int getAggregateTagTime(int messageTime, int firstTagTime, int tagTime) {
+		return Math.max(0, messageTime + tagTime - firstTagTime);
+	}
+	
 	public void updateVideoChannelTime(int time) {
 		if(videoChannel == -1) {
 			throw new RuntimeException("video channel id not initialized!");
 		}			
-		channelTimeMap.put(videoChannel, time); // absolute
+		channelTimes.get(videoChannel)[0] = time; // absolute
 		logVideoProgress(time);
 	}
 	
@@ -0,0 +1,59 @@
+package com.flazr;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * encode + decode throughput and encoded size of AMF0 versus AMF3 for a
+ * payload with lots of repetition (a list of status objects), run with main()
+ */
+public class AmfBenchmark {
+
+	private static final int ITERATIONS = 20000;
+
+	private static ByteBuffer buffer() {
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024, false);
+		buf.setAutoExpand(true);
+		return buf;
+	}
+
+	private static long amf0(AmfObject list, ByteBuffer buf) {
+		long bytes = 0;
+		for(int i = 0; i < ITERATIONS; i++) {
+			buf.clear();
+			new AmfProperty(null, list, AmfProperty.Type.ARRAY).encode(buf);
+			buf.flip();
+			bytes += buf.remaining();
+			new AmfReader(buf).readValue();
+		}
+		return bytes;
+	}
+
+	private static long amf3(AmfObject list, ByteBuffer buf) {
+		long bytes = 0;
+		for(int i = 0; i < ITERATIONS; i++) {
+			buf.clear();
+			new Amf3Writer(buf).writeValue(list);
+			buf.flip();
+			bytes += buf.remaining();
+			new Amf3Reader(buf).readValue();
+		}
+		return bytes;
+	}
+
+	public static void main(String[] args) {
+		AmfObject list = AmfTest.statusList(20);
+		ByteBuffer buf = buffer();
+		for(int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			long bytes0 = amf0(list, buf);
+			long time0 = System.nanoTime() - start;
+			start = System.nanoTime();
+			long bytes3 = amf3(list, buf);
+			long time3 = System.nanoTime() - start;
+			System.out.println("round " + round
+					+ ": AMF0 " + bytes0 / ITERATIONS + " bytes, " + time0 / ITERATIONS + " ns/op"
+					+ ", AMF3 " + bytes3 / ITERATIONS + " bytes, " + time3 / ITERATIONS + " ns/op");
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+public class AmfTest {
+
+	private static ByteBuffer onStatus() {
+		AmfObject info = new AmfObject();
+		info.put("level", "status");
+		info.put("code", "NetStream.Play.Start");
+		info.put("description", "Started playing");
+		ByteBuffer body = AmfProperty.encode("onStatus", 0, null, info);
+		body.flip();
+		return body;
+	}
+
+	@Test
+	public void testReadStringProperty() {
+		AmfReader reader = new AmfReader(onStatus());
+		assertEquals("onStatus", reader.readString());
+		assertEquals(0, reader.readNumber(), 0);
+		reader.skipValue();
+		assertEquals("NetStream.Play.Start", reader.readStringProperty("code"));
+		reader = new AmfReader(onStatus());
+		reader.skipValue();
+		reader.skipValue();
+		reader.skipValue();
+		assertNull(reader.readStringProperty("missing"));
+		assertFalse(reader.hasNext());
+	}
+
+	@Test
+	public void testKeysAreCached() {
+		AmfObject first = new AmfObject();
+		first.decode(onStatus(), false);
+		AmfObject second = new AmfObject();
+		second.decode(onStatus(), false);
+		String key = ((AmfObject) first.getProperties().get(3).getValue()).getProperties().get(1).getName();
+		assertEquals("code", key);
+		assertSame(key, ((AmfObject) second.getProperties().get(3).getValue()).getProperties().get(1).getName());
+	}
+
+	@Test
+	public void testDecodeMaterialized() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("app", "vod");
+		map.put("fpad", false);
+		map.put("capabilities", 15);
+		ByteBuffer body = AmfProperty.encode("connect", 1, new AmfObject(map));
+		body.flip();
+		AmfObject object = new AmfObject();
+		object.decode(body, false);
+		assertEquals("connect", object.getFirstPropertyAsString());
+		AmfObject params = (AmfObject) object.getProperties().get(2).getValue();
+		assertEquals("vod", params.getProperty("app").getValue());
+		assertEquals(Boolean.FALSE, params.getProperty("fpad").getValue());
+		assertEquals(15.0, params.getProperty("capabilities").getValue());
+		assertFalse(body.hasRemaining());
+	}
+
+	static AmfObject statusList(int count) {
+		AmfObject list = new AmfObject();
+		for(int i = 0; i < count; i++) {
+			AmfObject status = new AmfObject();
+			status.setClassName("com.flazr.Status");
+			status.put("level", "status");
+			status.put("code", "NetStream.Play.Start");
+			status.put("clientid", i);
+			status.put("bytes", 1.5 * i);
+			list.put(status);
+		}
+		return list;
+	}
+
+	private static Object amf3RoundTrip(Object value) {
+		ByteBuffer out = ByteBuffer.allocate(1024);
+		out.setAutoExpand(true);
+		new Amf3Writer(out).writeValue(value);
+		out.flip();
+		Object result = new Amf3Reader(out).readValue();
+		assertFalse(out.hasRemaining());
+		return result;
+	}
+
+	@Test
+	public void testAmf3Scalars() {
+		assertNull(amf3RoundTrip(null));
+		assertEquals(Boolean.TRUE, amf3RoundTrip(true));
+		assertEquals(Boolean.FALSE, amf3RoundTrip(false));
+		assertEquals(0.0, amf3RoundTrip(0));
+		assertEquals(268435455.0, amf3RoundTrip(268435455));
+		assertEquals(-268435456.0, amf3RoundTrip(-268435456));
+		assertEquals(268435456.0, amf3RoundTrip(268435456));
+		assertEquals(-1.0, amf3RoundTrip(-1));
+		assertEquals(3.25, amf3RoundTrip(3.25));
+		assertEquals("", amf3RoundTrip(""));
+		assertEquals("h\u00e9llo", amf3RoundTrip("h\u00e9llo"));
+		assertEquals(new Date(1234567890L), amf3RoundTrip(new Date(1234567890L)));
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) amf3RoundTrip(new byte[] { 1, 2, 3 })));
+	}
+
+	@Test
+	public void testAmf3Objects() {
+		AmfObject list = statusList(3);
+		AmfObject mixed = new AmfObject();
+		mixed.put("name", "mixed");
+		mixed.put("first");
+		mixed.put(list);
+		mixed.put(list); // same instance, sent as a reference
+		AmfObject result = (AmfObject) amf3RoundTrip(mixed);
+		assertEquals(mixed.toString(), result.toString());
+		assertSame(result.getProperties().get(2).getValue(), result.getProperties().get(3).getValue());
+		AmfObject status = (AmfObject) ((AmfObject) result.getProperties().get(2).getValue()).getProperties().get(1).getValue();
+		assertEquals("com.flazr.Status", status.getClassName());
+		assertEquals(1.5, status.getProperty("bytes").getValue());
+	}
+
+	@Test
+	public void testAmf3InsideAmf0() {
+		ByteBuffer out = ByteBuffer.allocate(1024);
+		AmfProperty.encode(out, "onStatus", 0, null);
+		AmfObject info = new AmfObject();
+		info.put("level", "status");
+		info.put("code", "NetStream.Play.Start");
+		new AmfProperty(null, info, AmfProperty.Type.AVMPLUS).encode(out);
+		out.flip();
+		AmfReader reader = new AmfReader(out);
+		assertEquals("onStatus", reader.readString());
+		reader.readNumber();
+		reader.skipValue();
+		assertEquals("NetStream.Play.Start", reader.readStringProperty("code"));
+		assertFalse(reader.hasNext());
+	}
+
+	@Test
+	public void testAmf3SmallerForRepeatedPayloads() {
+		AmfObject list = statusList(50);
+		ByteBuffer amf0 = ByteBuffer.allocate(1024);
+		amf0.setAutoExpand(true);
+		new AmfProperty(null, list, AmfProperty.Type.ARRAY).encode(amf0);
+		ByteBuffer amf3 = ByteBuffer.allocate(1024);
+		amf3.setAutoExpand(true);
+		new Amf3Writer(amf3).writeValue(list);
+		assertTrue(amf3.position() * 3 < amf0.position());
+	}
+
+	@Test
+	public void testEncodeExactSize() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("app", "v\u00f6d");
+		map.put("tcUrl", "rtmp://localhost/\u4e2d\u6587/\ud834\udd1e");
+		map.put("capabilities", 15);
+		map.put("videoFunction", 1L);
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 2000; i++) {
+			sb.append("pageUrl-");
+		}
+		map.put("pageUrl", sb.toString()); // would not have fit in 1024 bytes
+		Date date = new Date(1234567890L);
+		ByteBuffer body = AmfProperty.encode("connect", 1, new AmfObject(map), map, date);
+		int expected = 0;
+		for(Object value : new Object[] { "connect", 1, new AmfObject(map), map, date }) {
+			expected += new AmfProperty(value).getEncodedSize();
+		}
+		assertEquals(expected, body.position());
+		body.flip();
+		AmfReader reader = new AmfReader(body);
+		assertEquals("connect", reader.readString());
+		assertEquals(1, reader.readNumber(), 0);
+		AmfObject params = (AmfObject) reader.readValue();
+		assertEquals("rtmp://localhost/\u4e2d\u6587/\ud834\udd1e", params.getProperty("tcUrl").getValue());
+		assertEquals(sb.toString(), params.getProperty("pageUrl").getValue());
+		assertEquals(1.0, params.getProperty("videoFunction").getValue());
+		AmfObject ecmaArray = (AmfObject) reader.readValue(); // MAP, end marker included
+		assertEquals(params.toString(), ecmaArray.toString());
+		assertEquals(date, reader.readValue());
+		assertFalse(reader.hasNext());
+	}
+
+	@Test
+	public void testAmf3SizeOf() {
+		AmfObject list = statusList(20);
+		ByteBuffer out = ByteBuffer.allocate(1024);
+		out.setAutoExpand(true);
+		Amf3Writer writer = new Amf3Writer(out);
+		writer.writeValue(list);
+		assertEquals(out.position(), writer.getSize());
+		assertEquals(out.position(), Amf3Writer.sizeOf(list));
+	}
+
+	@Test
+	public void testAmf3TypedObjectWithUnnamedProperties() {
+		AmfObject object = new AmfObject();
+		object.setClassName("com.flazr.Status");
+		object.put("code", "NetStream.Play.Start");
+		object.put("unnamed");
+		ByteBuffer out = ByteBuffer.allocate(64);
+		try {
+			new Amf3Writer(out).writeValue(object);
+			fail("typed object with unnamed properties should not encode");
+		} catch(RuntimeException e) {
+			assertEquals("typed object with unnamed properties: com.flazr.Status", e.getMessage());
+		}
+		assertEquals(0, out.position());
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+public class AsyncOutputWriterTest {
+
+	private static class SlowWriter implements OutputWriter {
+
+		private final List<Integer> times = new CopyOnWriteArrayList<Integer>();
+		private volatile boolean closed;
+
+		public void write(Packet packet) {
+			try {
+				Thread.sleep(2);
+			} catch(InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			assertEquals(packet.getHeader().getTime(), packet.getData().getInt());
+			times.add(packet.getHeader().getTime());
+		}
+
+		public void writeFlvData(Packet packet) { }
+
+		public void close() {
+			closed = true;
+		}
+
+	}
+
+	private static class CountingOutput implements DecoderOutput, ReadThrottle {
+
+		private final AtomicInteger suspended = new AtomicInteger();
+		private final AtomicInteger resumed = new AtomicInteger();
+
+		public void write(Object packet) { }
+
+		public void disconnect() { }
+
+		public void suspendRead() {
+			suspended.incrementAndGet();
+		}
+
+		public void resumeRead() {
+			resumed.incrementAndGet();
+		}
+
+	}
+
+	@Test
+	public void testQueuedInOrderAndThrottled() {
+		RtmpSession session = new RtmpSession();
+		CountingOutput decoderOutput = new CountingOutput();
+		session.setDecoderOutput(decoderOutput);
+		SlowWriter slow = new SlowWriter();
+		AsyncOutputWriter writer = new AsyncOutputWriter(slow, session, 8);
+		Header header = new Header(Header.Type.MEDIUM, 6, Packet.Type.AUDIO_DATA);
+		ByteBuffer data = ByteBuffer.allocate(4);
+		Packet packet = new Packet(header, data);
+		for(int i = 0; i < 50; i++) {
+			header.setTime(i); // the decoder re-uses header and data, the writer must copy
+			data.clear();
+			data.putInt(i);
+			data.flip();
+			writer.write(packet);
+		}
+		writer.close();
+		assertTrue(slow.closed);
+		assertEquals(50, slow.times.size());
+		for(int i = 0; i < 50; i++) {
+			assertEquals(i, slow.times.get(i).intValue());
+		}
+		assertEquals(50, writer.getWritten());
+		assertEquals(0, writer.getQueueDepth());
+		assertTrue(writer.getMaxQueueDepth() >= 6);
+		assertTrue(writer.getAverageLatencyNanos() > 0);
+		assertTrue(decoderOutput.suspended.get() > 0);
+		assertEquals(decoderOutput.suspended.get(), decoderOutput.resumed.get());
+		assertEquals(decoderOutput.suspended.get(), writer.getSuspendCount());
+	}
+
+}
@@ -0,0 +1,392 @@
+package com.flazr;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * generated stand-ins for raw captures of what a server sends, the handshake
+ * response followed by the chunk stream of a 2 Mbps audio / video stream,
+ * deterministic so that the same bytes come out every time, along with what
+ * an FLV written from the capture has to contain
+ *
+ * - chunk-128, chunk-4096, chunk-65536: one stream, server chunk size
+ * - aggregate: the media sent as FLV_DATA aggregate messages
+ * - rtmpe: chunk-4096 RC4 encrypted with {@link #RTMPE_KEY}, the way an RTMPE
+ * session looks on the wire after the handshake
+ * - channels: the media spread over 40 channels (some needing two and three
+ * byte basic headers) with the chunks of different messages interleaved
+ */
+public class CaptureCorpus {
+
+	public static final byte[] RTMPE_KEY = "0123456789abcdef".getBytes();
+
+	private static final int FPS = 25;
+	private static final int AUDIO_FRAMES = 44;
+	private static final int AUDIO_SIZE = 128 * 1000 / 8 / AUDIO_FRAMES;
+	private static final int FRAME_SIZE = 1872 * 1000 / 8 / FPS;
+	private static final int KEYFRAME_SIZE = FRAME_SIZE * 10;
+	private static final int STREAM_ID = 1;
+	private static final int AUDIO_CHANNEL = 4;
+	private static final int VIDEO_CHANNEL = 5;
+	private static final int AGGREGATE_TAGS = 10;
+
+	public static class Capture {
+
+		private final String name;
+		private final byte[] bytes;
+		private final boolean encrypted;
+		private final Expected expected;
+
+		public Capture(String name, byte[] bytes, boolean encrypted, Expected expected) {
+			this.name = name;
+			this.bytes = bytes;
+			this.encrypted = encrypted;
+			this.expected = expected;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * RC4 encrypted after the handshake response
+		 */
+		public boolean isEncrypted() {
+			return encrypted;
+		}
+
+		public Expected getExpected() {
+			return expected;
+		}
+
+	}
+
+	/**
+	 * audio and video tags as a count, total payload size and a sum of the
+	 * CRC32 of type and payload of each, so the order does not matter (it
+	 * depends on how the chunks were interleaved)
+	 */
+	public static class Expected {
+
+		private long tags;
+		private long bytes;
+		private long crcSum;
+
+		public void add(Packet.Type type, java.nio.ByteBuffer payload) {
+			CRC32 crc = new CRC32();
+			crc.update(type.byteValue());
+			byte[] bytes = new byte[payload.remaining()];
+			payload.duplicate().get(bytes);
+			crc.update(bytes);
+			tags++;
+			this.bytes += bytes.length;
+			crcSum += crc.getValue();
+		}
+
+		public long getTags() {
+			return tags;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Expected)) {
+				return false;
+			}
+			Expected e = (Expected) o;
+			return tags == e.tags && bytes == e.bytes && crcSum == e.crcSum;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) crcSum;
+		}
+
+		@Override
+		public String toString() {
+			return "tags: " + tags + ", bytes: " + bytes + ", crc sum: " + crcSum;
+		}
+
+	}
+
+	private static class Message {
+
+		private final Packet.Type type;
+		private final int time;
+		private final byte[] data;
+
+		public Message(Packet.Type type, int time, byte[] data) {
+			this.type = type;
+			this.time = time;
+			this.data = data;
+		}
+
+	}
+
+	public static List<Capture> generate(int seconds) {
+		List<Capture> captures = new ArrayList<Capture>();
+		captures.add(single("chunk-128", seconds, 128));
+		captures.add(single("chunk-4096", seconds, 4096));
+		captures.add(single("chunk-65536", seconds, 65536));
+		captures.add(aggregate(seconds));
+		captures.add(rtmpe(seconds));
+		captures.add(channels(seconds));
+		return captures;
+	}
+
+	private static List<Message> media(int seconds, Random random) {
+		List<Message> messages = new ArrayList<Message>();
+		final int interFrameSize = (FRAME_SIZE * FPS * 2 - KEYFRAME_SIZE) / (FPS * 2 - 1);
+		int frames = 0;
+		for(int second = 0; second < seconds; second++) {
+			int v = 0;
+			int a = 0;
+			while(v < FPS || a < AUDIO_FRAMES) {
+				final int videoTime = second * 1000 + v * 1000 / FPS;
+				final int audioTime = second * 1000 + a * 1000 / AUDIO_FRAMES;
+				if(a == AUDIO_FRAMES || (v < FPS && videoTime <= audioTime)) {
+					final boolean keyframe = frames++ % (FPS * 2) == 0;
+					// sizes vary a bit so that not every header compresses to TINY
+					byte[] data = bytes(random, (keyframe ? KEYFRAME_SIZE : interFrameSize) - random.nextInt(200));
+					data[0] = (byte) (keyframe ? 0x17 : 0x27);
+					data[1] = 1;
+					messages.add(new Message(Packet.Type.VIDEO_DATA, videoTime, data));
+					v++;
+				} else {
+					byte[] data = bytes(random, AUDIO_SIZE);
+					data[0] = (byte) 0xaf;
+					data[1] = 1;
+					messages.add(new Message(Packet.Type.AUDIO_DATA, audioTime, data));
+					a++;
+				}
+			}
+		}
+		return messages;
+	}
+
+	private static byte[] bytes(Random random, int size) {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static ByteBuffer buffer() {
+		ByteBuffer out = ByteBuffer.allocate(1024 * 1024, false);
+		out.setAutoExpand(true);
+		return out;
+	}
+
+	private static byte[] toBytes(ByteBuffer out) {
+		out.flip();
+		byte[] bytes = new byte[out.remaining()];
+		out.get(bytes);
+		return bytes;
+	}
+
+	private static void handshake(ByteBuffer out, Random random) {
+		out.put((byte) 0x03);
+		out.put(bytes(random, 1536 * 2));
+	}
+
+	private static Packet packet(int channelId, Packet.Type type, int time, byte[] data) {
+		Header header = new Header(Header.Type.LARGE, channelId, type);
+		header.setTime(time);
+		header.setStreamId(type == Packet.Type.CHUNK_SIZE ? 0 : STREAM_ID);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		buf.position(buf.limit()); // the constructor flips
+		return new Packet(header, buf);
+	}
+
+	private static void put(ByteBuffer out, ByteBuffer[] fragments, int from, int to) {
+		for(int i = from; i < to; i++) {
+			out.put(fragments[i]);
+			fragments[i].release();
+		}
+	}
+
+	/**
+	 * encoded like RtmpEncoder does, header compression against what was
+	 * sent on the channel before
+	 */
+	private static ByteBuffer[] encode(Packet packet, ChannelTable<Header> prevHeaders, int chunkSize) {
+		packet.getHeader().compress(prevHeaders);
+		return packet.encodeSliced(chunkSize);
+	}
+
+	private static void send(ByteBuffer out, Packet packet, ChannelTable<Header> prevHeaders, int chunkSize) {
+		ByteBuffer[] fragments = encode(packet, prevHeaders, chunkSize);
+		put(out, fragments, 0, fragments.length);
+	}
+
+	/**
+	 * chunk size (if not the default), Play.Start, onMetaData
+	 */
+	private static void start(ByteBuffer out, ChannelTable<Header> prevHeaders, int chunkSize) {
+		if(chunkSize != 128) {
+			ByteBuffer data = ByteBuffer.allocate(4);
+			data.putInt(chunkSize);
+			send(out, packet(2, Packet.Type.CHUNK_SIZE, 0, toBytes(data)), prevHeaders, 128);
+		}
+		send(out, onStatus("NetStream.Play.Start"), prevHeaders, chunkSize);
+		Map<String, Object> metaData = new LinkedHashMap<String, Object>();
+		metaData.put("width", 1280.0);
+		metaData.put("height", 720.0);
+		metaData.put("framerate", (double) FPS);
+		metaData.put("videocodecid", 7.0);
+		metaData.put("audiocodecid", 10.0);
+		ByteBuffer data = AmfProperty.encode("onMetaData", new AmfObject(metaData));
+		send(out, packet(5, Packet.Type.NOTIFY, 0, toBytes(data)), prevHeaders, chunkSize);
+	}
+
+	private static Packet onStatus(String code) {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("level", "status");
+		status.put("code", code);
+		Packet packet = new Invoke(STREAM_ID, "onStatus", 5, null, new AmfObject(status)).encode(new RtmpSession());
+		packet.getHeader().setStreamId(STREAM_ID);
+		return packet;
+	}
+
+	private static byte[] stream(int seconds, int chunkSize, Random random, Expected expected) {
+		ByteBuffer out = buffer();
+		handshake(out, random);
+		ChannelTable<Header> prevHeaders = new ChannelTable<Header>();
+		start(out, prevHeaders, chunkSize);
+		for(Message message : media(seconds, random)) {
+			final int channelId = message.type == Packet.Type.AUDIO_DATA ? AUDIO_CHANNEL : VIDEO_CHANNEL;
+			expected.add(message.type, java.nio.ByteBuffer.wrap(message.data));
+			send(out, packet(channelId, message.type, message.time, message.data), prevHeaders, chunkSize);
+		}
+		send(out, onStatus("NetStream.Play.Stop"), prevHeaders, chunkSize);
+		return toBytes(out);
+	}
+
+	private static Capture single(String name, int seconds, int chunkSize) {
+		Expected expected = new Expected();
+		return new Capture(name, stream(seconds, chunkSize, new Random(chunkSize), expected), false, expected);
+	}
+
+	private static Capture rtmpe(int seconds) {
+		Expected expected = new Expected();
+		byte[] bytes = stream(seconds, 4096, new Random(4096), expected);
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		buf.position(1 + 1536 * 2);
+		new Rc4(RTMPE_KEY).process(buf); // in place
+		return new Capture("rtmpe", bytes, true, expected);
+	}
+
+	private static Capture aggregate(int seconds) {
+		final int chunkSize = 4096;
+		Random random = new Random(1);
+		Expected expected = new Expected();
+		ByteBuffer out = buffer();
+		handshake(out, random);
+		ChannelTable<Header> prevHeaders = new ChannelTable<Header>();
+		start(out, prevHeaders, chunkSize);
+		List<Message> messages = media(seconds, random);
+		for(int i = 0; i < messages.size(); i += AGGREGATE_TAGS) {
+			ByteBuffer tags = buffer();
+			List<Message> group = messages.subList(i, Math.min(messages.size(), i + AGGREGATE_TAGS));
+			for(Message message : group) {
+				expected.add(message.type, java.nio.ByteBuffer.wrap(message.data));
+				tags.put(message.type.byteValue());
+				Utils.writeInt24(tags, message.data.length);
+				Utils.writeInt24(tags, message.time);
+				tags.put((byte) 0); // extended time
+				Utils.writeInt24(tags, 0); // stream id
+				tags.put(message.data);
+				tags.putInt(message.data.length + 11);
+			}
+			send(out, packet(VIDEO_CHANNEL, Packet.Type.FLV_DATA, group.get(0).time, toBytes(tags)), prevHeaders, chunkSize);
+		}
+		send(out, onStatus("NetStream.Play.Stop"), prevHeaders, chunkSize);
+		return new Capture("aggregate", toBytes(out), false, expected);
+	}
+
+	/**
+	 * every message goes to one of 40 channels, and chunks are sent round
+	 * robin over the channels that have a message in progress, a channel
+	 * only starts its next message once the previous one is out
+	 */
+	private static Capture channels(int seconds) {
+		final int chunkSize = 128;
+		final int[] channelIds = new int[40];
+		for(int i = 0; i < channelIds.length; i++) {
+			channelIds[i] = i < 35 ? 3 + i : new int[] { 64, 100, 319, 320, 400 }[i - 35];
+		}
+		Random random = new Random(40);
+		Expected expected = new Expected();
+		ByteBuffer out = buffer();
+		handshake(out, random);
+		ChannelTable<Header> prevHeaders = new ChannelTable<Header>();
+		start(out, prevHeaders, chunkSize);
+		List<LinkedList<ByteBuffer[]>> queues = new ArrayList<LinkedList<ByteBuffer[]>>();
+		for(int i = 0; i < channelIds.length; i++) {
+			queues.add(new LinkedList<ByteBuffer[]>());
+		}
+		int n = 0;
+		for(Message message : media(seconds, random)) {
+			final int index = n++ % channelIds.length;
+			expected.add(message.type, java.nio.ByteBuffer.wrap(message.data));
+			// compressed in the order the messages go out on the channel, which is the order queued
+			queues.get(index).add(encode(packet(channelIds[index], message.type, message.time, message.data), prevHeaders, chunkSize));
+		}
+		int[] next = new int[channelIds.length]; // next fragment of the head message per channel
+		boolean pending = true;
+		while(pending) {
+			pending = false;
+			for(int i = 0; i < channelIds.length; i++) {
+				LinkedList<ByteBuffer[]> queue = queues.get(i);
+				if(queue.isEmpty()) {
+					continue;
+				}
+				pending = true;
+				ByteBuffer[] fragments = queue.getFirst();
+				put(out, fragments, next[i], Math.min(fragments.length, next[i] + 2)); // chunk header and payload
+				next[i] += 2;
+				if(next[i] >= fragments.length) {
+					queue.removeFirst();
+					next[i] = 0;
+				}
+			}
+		}
+		send(out, onStatus("NetStream.Play.Stop"), prevHeaders, chunkSize);
+		return new Capture("channels", toBytes(out), false, expected);
+	}
+
+	/**
+	 * the audio and video tags of an FLV file
+	 */
+	public static Expected read(byte[] flv) {
+		Expected found = new Expected();
+		java.nio.ByteBuffer in = java.nio.ByteBuffer.wrap(flv);
+		in.position(13); // file header and the first previous tag size
+		while(in.remaining() >= 11) {
+			final Packet.Type type = Packet.Type.parseByte(in.get());
+			final int size = (in.get() & 0xff) << 16 | (in.get() & 0xff) << 8 | (in.get() & 0xff);
+			in.position(in.position() + 7);
+			java.nio.ByteBuffer payload = in.slice();
+			payload.limit(size);
+			if(type == Packet.Type.AUDIO_DATA || type == Packet.Type.VIDEO_DATA) {
+				found.add(type, payload);
+			}
+			in.position(in.position() + size + 4);
+		}
+		return found;
+	}
+
+}
@@ -0,0 +1,284 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flazr.CaptureCorpus.Capture;
+import com.flazr.CaptureCorpus.Expected;
+
+/**
+ * replays the capture corpus through RtmpDecoder the way Utils.convert does,
+ * RTMPE captures are decrypted first in socket read sized pieces like
+ * RtmpeIoFilter would
+ *
+ * the FLV written for every capture must contain exactly the media that was
+ * sent, and with -Dflazr.perf.enforce=true (mvn test -Pperf) decode MB/s and
+ * bytes allocated per MB of capture are measured and compared against
+ * src/test/resources/perf-baseline.properties, failing if worse than the
+ * tolerance set there, -Dflazr.perf.writeBaseline=file writes the numbers
+ * measured as a new baseline instead and -Dflazr.captures=dir adds recorded
+ * captures (raw bytes from the server handshake response on, decrypted) to
+ * what is measured
+ */
+public class CaptureReplayTest {
+
+	private static final Logger logger = LoggerFactory.getLogger(CaptureReplayTest.class);
+
+	private static final int SECONDS = 5;
+	private static final int PERF_SECONDS = 20;
+	private static final long WARMUP_NANOS = 1000 * 1000000L;
+	private static final long ROUND_NANOS = 200 * 1000000L;
+	private static final int ROUNDS = 11;
+	private static final int HANDSHAKE_SIZE = 1 + 1536 * 2;
+	private static final int READ_SIZE = 1460;
+	private static final double MB = 1024 * 1024;
+	private static final long ALLOCATION_SLACK = 1024; // bytes per MB, so that tiny baselines do not fail on noise
+
+	private static final String BASELINE = "/perf-baseline.properties";
+
+	private static final Method allocatedBytes = allocatedBytesMethod();
+
+	private static class Result {
+
+		private final String name;
+		private final double mbPerSecond;
+		private final long allocatedPerMb;
+
+		public Result(String name, double mbPerSecond, long allocatedPerMb) {
+			this.name = name;
+			this.mbPerSecond = mbPerSecond;
+			this.allocatedPerMb = allocatedPerMb;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%-12s %8.1f MB/s %10d bytes allocated per MB", name, mbPerSecond, allocatedPerMb);
+		}
+
+	}
+
+	private static Method allocatedBytesMethod() {
+		try { // HotSpot and derivatives only
+			Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+			if(!type.isInstance(ManagementFactory.getThreadMXBean())) {
+				return null;
+			}
+			return type.getMethod("getThreadAllocatedBytes", long.class);
+		} catch(Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * by the current thread so far, -1 if the JVM cannot tell
+	 */
+	private static long allocatedBytes() {
+		if(allocatedBytes == null) {
+			return -1;
+		}
+		try {
+			return (Long) allocatedBytes.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+		} catch(Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * a fresh copy of the capture in the work array (aggregates are
+	 * rewritten in place), decrypted if need be
+	 */
+	private static ByteBuffer input(Capture capture, byte[] work) {
+		final int length = capture.getBytes().length;
+		System.arraycopy(capture.getBytes(), 0, work, 0, length);
+		ByteBuffer in = ByteBuffer.wrap(work, 0, length);
+		if(capture.isEncrypted()) {
+			Rc4 rc4 = new Rc4(CaptureCorpus.RTMPE_KEY);
+			for(int position = HANDSHAKE_SIZE; position < length; position += READ_SIZE) {
+				in.limit(Math.min(length, position + READ_SIZE));
+				in.position(position);
+				rc4.process(in);
+			}
+			in.limit(length);
+			in.position(0);
+		}
+		return in;
+	}
+
+	@Test
+	public void testReplayIntoFlvWriter() throws Exception {
+		for(Capture capture : CaptureCorpus.generate(SECONDS)) {
+			File file = File.createTempFile("replay", ".flv");
+			file.deleteOnExit();
+			RtmpSession session = Utils.convert(input(capture, new byte[capture.getBytes().length]),
+					new FlvWriter(0, file.getPath(), AbstractFlvWriter.DEFAULT_METADATA_RESERVE, 0, 0));
+			final Expected expected = capture.getExpected();
+			assertEquals(capture.getName(), expected, CaptureCorpus.read(Utils.readAsByteArray(file)));
+			// aggregate messages carry an 11 byte header and 4 byte size around every tag
+			final long overhead = capture.getName().equals("aggregate") ? expected.getTags() * 15 : 0;
+			assertEquals(capture.getName(), expected.getBytes() + overhead, session.getMediaBytes());
+			file.delete();
+		}
+	}
+
+	/**
+	 * replays for a second to warm up, then for a number of rounds of a fixed
+	 * time each, the throughput is the median of the rounds (the fastest
+	 * round is too much at the mercy of the machine) and the allocation the
+	 * least seen per replay
+	 */
+	private static Result measure(Capture capture) {
+		final byte[] work = new byte[capture.getBytes().length];
+		final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+		while(System.nanoTime() - warmupEnd < 0) {
+			Utils.convert(input(capture, work), new StatsWriter(0));
+		}
+		final double mb = work.length / MB;
+		final double[] mbPerSecond = new double[ROUNDS];
+		long leastAllocated = Long.MAX_VALUE;
+		for(int round = 0; round < ROUNDS; round++) {
+			final long allocatedBefore = allocatedBytes();
+			final long start = System.nanoTime();
+			long nanos;
+			int replays = 0;
+			do {
+				Utils.convert(input(capture, work), new StatsWriter(0));
+				replays++;
+				nanos = System.nanoTime() - start;
+			} while(nanos < ROUND_NANOS);
+			mbPerSecond[round] = replays * mb / (nanos / 1e9);
+			leastAllocated = Math.min(leastAllocated, (allocatedBytes() - allocatedBefore) / replays);
+		}
+		Arrays.sort(mbPerSecond);
+		return new Result(capture.getName(), mbPerSecond[ROUNDS / 2],
+				allocatedBytes == null ? -1 : Math.round(leastAllocated / mb));
+	}
+
+	private static List<Capture> recorded() {
+		List<Capture> captures = new ArrayList<Capture>();
+		final String dir = System.getProperty("flazr.captures");
+		if(dir == null) {
+			return captures;
+		}
+		File[] files = new File(dir).listFiles();
+		if(files == null) {
+			throw new RuntimeException("not a directory: " + dir);
+		}
+		for(File file : files) {
+			if(file.isFile()) {
+				captures.add(new Capture(file.getName(), Utils.readAsByteArray(file), false, null));
+			}
+		}
+		return captures;
+	}
+
+	private static Properties baseline() throws IOException {
+		Properties properties = new Properties();
+		InputStream in = CaptureReplayTest.class.getResourceAsStream(BASELINE);
+		assertNotNull("missing " + BASELINE, in);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	private static double tolerance(Properties baseline, String name) {
+		return Double.parseDouble(System.getProperty("flazr.perf." + name, baseline.getProperty(name)));
+	}
+
+	private static void writeBaseline(String fileName, List<Result> results, Properties previous) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(fileName));
+		try {
+			out.println("# decode throughput (median MB/s) and bytes allocated per MB of capture for each");
+			out.println("# generated capture, see CaptureReplayTest, enforced by mvn test -Pperf");
+			out.println("# regenerate on the machine that enforces it with");
+			out.println("#   mvn test -Pperf -Dflazr.perf.writeBaseline=src/test/resources/perf-baseline.properties");
+			out.println();
+			out.println("# how much worse than the baseline is still a pass, 0.5 = 50%, throughput depends a lot on");
+			out.println("# the machine and what else runs on it, allocation hardly varies from run to run");
+			out.println("throughputTolerance=" + previous.getProperty("throughputTolerance"));
+			out.println("allocationTolerance=" + previous.getProperty("allocationTolerance"));
+			for(Result result : results) {
+				out.println();
+				out.println(result.name + ".mbPerSecond=" + Math.round(result.mbPerSecond));
+				out.println(result.name + ".allocatedPerMb=" + result.allocatedPerMb);
+			}
+		} finally {
+			out.close();
+		}
+		logger.info("written new baseline: " + fileName);
+	}
+
+	@Test
+	public void testThroughputAndAllocation() throws Exception {
+		final String writeBaseline = System.getProperty("flazr.perf.writeBaseline");
+		Assume.assumeTrue(Boolean.getBoolean("flazr.perf.enforce") || writeBaseline != null);
+		Properties baseline = baseline();
+		List<Result> generated = new ArrayList<Result>();
+		for(Capture capture : CaptureCorpus.generate(PERF_SECONDS)) {
+			generated.add(measure(capture));
+		}
+		StringBuilder report = new StringBuilder("capture replay:");
+		for(Result result : generated) {
+			report.append("\n").append(result);
+		}
+		for(Capture capture : recorded()) {
+			report.append("\n").append(measure(capture)).append(" (recorded, no baseline)");
+		}
+		logger.info(report.toString());
+		if(writeBaseline != null) {
+			writeBaseline(writeBaseline, generated, baseline);
+			return;
+		}
+		final double throughputTolerance = tolerance(baseline, "throughputTolerance");
+		final double allocationTolerance = tolerance(baseline, "allocationTolerance");
+		List<String> failures = new ArrayList<String>();
+		for(Result result : generated) {
+			final String mbPerSecond = baseline.getProperty(result.name + ".mbPerSecond");
+			if(mbPerSecond == null) {
+				failures.add(result.name + ": no baseline");
+				continue;
+			}
+			final double minimum = Double.parseDouble(mbPerSecond) * (1 - throughputTolerance);
+			if(result.mbPerSecond < minimum) {
+				failures.add(String.format(Locale.US, "%s: %.1f MB/s, baseline %s, minimum %.1f",
+						result.name, result.mbPerSecond, mbPerSecond, minimum));
+			}
+			final long allocatedBaseline = Long.parseLong(baseline.getProperty(result.name + ".allocatedPerMb"));
+			final long maximum = Math.round(allocatedBaseline * (1 + allocationTolerance)) + ALLOCATION_SLACK;
+			if(result.allocatedPerMb > maximum) {
+				failures.add(result.name + ": " + result.allocatedPerMb + " bytes allocated per MB, baseline "
+						+ allocatedBaseline + ", maximum " + maximum);
+			}
+		}
+		assertTrue("performance regression:\n" + join(failures), failures.isEmpty());
+	}
+
+	private static String join(List<String> lines) {
+		StringBuilder sb = new StringBuilder();
+		for(String line : lines) {
+			sb.append(line).append('\n');
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,65 @@
+package com.flazr;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * compares the per chunk channel state lookups done by Header.decode and
+ * Packet.decode (two header gets, one header put, one packet get) using the
+ * old boxed map against the array backed table, run with main()
+ */
+public class ChannelTableBenchmark {
+
+	private static final int CHUNKS = 10 * 1000 * 1000;
+	private static final int[] CHANNELS = { 2, 3, 4, 5, 8, 5, 5, 5, 4, 5 };
+
+	private static long runMap(Map<Integer, Header> headers, Map<Integer, Packet> packets, Header header) {
+		long hits = 0;
+		for(int i = 0; i < CHUNKS; i++) {
+			final int channelId = CHANNELS[i % CHANNELS.length];
+			if(headers.get(channelId) != null) {
+				hits++;
+			}
+			if(packets.get(channelId) != null) {
+				hits++;
+			}
+			headers.put(channelId, header);
+		}
+		return hits;
+	}
+
+	private static long runTable(ChannelTable<Header> headers, ChannelTable<Packet> packets, Header header) {
+		long hits = 0;
+		for(int i = 0; i < CHUNKS; i++) {
+			final int channelId = CHANNELS[i % CHANNELS.length];
+			if(headers.get(channelId) != null) {
+				hits++;
+			}
+			if(packets.get(channelId) != null) {
+				hits++;
+			}
+			headers.put(channelId, header);
+		}
+		return hits;
+	}
+
+	public static void main(String[] args) {
+		Header header = new Header();
+		Map<Integer, Header> mapHeaders = new ConcurrentHashMap<Integer, Header>();
+		Map<Integer, Packet> mapPackets = new ConcurrentHashMap<Integer, Packet>();
+		ChannelTable<Header> tableHeaders = new ChannelTable<Header>();
+		ChannelTable<Packet> tablePackets = new ChannelTable<Packet>();
+		for(int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			long hits = runMap(mapHeaders, mapPackets, header);
+			long mapTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			hits += runTable(tableHeaders, tablePackets, header);
+			long tableTime = System.nanoTime() - start;
+			System.out.println("round " + round + " (" + hits + ")"
+					+ ": map " + (double) mapTime / CHUNKS + " ns/chunk"
+					+ ", table " + (double) tableTime / CHUNKS + " ns/chunk");
+		}
+	}
+
+}
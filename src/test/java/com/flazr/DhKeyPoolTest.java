@@ -0,0 +1,55 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class DhKeyPoolTest {
+
+	@Test
+	public void testTakeFromPoolAndWhenExhausted() throws Exception {
+		DhKeyPool pool = new DhKeyPool(2);
+		long waited = 0;
+		while(pool.getReady() < 2 && waited < 30000) {
+			Thread.sleep(10);
+			waited += 10;
+		}
+		pool.shutdown();
+		DhKeyPool.Entry first = pool.take();
+		DhKeyPool.Entry second = pool.take();
+		DhKeyPool.Entry third = pool.take(); // pool is empty and no longer refilled
+		assertNotSame(first.getKeyPair(), second.getKeyPair());
+		assertNotNull(third.getKeyAgreement());
+		assertEquals(2, pool.getHits());
+		assertEquals(1, pool.getExhaustions());
+	}
+
+	private static final AtomicInteger failures = new AtomicInteger();
+
+	@Test
+	public void testRefillSurvivesGenerationFailure() throws Exception {
+		failures.set(2);
+		DhKeyPool pool = new DhKeyPool(1) {
+			@Override
+			Entry generate() {
+				if(failures.getAndDecrement() > 0) {
+					throw new RuntimeException("simulated failure");
+				}
+				return super.generate();
+			}
+		};
+		long waited = 0;
+		while(pool.getReady() < 1 && waited < 30000) {
+			Thread.sleep(10);
+			waited += 10;
+		}
+		pool.shutdown();
+		assertEquals(1, pool.getReady());
+		pool.take();
+		assertEquals(1, pool.getHits());
+		assertEquals(0, pool.getExhaustions());
+	}
+
+}
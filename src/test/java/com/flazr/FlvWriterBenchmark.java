@@ -0,0 +1,69 @@
+package com.flazr;
+
+import java.io.File;
+
+import org.apache.mina.common.ByteBuffer;
+
+import com.flazr.Packet.Type;
+
+/**
+ * time to save a simulated 2 Mbps capture (25 fps video with a keyframe every
+ * 2 seconds, 44 audio frames per second) with FlvWriter writing every tag,
+ * FlvWriter with a write-behind buffer and MappedFlvWriter, the capture length
+ * in minutes is the first argument, default 60, run with main()
+ */
+public class FlvWriterBenchmark {
+
+	private static final int VIDEO_BITRATE = 1872 * 1000; // plus 128 kbps audio = 2 Mbps
+	private static final int FPS = 25;
+	private static final int AUDIO_FRAMES = 44;
+
+	private static void writeCapture(AbstractFlvWriter writer, int minutes) {
+		final int audioSize = 128 * 1000 / 8 / AUDIO_FRAMES;
+		final int frameSize = VIDEO_BITRATE / 8 / FPS;
+		final int keyframeSize = frameSize * 10;
+		final int interFrameSize = (frameSize * FPS * 2 - keyframeSize) / (FPS * 2 - 1);
+		ByteBuffer audio = ByteBuffer.wrap(new byte[audioSize]);
+		ByteBuffer keyframe = ByteBuffer.wrap(new byte[keyframeSize]);
+		ByteBuffer interFrame = ByteBuffer.wrap(new byte[interFrameSize]);
+		int frames = 0;
+		for(int second = 0; second < minutes * 60; second++) {
+			final int time = second * 1000;
+			for(int i = 0; i < FPS; i++) {
+				ByteBuffer video = frames++ % (FPS * 2) == 0 ? keyframe : interFrame;
+				video.clear();
+				writer.write(Type.VIDEO_DATA, video, time + i * 1000 / FPS);
+			}
+			for(int i = 0; i < AUDIO_FRAMES; i++) {
+				audio.clear();
+				writer.write(Type.AUDIO_DATA, audio, time + i * 1000 / AUDIO_FRAMES);
+			}
+		}
+		writer.close();
+	}
+
+	private static void report(String name, File file, long start) {
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(name + ": " + Math.round(seconds * 1000) + " ms, "
+				+ Math.round(file.length() / seconds / (1024 * 1024)) + " MB/s");
+		file.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int minutes = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+		File file = File.createTempFile("benchmark", ".flv");
+		file.deleteOnExit();
+		for(int round = 0; round < 3; round++) { // first rounds are warm up
+			long start = System.nanoTime();
+			writeCapture(new FlvWriter(0, file.getPath()), minutes);
+			report("write per tag      ", file, start);
+			start = System.nanoTime();
+			writeCapture(new FlvWriter(0, file.getPath(), 256 * 1024, 0), minutes);
+			report("write-behind 256 KB", file, start);
+			start = System.nanoTime();
+			writeCapture(new MappedFlvWriter(0, file.getPath()), minutes);
+			report("memory mapped      ", file, start);
+		}
+	}
+
+}
@@ -0,0 +1,209 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+import com.flazr.Packet.Type;
+
+public class FlvWriterTest {
+
+	static File tempFile() throws Exception {
+		File file = File.createTempFile("test", ".flv");
+		file.deleteOnExit();
+		return file;
+	}
+
+	static void writeTags(AbstractFlvWriter writer) {
+		for(int i = 0; i < 100; i++) {
+			byte[] bytes = new byte[i % 10 == 0 ? 5000 : 200]; // keyframe sized every now and then
+			Arrays.fill(bytes, (byte) i);
+			writer.write(i % 2 == 0 ? Type.AUDIO_DATA : Type.VIDEO_DATA, ByteBuffer.wrap(bytes), i * 20);
+		}
+	}
+
+	@Test
+	public void testWriteBehindSameFile() throws Exception {
+		File direct = tempFile();
+		FlvWriter writer = new FlvWriter(0, direct.getPath());
+		writeTags(writer);
+		writer.close();
+		assertEquals(101, writer.getWriteCount()); // file header + one per tag
+		File batched = tempFile();
+		writer = new FlvWriter(0, batched.getPath(), 16 * 1024, 0);
+		writeTags(writer);
+		writer.close();
+		assertEquals(100, writer.getTagCount());
+		assertTrue(writer.getWriteCount() < 20);
+		byte[] bytes = Utils.readAsByteArray(direct.getPath());
+		assertEquals(13 + 90 * (200 + 15) + 10 * (5000 + 15), bytes.length);
+		assertTrue(Arrays.equals(bytes, Utils.readAsByteArray(batched.getPath())));
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		in.position(13);
+		assertEquals(Type.AUDIO_DATA.byteValue(), in.get());
+		assertEquals(5000, Utils.readInt24(in));
+		in.position(13 + 11 + 5000);
+		assertEquals(5011, in.getInt()); // previous tag size
+		assertEquals(Type.VIDEO_DATA.byteValue(), in.get());
+		assertEquals(200, Utils.readInt24(in));
+		assertEquals(20, Utils.readInt24(in));
+	}
+
+	@Test
+	public void testMappedSameFile() throws Exception {
+		File direct = tempFile();
+		FlvWriter writer = new FlvWriter(0, direct.getPath());
+		writeTags(writer);
+		writer.close();
+		File mapped = tempFile();
+		MappedFlvWriter mappedWriter = new MappedFlvWriter(0, mapped.getPath(), 0, 64 * 1024, 4096); // tags straddle windows
+		writeTags(mappedWriter);
+		assertEquals(2, mappedWriter.getExtentCount());
+		mappedWriter.close();
+		assertEquals(direct.length(), mappedWriter.getLength());
+		assertEquals(direct.length(), mapped.length()); // truncated
+		assertTrue(Arrays.equals(Utils.readAsByteArray(direct.getPath()), Utils.readAsByteArray(mapped.getPath())));
+	}
+
+	private static void writeVideo(AbstractFlvWriter writer) {
+		ByteBuffer onMetaData = AmfProperty.encode("onMetaData", new AmfObject(Collections.<String, Object>singletonMap("width", 640)));
+		onMetaData.flip();
+		writer.write(Type.NOTIFY, onMetaData, 0);
+		writer.write(Type.VIDEO_DATA, ByteBuffer.wrap(new byte[] { 0x17, 0, 0, 0, 0 }), 0); // AVC sequence header
+		for(int i = 0; i < 60; i++) {
+			byte[] bytes = new byte[100];
+			bytes[0] = (byte) (i % 25 == 0 ? 0x17 : 0x27);
+			bytes[1] = 1;
+			writer.write(Type.VIDEO_DATA, ByteBuffer.wrap(bytes), i * 40);
+			writer.write(Type.AUDIO_DATA, ByteBuffer.wrap(new byte[20]), i * 40);
+		}
+		writer.close();
+	}
+
+	/**
+	 * @return the number of script tags in the file
+	 */
+	private static int assertMetaData(File file) {
+		byte[] bytes = Utils.readAsByteArray(file.getPath());
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		in.position(13);
+		assertEquals(Type.NOTIFY.byteValue(), in.get());
+		int size = Utils.readInt24(in);
+		in.position(13 + 11);
+		in.limit(13 + 11 + size);
+		AmfObject notify = new AmfObject();
+		notify.decode(in, false);
+		assertFalse(in.hasRemaining());
+		in.limit(bytes.length);
+		assertEquals("onMetaData", notify.getFirstPropertyAsString());
+		AmfObject map = (AmfObject) notify.getProperties().get(1).getValue();
+		assertEquals(640.0, map.getProperty("width").getValue());
+		assertEquals(2.36, map.getProperty("duration").getValue());
+		assertEquals((double) bytes.length, map.getProperty("filesize").getValue());
+		AmfObject keyframes = (AmfObject) map.getProperty("keyframes").getValue();
+		List<AmfProperty> times = ((AmfObject) keyframes.getProperty("times").getValue()).getProperties();
+		List<AmfProperty> positions = ((AmfObject) keyframes.getProperty("filepositions").getValue()).getProperties();
+		assertEquals(3, times.size());
+		assertEquals(3, positions.size());
+		for(int i = 0; i < 3; i++) {
+			assertEquals((double) i, times.get(i).getValue());
+			int position = ((Double) positions.get(i).getValue()).intValue();
+			assertEquals(Type.VIDEO_DATA.byteValue(), bytes[position]);
+			assertEquals(0x17, bytes[position + 11]);
+			assertEquals(1, bytes[position + 12]);
+		}
+		int scriptTags = 0;
+		for(int position = 13; position < bytes.length;) {
+			in.position(position);
+			if(in.get() == Type.NOTIFY.byteValue()) {
+				scriptTags++;
+			}
+			position += 11 + Utils.readInt24(in) + 4;
+		}
+		return scriptTags;
+	}
+
+	@Test
+	public void testMetaDataRewrittenInPlace() throws Exception {
+		File file = tempFile();
+		FlvWriter writer = new FlvWriter(0, file.getPath(), 1024, 4096, 0);
+		writeVideo(writer);
+		assertEquals(3, writer.getKeyframeIndex().size());
+		assertEquals(1, assertMetaData(file)); // the server onMetaData went to the reserved tag
+		assertEquals(13 + 1024 + 15 + 5 + 15 + 60 * (100 + 15 + 20 + 15), file.length());
+		file = tempFile();
+		writeVideo(new MappedFlvWriter(0, file.getPath(), 1024, 64 * 1024, 4096));
+		assertEquals(1, assertMetaData(file));
+	}
+
+	@Test
+	public void testMetaDataRewriteWhenTooSmall() throws Exception {
+		File file = tempFile();
+		writeVideo(new FlvWriter(0, file.getPath(), 64, 0, 0));
+		assertEquals(1, assertMetaData(file)); // server onMetaData still fit, the index did not
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	private static void putTag(ByteBuffer out, Type type, int time, byte[] payload) {
+		out.put(type.byteValue());
+		Utils.writeInt24(out, payload.length);
+		Utils.writeInt24(out, time);
+		out.put((byte) 0);
+		Utils.writeInt24(out, 1); // stream id as sent by the server
+		out.put(payload);
+		out.putInt(payload.length + 11);
+	}
+
+	@Test
+	public void testAggregateWrittenInPlace() throws Exception {
+		byte[] keyframe = { 0x17, 1, 2, 3 };
+		byte[] audio = { (byte) 0xaf, 1, 4 };
+		byte[] interFrame = { 0x27, 1, 5, 6, 7 };
+		ByteBuffer data = ByteBuffer.allocate(3 * 15 + 12);
+		putTag(data, Type.VIDEO_DATA, 50000, keyframe);
+		putTag(data, Type.AUDIO_DATA, 50010, audio);
+		putTag(data, Type.VIDEO_DATA, 50040, interFrame);
+		data.flip();
+		Header header = new Header(Header.Type.LARGE, 5, Packet.Type.FLV_DATA);
+		header.setTime(1000);
+		header.setRelative(false);
+		File aggregate = tempFile();
+		FlvWriter writer = new FlvWriter(0, aggregate.getPath(), 1024, 0, 0);
+		Packet packet = new Packet(header, 0);
+		packet.setData(data);
+		writer.writeFlvData(packet);
+		assertEquals(3, writer.getTagCount());
+		assertEquals(3, writer.getWriteCount()); // file header, reserved metadata, whole aggregate
+		assertEquals(1, writer.getKeyframeIndex().size());
+		assertEquals(1000, writer.getKeyframeIndex().getTime(0));
+		writer.close();
+		File separate = tempFile(); // tag by tag at the rebased times
+		writer = new FlvWriter(0, separate.getPath(), 1024, 0, 0);
+		writer.write(Type.VIDEO_DATA, ByteBuffer.wrap(keyframe), 1000);
+		writer.write(Type.AUDIO_DATA, ByteBuffer.wrap(audio), 1010);
+		writer.write(Type.VIDEO_DATA, ByteBuffer.wrap(interFrame), 1040);
+		writer.close();
+		assertTrue(Arrays.equals(Utils.readAsByteArray(separate), Utils.readAsByteArray(aggregate)));
+	}
+
+	@Test
+	public void testWriteBehindMaxAge() throws Exception {
+		File file = tempFile();
+		FlvWriter writer = new FlvWriter(0, file.getPath(), 64 * 1024, 200);
+		writer.write(Type.AUDIO_DATA, ByteBuffer.wrap(new byte[10]), 0);
+		assertEquals(0, file.length()); // file header buffered too
+		Thread.sleep(400); // no more tags, the timer writes it out
+		assertEquals(13 + 25, file.length());
+		writer.write(Type.AUDIO_DATA, ByteBuffer.wrap(new byte[10]), 20);
+		assertEquals(13 + 25, file.length());
+		writer.close();
+		assertEquals(13 + 2 * 25, file.length());
+	}
+
+}
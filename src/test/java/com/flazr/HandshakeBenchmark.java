@@ -0,0 +1,75 @@
+package com.flazr;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * client side handshake cost on one thread, HMAC-SHA256 alone (a fresh Mac per
+ * digest the old way against the per thread HmacSha256) and complete encrypted
+ * handshakes per second with key pairs generated inline or taken from a ready
+ * DhKeyPool, run with main()
+ */
+public class HandshakeBenchmark {
+
+	private static final int DIGESTS = 200000;
+	private static final int HANDSHAKES = 500;
+
+	private static byte[] oldSha256(byte[] message, byte[] key) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		return mac.doFinal(message);
+	}
+
+	private static void runDigests() throws Exception {
+		byte[] message = new byte[1504];
+		byte[] key = Handshake.CLIENT_CONST;
+		long start = System.nanoTime();
+		for(int i = 0; i < DIGESTS; i++) {
+			message[0] = oldSha256(message, key)[0];
+		}
+		report("hmac, new Mac per digest", DIGESTS, start);
+		start = System.nanoTime();
+		for(int i = 0; i < DIGESTS; i++) {
+			message[0] = Utils.sha256(message, key)[0];
+		}
+		report("hmac, per thread Mac", DIGESTS, start);
+	}
+
+	private static void runHandshakes(DhKeyPool pool) {
+		// one server response re-used, its DH and signing cost is not the client's
+		RtmpSession first = new RtmpSession("rtmpe://localhost/vod/sample", null);
+		Handshake.generateClientRequest1(first);
+		byte[] response = HandshakeTest.serverResponse(first, Handshake.generateDhKey()).array();
+		long start = System.nanoTime();
+		for(int i = 0; i < HANDSHAKES; i++) {
+			RtmpSession session = new RtmpSession("rtmpe://localhost/vod/sample", null);
+			session.setDhKeyPool(pool);
+			Handshake.generateClientRequest1(session);
+			session.setClientDigest(first.getClientDigest()); // so that part 2 validates
+			Handshake.decodeServerResponse(ByteBuffer.wrap(response), session);
+			Handshake.generateClientRequest2(session);
+		}
+		report(pool == null ? "handshakes, inline key pairs" : "handshakes, pooled key pairs", HANDSHAKES, start);
+	}
+
+	private static void report(String name, int count, long start) {
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(name + ": " + Math.round(count / seconds) + " per second");
+	}
+
+	public static void main(String[] args) throws Exception {
+		for(int round = 0; round < 3; round++) { // first rounds are warm up
+			runDigests();
+			runHandshakes(null);
+			DhKeyPool pool = new DhKeyPool(HANDSHAKES);
+			while(pool.getReady() < HANDSHAKES) {
+				Thread.sleep(100);
+			}
+			pool.shutdown(); // measure the client thread only
+			runHandshakes(pool);
+		}
+	}
+
+}
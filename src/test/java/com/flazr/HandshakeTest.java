@@ -0,0 +1,144 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHPublicKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+public class HandshakeTest {
+
+	private static final int SIZE = 1536;
+	private static final byte[] SERVER_CONST = "Genuine Adobe Flash Media Server 001".getBytes();
+	private static final byte[] RANDOM_CRUD = Utils.fromHex(
+		"F0EEC24A8068BEE82E00D0D1029E7E576EEC5D2D29806FAB93B8E636CFEB31AE");
+
+	private static int offset(byte[] bytes, int at, int modulus, int increment) {
+		int sum = 0;
+		for(int i = at; i < at + 4; i++) {
+			sum += bytes[i] & 0xff;
+		}
+		return sum % modulus + increment;
+	}
+
+	static byte[] publicKey(DhKeyPool.Entry key) {
+		byte[] y = ((DHPublicKey) key.getKeyPair().getPublic()).getY().toByteArray();
+		byte[] result = new byte[128];
+		if(y.length > 128) {
+			System.arraycopy(y, y.length - 128, result, 0, 128);
+		} else {
+			System.arraycopy(y, 0, result, 128 - y.length, y.length);
+		}
+		return result;
+	}
+
+	/**
+	 * what a server would send back for the client request already encoded in
+	 * the session (type 1 layout), signed with the given server key pair
+	 */
+	static ByteBuffer serverResponse(RtmpSession session, DhKeyPool.Entry serverKey) {
+		Random random = new Random(1);
+		byte[] response = new byte[1 + SIZE + SIZE];
+		random.nextBytes(response);
+		response[0] = 0x06;
+		byte[] partOne = new byte[SIZE];
+		System.arraycopy(response, 1, partOne, 0, SIZE);
+		int dhOffset = offset(partOne, SIZE - 4, 632, 772);
+		System.arraycopy(publicKey(serverKey), 0, partOne, dhOffset, 128);
+		int digestOffset = offset(partOne, 8, 728, 12);
+		byte[] message = new byte[SIZE - 32];
+		System.arraycopy(partOne, 0, message, 0, digestOffset);
+		System.arraycopy(partOne, digestOffset + 32, message, digestOffset, SIZE - digestOffset - 32);
+		System.arraycopy(Utils.sha256(message, SERVER_CONST), 0, partOne, digestOffset, 32);
+		System.arraycopy(partOne, 0, response, 1, SIZE);
+		byte[] serverConstCrud = new byte[SERVER_CONST.length + RANDOM_CRUD.length];
+		System.arraycopy(SERVER_CONST, 0, serverConstCrud, 0, SERVER_CONST.length);
+		System.arraycopy(RANDOM_CRUD, 0, serverConstCrud, SERVER_CONST.length, RANDOM_CRUD.length);
+		byte[] digest = Utils.sha256(session.getClientDigest(), serverConstCrud);
+		byte[] partTwo = new byte[SIZE - 32];
+		System.arraycopy(response, 1 + SIZE, partTwo, 0, SIZE - 32);
+		System.arraycopy(Utils.sha256(partTwo, digest), 0, response, 1 + SIZE + SIZE - 32, 32);
+		return ByteBuffer.wrap(response);
+	}
+
+	@Test
+	public void testHmacRekeying() throws Exception {
+		byte[] message = "message".getBytes();
+		for(byte[] key : new byte[][] { "one".getBytes(), "two".getBytes(), "two".getBytes(), "one".getBytes() }) {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			assertTrue(Arrays.equals(mac.doFinal(message), Utils.sha256(message, key)));
+		}
+		ByteBuffer direct = ByteBuffer.allocate(16, true);
+		direct.put("xxmessagexx".getBytes());
+		byte[] expected = Utils.sha256(message, "one".getBytes());
+		assertTrue(Arrays.equals(expected, HmacSha256.get().init("one".getBytes()).update(direct, 2, 7).doFinal()));
+	}
+
+	@Test
+	public void testEncryptedHandshake() throws Exception {
+		RtmpSession session = new RtmpSession("rtmpe://localhost/vod/sample", "test");
+		session.setSwfSize(1000);
+		session.setSwfHash(new byte[32]);
+		Handshake.generateClientRequest1(session);
+		DhKeyPool.Entry serverKey = Handshake.generateDhKey();
+		assertTrue(Handshake.decodeServerResponse(serverResponse(session, serverKey), session));
+		Handshake.generateClientRequest2(session);
+		byte[] swfv = session.getSwfVerification();
+		assertEquals(44, swfv.length);
+		assertEquals(0x1B, swfv[1]); // complete pong body
+		Packet pong = Packet.swfVerification(swfv);
+		assertEquals(44, pong.getHeader().getSize());
+		// the server side derives the same RC4 key from the client public key
+		KeyFactory keyFactory = KeyFactory.getInstance("DH");
+		DHPublicKey serverPublic = (DHPublicKey) serverKey.getKeyPair().getPublic();
+		serverKey.getKeyAgreement().doPhase(keyFactory.generatePublic(new DHPublicKeySpec(
+				new BigInteger(1, session.getClientPublicKey()), serverPublic.getParams().getP(),
+				serverPublic.getParams().getG())), true);
+		byte[] sharedSecret = serverKey.getKeyAgreement().generateSecret();
+		Rc4 serverIn = new Rc4(Utils.sha256(publicKey(serverKey), sharedSecret), 0, 16);
+		serverIn.skip(SIZE);
+		ByteBuffer buf = ByteBuffer.wrap("hello server".getBytes());
+		session.getCipherOut().process(buf);
+		serverIn.process(buf);
+		assertEquals("hello server", new String(buf.array()));
+	}
+
+	@Test
+	public void testSwfHashCache() throws Exception {
+		File swf = File.createTempFile("player", ".swf");
+		swf.deleteOnExit();
+		byte[] bytes = new byte[200 * 1024 + 17]; // more than one chunk
+		new Random(2).nextBytes(bytes);
+		FileOutputStream out = new FileOutputStream(swf);
+		out.write(bytes);
+		out.close();
+		long misses = SwfHashCache.getMisses();
+		RtmpSession first = new RtmpSession("rtmpe://localhost/vod/sample", "test");
+		first.initSwfVerification(swf);
+		assertEquals(bytes.length, first.getSwfSize());
+		assertTrue(Arrays.equals(Utils.sha256(bytes, Handshake.CLIENT_CONST), first.getSwfHash()));
+		RtmpSession second = new RtmpSession("rtmpe://localhost/vod/sample", "test");
+		second.initSwfVerification(swf);
+		assertSame(first.getSwfHash(), second.getSwfHash());
+		assertEquals(misses + 1, SwfHashCache.getMisses());
+		out = new FileOutputStream(swf, true); // changed file, new hash
+		out.write(1);
+		out.close();
+		second.initSwfVerification(swf);
+		assertEquals(bytes.length + 1, second.getSwfSize());
+		assertFalse(Arrays.equals(first.getSwfHash(), second.getSwfHash()));
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+public class InvokeTest {
+
+	private static ByteBuffer encodeConnect(RtmpSession session) {
+		Invoke invoke = new Invoke("connect", 3, session.getConnectParams());
+		return invoke.encode(session).getData();
+	}
+
+	@Test
+	public void testTemplatePatchesSequenceId() {
+		RtmpSession session = new RtmpSession("rtmp://localhost/vod/sample", "test");
+		ByteBuffer first = encodeConnect(session);
+		ByteBuffer second = encodeConnect(session); // from the template
+		assertEquals(first.limit(), second.limit());
+		Invoke decoded = new Invoke();
+		decoded.decode(new Packet(new Header(Header.Type.LARGE, 3, Packet.Type.INVOKE), second.duplicate().position(second.limit())));
+		assertEquals("connect", decoded.getMethodName());
+		assertEquals(session.getNextInvokeId() - 1, decoded.getSequenceId());
+		Map<String, Object> params = session.getConnectParams();
+		params.put("app", "live"); // changed args must not hit the old template
+		ByteBuffer third = encodeConnect(session);
+		decoded.decode(new Packet(new Header(Header.Type.LARGE, 3, Packet.Type.INVOKE), third.duplicate().position(third.limit())));
+		assertEquals("live", ((AmfObject) decoded.getArg(0)).getProperty("app").getValue());
+	}
+
+}
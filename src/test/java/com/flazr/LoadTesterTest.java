@@ -0,0 +1,58 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class LoadTesterTest {
+
+	@Test
+	public void testSessionsReplacedAndReported() throws Exception {
+		final ServerSocket server = new ServerSocket(0);
+		Thread acceptor = new Thread() { // reads the client handshake and hangs up, no media ever
+			public void run() {
+				try {
+					while(true) {
+						Socket socket = server.accept();
+						new DataInputStream(socket.getInputStream()).readFully(new byte[1 + 1536]);
+						Thread.sleep(20);
+						socket.close();
+					}
+				} catch(Exception e) {
+					// server closed
+				}
+			}
+		};
+		acceptor.start();
+		LoadTester tester = new LoadTester(Collections.singletonList("rtmp://localhost:" + server.getLocalPort() + "/app/stream"));
+		tester.setFactory(new RtmpClientFactory(1));
+		tester.setConcurrency(3);
+		tester.setRampUpPerSecond(0);
+		tester.setTestDurationMillis(500);
+		tester.run();
+		server.close();
+		assertTrue(tester.getStarted() > 3); // ended sessions were replaced
+		assertEquals(0, tester.getFailed());
+		assertEquals(0, tester.getUnfinished());
+		assertEquals(tester.getStarted(), tester.getNoMedia());
+		assertEquals(tester.getStarted(), tester.getConnectMicros().getCount());
+		assertEquals(0, tester.getFirstMediaMicros().getCount());
+		File csv = File.createTempFile("loadtest", ".csv");
+		csv.deleteOnExit();
+		tester.writeSessionsCsv(csv.getPath());
+		String[] lines = new String(Utils.readAsByteArray(csv)).split("\n");
+		assertEquals(1 + tester.getStarted(), lines.length);
+		assertTrue(lines[0].startsWith("url,tcp_connected_ms,handshake_ms,"));
+		tester.writeSummaryCsv(csv.getPath());
+		lines = new String(Utils.readAsByteArray(csv)).split("\n");
+		assertEquals(5 + RtmpSession.Phase.values().length - 1, lines.length);
+		assertTrue(lines[1].startsWith("connect_ms," + tester.getStarted() + ","));
+	}
+
+}
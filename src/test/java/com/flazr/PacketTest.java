@@ -0,0 +1,245 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+public class PacketTest {
+
+	private static ByteBuffer chunked(int channelId, int size, int chunkSize) {
+		ByteBuffer buf = ByteBuffer.allocate(size + 12 + size / chunkSize);
+		buf.put((byte) channelId); // LARGE
+		Utils.writeInt24(buf, 0);
+		Utils.writeInt24(buf, size);
+		buf.put(Packet.Type.VIDEO_DATA.byteValue());
+		Utils.writeInt32Reverse(buf, 1);
+		for(int i = 0; i < size; i++) {
+			if(i > 0 && i % chunkSize == 0) {
+				buf.put((byte) (0xC0 | channelId)); // TINY
+			}
+			buf.put((byte) i);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private static Packet decodeAll(ByteBuffer in, RtmpSession session) {
+		while(in.hasRemaining()) {
+			Packet packet = new Packet();
+			assertTrue(packet.decode(in, session));
+			if(packet.isComplete()) {
+				assertFalse(in.hasRemaining());
+				return packet;
+			}
+		}
+		fail("packet not complete");
+		return null;
+	}
+
+	private static void assertPayload(ByteBuffer data, int size) {
+		assertEquals(size, data.remaining());
+		for(int i = 0; i < size; i++) {
+			assertEquals((byte) i, data.get());
+		}
+	}
+
+	@Test
+	public void testDecodeMultipleChunks() {
+		RtmpSession session = new RtmpSession();
+		Packet packet = decodeAll(chunked(4, 300, 128), session);
+		assertEquals(300, packet.getHeader().getSize());
+		assertPayload(packet.getData(), 300);
+		assertNull(session.getPrevPacketsIn().get(4));
+	}
+
+	@Test
+	public void testDecodeSingleChunk() {
+		RtmpSession session = new RtmpSession();
+		ByteBuffer in = chunked(5, 100, 128);
+		Packet packet = decodeAll(in, session);
+		assertPayload(packet.getData(), 100);
+		assertNull(session.getPrevPacketsIn().get(5));
+		ByteBuffer slice = packet.getData();
+		packet.release(); // drops the reference the slice holds on the input buffer
+		try {
+			slice.release();
+			fail("slice not released");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReleaseToPool() {
+		RtmpSession session = new RtmpSession();
+		BufferPool pool = new BufferPool(1024 * 1024);
+		session.setBufferPool(pool);
+		decodeAll(chunked(4, 300, 128), session).release();
+		Packet packet = decodeAll(chunked(4, 400, 128), session);
+		assertEquals(1, pool.getMisses());
+		assertEquals(1, pool.getHits());
+		assertPayload(packet.getData(), 400);
+	}
+
+	@Test
+	public void testReleasePartialOnClose() {
+		RtmpSession session = new RtmpSession();
+		BufferPool pool = new BufferPool(1024 * 1024);
+		session.setBufferPool(pool);
+		ByteBuffer in = chunked(4, 300, 128);
+		in.limit(1 + 11 + 128); // first chunk only
+		assertTrue(new Packet().decode(in, session));
+		assertNotNull(session.getPrevPacketsIn().get(4));
+		session.setClosed(in.position());
+		assertNull(session.getPrevPacketsIn().get(4));
+		assertEquals(1, pool.getReleases());
+	}
+
+	@Test
+	public void testHeaderStateUpdatedInPlace() {
+		RtmpSession session = new RtmpSession();
+		Packet first = decodeAll(chunked(4, 100, 128), session);
+		Header header = first.getHeader();
+		assertFalse(header.isRelative());
+		ByteBuffer in = ByteBuffer.allocate(101);
+		in.put((byte) 0xC4); // TINY, new message with the same size as before
+		in.put(new byte[100]);
+		in.flip();
+		Packet second = decodeAll(in, session);
+		assertSame(header, second.getHeader());
+		assertEquals(Header.Type.TINY, header.getHeaderType());
+		assertEquals(100, header.getSize());
+		assertEquals(1, header.getStreamId());
+		assertTrue(header.isRelative());
+	}
+
+	@Test
+	public void testDecodeIncompleteChunk() {
+		RtmpSession session = new RtmpSession();
+		ByteBuffer in = chunked(4, 300, 128);
+		in.limit(100);
+		assertFalse(new Packet().decode(in, session));
+	}
+
+	private static Packet outboundVideo(int size) {
+		ByteBuffer body = ByteBuffer.allocate(size);
+		for(int i = 0; i < size; i++) {
+			body.put((byte) i);
+		}
+		Header header = new Header(Header.Type.LARGE, 4, Packet.Type.VIDEO_DATA);
+		header.setStreamId(1);
+		return new Packet(header, body);
+	}
+
+	@Test
+	public void testEncode() {
+		ByteBuffer out = outboundVideo(300).encode(128);
+		assertFalse(out.isReadOnly()); // RTMPE encrypts it in place
+		assertEquals(chunked(4, 300, 128), out);
+		out.release();
+	}
+
+	@Test
+	public void testEncodeSliced() {
+		Packet packet = outboundVideo(300);
+		assertFalse(packet.isSliceWorthwhile(128));
+		ByteBuffer[] fragments = packet.encodeSliced(128);
+		assertEquals(6, fragments.length);
+		ByteBuffer expected = chunked(4, 300, 128);
+		for(int i = 0; i < fragments.length; i++) {
+			assertEquals(i % 2 == 1, fragments[i].isReadOnly()); // payload is never copied
+			while(fragments[i].hasRemaining()) {
+				assertEquals(expected.get(), fragments[i].get());
+			}
+			fragments[i].release();
+		}
+		assertFalse(expected.hasRemaining());
+	}
+
+	@Test
+	public void testBasicHeaderChannelIds() {
+		RtmpSession session = new RtmpSession();
+		int[] channelIds = { 63, 64, 319, 320, 65599 };
+		int[] sizes = { 12, 13, 13, 14, 14 };
+		for(int i = 0; i < channelIds.length; i++) {
+			Header header = new Header(Header.Type.LARGE, channelIds[i], Packet.Type.VIDEO_DATA);
+			ByteBuffer buf = ByteBuffer.allocate(16);
+			header.encode(buf);
+			assertEquals(sizes[i], buf.position());
+			assertEquals(sizes[i], header.getEncodedSize());
+			buf.flip();
+			assertEquals(channelIds[i], Header.decode(buf, session).getChannelId());
+			assertFalse(buf.hasRemaining());
+		}
+	}
+
+	private static Header outbound(int time, int size, Packet.Type type) {
+		Header header = new Header(Header.Type.LARGE, 2, type);
+		header.setTime(time);
+		header.setSize(size);
+		return header;
+	}
+
+	@Test
+	public void testCompressHeaders() {
+		ChannelTable<Header> prevHeaders = new ChannelTable<Header>();
+		Header header = outbound(1000, 4, Packet.Type.BYTES_READ);
+		assertEquals(0, header.compress(prevHeaders));
+		assertEquals(Header.Type.LARGE, header.getHeaderType());
+		assertEquals(1000, header.getTime());
+		header = outbound(1000, 6, Packet.Type.CONTROL_MESSAGE);
+		assertEquals(4, header.compress(prevHeaders));
+		assertEquals(Header.Type.MEDIUM, header.getHeaderType());
+		assertEquals(0, header.getTime());
+		header = outbound(1040, 6, Packet.Type.CONTROL_MESSAGE);
+		assertEquals(8, header.compress(prevHeaders));
+		assertEquals(Header.Type.SMALL, header.getHeaderType());
+		assertEquals(40, header.getTime());
+		header = outbound(1080, 6, Packet.Type.CONTROL_MESSAGE);
+		assertEquals(11, header.compress(prevHeaders));
+		assertEquals(Header.Type.TINY, header.getHeaderType());
+		header = outbound(500, 6, Packet.Type.CONTROL_MESSAGE); // time went backwards
+		header.compress(prevHeaders);
+		assertEquals(Header.Type.LARGE, header.getHeaderType());
+		header = outbound(500, 6, Packet.Type.CONTROL_MESSAGE);
+		header.compress(prevHeaders);
+		assertEquals(Header.Type.SMALL, header.getHeaderType()); // no TINY straight after LARGE
+		header = outbound(500, 6, Packet.Type.CONTROL_MESSAGE);
+		header.setStreamId(1);
+		header.compress(prevHeaders);
+		assertEquals(Header.Type.LARGE, header.getHeaderType());
+	}
+
+	@Test
+	public void testCompressedHeadersDecode() {
+		RtmpSession session = new RtmpSession();
+		ByteBuffer wire = ByteBuffer.allocate(1024);
+		int[] times = { 100, 100, 140, 180, 220 };
+		for(int time : times) {
+			ByteBuffer body = ByteBuffer.allocate(4);
+			body.putInt(time);
+			Header header = new Header(Header.Type.LARGE, 5, Packet.Type.AUDIO_DATA);
+			header.setTime(time);
+			header.setStreamId(1);
+			Packet packet = new Packet(header, body);
+			header.compress(session.getPrevHeadersOut());
+			ByteBuffer out = packet.encode(128);
+			wire.put(out);
+			out.release();
+		}
+		wire.flip();
+		assertEquals(12 + 4 + 4 + 4 + 4 + 4 + 1 + 4 + 1 + 4, wire.remaining());
+		RtmpSession other = new RtmpSession();
+		WriterStatus status = new WriterStatus(0);
+		for(int time : times) {
+			Packet packet = new Packet();
+			assertTrue(packet.decode(wire, other));
+			assertTrue(packet.isComplete());
+			assertEquals(time, packet.getData().getInt());
+			assertEquals(time, status.getChannelAbsoluteTime(packet.getHeader()));
+			packet.release();
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.flazr.RtmpSession.Phase;
+
+public class PhaseStatsTest {
+
+	@Test
+	public void testMarkOnlyOnceAndAggregate() throws Exception {
+		RtmpSession session = new RtmpSession();
+		assertEquals("not connected", PhaseStats.format(session));
+		session.mark(Phase.CONNECT);
+		final long connect = session.getPhaseNanos(Phase.CONNECT);
+		Thread.sleep(5);
+		session.mark(Phase.CONNECT); // first time counts
+		assertEquals(connect, session.getPhaseNanos(Phase.CONNECT));
+		session.mark(Phase.TCP_CONNECTED);
+		session.mark(Phase.HANDSHAKE);
+		session.mark(Phase.FIRST_MEDIA); // results and play skipped
+		assertEquals(-1, session.getPhaseNanos(Phase.CONNECT, Phase.PLAY));
+		assertTrue(session.getPhaseNanos(Phase.CONNECT, Phase.TCP_CONNECTED) >= 5000000);
+		assertFalse(session.isClosed());
+		session.setClosed(1234);
+		assertTrue(session.isClosed());
+		assertTrue(PhaseStats.format(session).startsWith("TCP_CONNECTED: +"));
+		PhaseStats stats = new PhaseStats();
+		stats.add(session);
+		stats.add(new RtmpSession()); // never connected
+		assertEquals(2, stats.getSessions());
+		assertEquals(1, stats.getPhaseMicros(Phase.TCP_CONNECTED).getCount());
+		assertTrue(stats.getPhaseMicros(Phase.TCP_CONNECTED).getMax() >= 5000);
+		assertEquals(0, stats.getPhaseMicros(Phase.PLAY).getCount());
+		assertEquals(1, stats.getPhaseMicros(Phase.FIRST_MEDIA).getCount());
+		assertEquals(1, stats.getStartupMicros().getCount());
+	}
+
+}
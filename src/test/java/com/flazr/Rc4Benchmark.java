@@ -0,0 +1,72 @@
+package com.flazr;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * throughput of the RTMPE filter transform at typical read sizes, the old path
+ * (copy out to a byte[], Cipher.update(), copy back) against Rc4 in place on
+ * heap and direct buffers, run with main()
+ */
+public class Rc4Benchmark {
+
+	private static final long BYTES = 512L * 1024 * 1024;
+	private static final int[] READ_SIZES = { 1460, 8192, 65536 };
+	private static final byte[] KEY = "0123456789abcdef".getBytes();
+
+	private static long runCipher(ByteBuffer buf, int readSize) throws Exception {
+		Cipher cipher = Cipher.getInstance("RC4");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(KEY, "RC4"));
+		long check = 0;
+		for(long done = 0; done < BYTES; done += readSize) {
+			buf.clear();
+			buf.limit(readSize);
+			int initial = buf.position();
+			byte[] encrypted = new byte[buf.remaining()];
+			buf.get(encrypted);
+			byte[] plain = cipher.update(encrypted);
+			buf.position(initial);
+			buf.put(plain);
+			check += buf.get(0);
+		}
+		return check;
+	}
+
+	private static long runRc4(ByteBuffer buf, int readSize) {
+		Rc4 rc4 = new Rc4(KEY);
+		long check = 0;
+		for(long done = 0; done < BYTES; done += readSize) {
+			buf.clear();
+			buf.limit(readSize);
+			rc4.process(buf);
+			check += buf.get(0);
+		}
+		return check;
+	}
+
+	private static void report(String name, int readSize, long start) {
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(name + " read size " + readSize + ": "
+				+ Math.round(BYTES / seconds / (1024 * 1024)) + " MB/s");
+	}
+
+	public static void main(String[] args) throws Exception {
+		for(int round = 0; round < 3; round++) { // first rounds are warm up
+			for(int readSize : READ_SIZES) {
+				for(boolean direct : new boolean[] { false, true }) {
+					ByteBuffer buf = ByteBuffer.allocate(readSize, direct);
+					String type = direct ? "direct" : "heap";
+					long start = System.nanoTime();
+					runCipher(buf, readSize);
+					report("cipher " + type, readSize, start);
+					start = System.nanoTime();
+					runRc4(buf, readSize);
+					report("rc4    " + type, readSize, start);
+				}
+			}
+		}
+	}
+
+}
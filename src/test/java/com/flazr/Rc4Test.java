@@ -0,0 +1,70 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+public class Rc4Test {
+
+	private static final byte[] KEY = "0123456789abcdef".getBytes();
+
+	private static byte[] reference(byte[] plain, int skip) throws Exception {
+		Cipher cipher = Cipher.getInstance("RC4");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "RC4"));
+		cipher.update(new byte[skip]);
+		return cipher.update(plain);
+	}
+
+	private static byte[] plain(int size) {
+		byte[] bytes = new byte[size];
+		for(int i = 0; i < size; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		return bytes;
+	}
+
+	private static void assertInPlace(boolean direct) throws Exception {
+		byte[] plain = plain(5000);
+		Rc4 rc4 = new Rc4(KEY);
+		rc4.skip(1536);
+		ByteBuffer buf = ByteBuffer.allocate(plain.length + 10, direct);
+		buf.position(10);
+		buf.put(plain);
+		buf.position(10);
+		rc4.process(buf);
+		assertEquals(10, buf.position());
+		byte[] result = new byte[plain.length];
+		buf.get(result);
+		assertTrue(Arrays.equals(reference(plain, 1536), result));
+	}
+
+	@Test
+	public void testHeapBuffer() throws Exception {
+		assertInPlace(false);
+	}
+
+	@Test
+	public void testDirectBuffer() throws Exception {
+		assertInPlace(true);
+	}
+
+	@Test
+	public void testReadOnlySource() throws Exception {
+		byte[] plain = plain(300);
+		ByteBuffer in = ByteBuffer.wrap(plain).asReadOnlyBuffer();
+		ByteBuffer out = ByteBuffer.allocate(300);
+		Rc4 rc4 = new Rc4(KEY);
+		rc4.process(in, out);
+		out.flip();
+		byte[] result = new byte[300];
+		out.get(result);
+		assertTrue(Arrays.equals(reference(plain, 0), result));
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RtmpClientFactoryTest {
+
+	@Test
+	public void testSharedConnectorShutsDownAfterLastSession() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		RtmpClientFactory factory = new RtmpClientFactory(2);
+		Socket[] sockets = new Socket[5];
+		for(int i = 0; i < sockets.length; i++) {
+			factory.connect(new RtmpSession("localhost", server.getLocalPort(), "app", "stream", null));
+		}
+		assertEquals(5, factory.getSessionCount());
+		assertTrue(factory.isRunning());
+		for(int i = 0; i < sockets.length; i++) {
+			sockets[i] = server.accept();
+			new DataInputStream(sockets[i].getInputStream()).readFully(new byte[1 + 1536]);
+		}
+		for(Socket socket : sockets) {
+			socket.close();
+		}
+		server.close();
+		for(int i = 0; i < 100 && factory.isRunning(); i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, factory.getSessionCount());
+		assertFalse(factory.isRunning());
+	}
+
+	@Test
+	public void testWriterClosedOffTheIoThread() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		RtmpClientFactory factory = new RtmpClientFactory(1);
+		RtmpSession session = new RtmpSession("localhost", server.getLocalPort(), "app", "stream", null);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final String[] closedOn = new String[1];
+		session.setOutputWriter(new OutputWriter() {
+			public void write(Packet packet) { }
+			public void writeFlvData(Packet packet) { }
+			public void close() {
+				closedOn[0] = Thread.currentThread().getName();
+				closed.countDown();
+			}
+		});
+		factory.connect(session);
+		Socket socket = server.accept();
+		new DataInputStream(socket.getInputStream()).readFully(new byte[1 + 1536]);
+		socket.close();
+		server.close();
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		assertTrue(closedOn[0], closedOn[0].startsWith("writer-closer-"));
+	}
+
+	@Test
+	public void testConnectFailureReleasesSession() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		final int port = server.getLocalPort();
+		server.close(); // nothing listening
+		RtmpClientFactory factory = new RtmpClientFactory(1);
+		factory.connect(new RtmpSession("localhost", port, "app", "stream", null));
+		for(int i = 0; i < 100 && factory.isRunning(); i++) {
+			Thread.sleep(50);
+		}
+		assertFalse(factory.isRunning());
+	}
+
+}
@@ -11,5 +11,22 @@ public class RtmpSessionTest {
 		RtmpSession session = new RtmpSession("rtmpe://foo:12/bar/baz", "test");
 		assertTrue(session.isEncrypted());
 	}
+	
+	@Test
+	public void testRequestedObjectEncoding() {
+		RtmpSession session = new RtmpSession("rtmp://foo/bar/baz", "test");
+		assertEquals(0, session.getConnectParams().get("objectEncoding"));
+		session.setRequestedObjectEncoding(3);
+		assertEquals(3, session.getConnectParams().get("objectEncoding"));
+		assertEquals(0, session.getObjectEncoding()); // until the server agrees
+	}
+
+	@Test
+	public void testRequestedObjectEncodingWithoutUrl() {
+		RtmpSession session = new RtmpSession();
+		session.setRequestedObjectEncoding(3);
+		assertEquals(3, session.getRequestedObjectEncoding());
+		assertNull(session.getConnectParams());
+	}
 
 }
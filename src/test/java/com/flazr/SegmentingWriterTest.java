@@ -0,0 +1,71 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.apache.mina.common.ByteBuffer;
+import org.junit.Test;
+
+import com.flazr.Packet.Type;
+
+public class SegmentingWriterTest {
+
+	@Test
+	public void testRotateAtKeyframes() throws Exception {
+		assertRotateAtKeyframes(false, 0);
+	}
+
+	@Test
+	public void testRotateWriteBehind() throws Exception {
+		assertRotateAtKeyframes(false, 64 * 1024);
+	}
+
+	@Test
+	public void testRotateMapped() throws Exception {
+		assertRotateAtKeyframes(true, 0);
+	}
+
+	private static void assertRotateAtKeyframes(boolean mapped, int writeBehindSize) throws Exception {
+		File base = FlvWriterTest.tempFile();
+		SegmentingWriter writer = new SegmentingWriter(0, base.getPath(), 1000, 0, 1024, mapped, writeBehindSize, 0);
+		ByteBuffer onMetaData = AmfProperty.encode("onMetaData", new AmfObject(Collections.<String, Object>singletonMap("width", 640)));
+		onMetaData.flip();
+		writer.write(Type.NOTIFY, onMetaData, 0);
+		writer.write(Type.VIDEO_DATA, ByteBuffer.wrap(new byte[] { 0x17, 0, 1, 2, 3 }), 0);
+		writer.write(Type.AUDIO_DATA, ByteBuffer.wrap(new byte[] { (byte) 0xaf, 0, 4, 5 }), 0);
+		for(int i = 0; i < 100; i++) { // 4 seconds, keyframe every 1.2 seconds
+			byte[] bytes = new byte[50];
+			bytes[0] = (byte) (i % 30 == 0 ? 0x17 : 0x27);
+			bytes[1] = 1;
+			writer.write(Type.VIDEO_DATA, ByteBuffer.wrap(bytes), i * 40);
+		}
+		writer.close();
+		assertEquals(4, writer.getSegmentCount());
+		for(int number = 1; number <= 4; number++) {
+			File file = new File(writer.getSegmentFileName(number));
+			file.deleteOnExit();
+			ByteBuffer in = ByteBuffer.wrap(Utils.readAsByteArray(file));
+			in.position(13);
+			assertEquals(Type.NOTIFY.byteValue(), in.get()); // reserved metadata tag
+			in.position(13 + 11 + Utils.readInt24(in) + 4);
+			assertEquals(Type.VIDEO_DATA.byteValue(), in.get()); // cached sequence headers
+			assertEquals(5, Utils.readInt24(in));
+			assertEquals(0, Utils.readInt24(in));
+			in.position(in.position() + 4 + 5 + 4);
+			assertEquals(Type.AUDIO_DATA.byteValue(), in.get());
+			assertEquals(4, Utils.readInt24(in));
+			in.position(in.position() + 3 + 4 + 4 + 4);
+			assertEquals(Type.VIDEO_DATA.byteValue(), in.get());
+			in.position(in.position() + 3);
+			if(number > 1) {
+				assertEquals(0, Utils.readInt24(in)); // keyframe starts the segment at zero
+				in.position(in.position() + 4);
+				assertEquals(0x17, in.get());
+			}
+		}
+		assertFalse(new File(writer.getSegmentFileName(5)).exists()); // opened ahead, not used
+	}
+
+}
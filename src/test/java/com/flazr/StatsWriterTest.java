@@ -0,0 +1,66 @@
+package com.flazr;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class StatsWriterTest {
+
+	@Test
+	public void testHistogramPercentiles() {
+		Histogram histogram = new Histogram();
+		for(int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500.5, histogram.getMean(), 0);
+		assertEquals(1, histogram.getMin());
+		assertEquals(1000, histogram.getMax());
+		for(int percentile : new int[] { 10, 50, 90, 99 }) {
+			final long value = histogram.getPercentile(percentile);
+			assertTrue(value >= percentile * 10);
+			assertTrue(value <= percentile * 10 * 1.125);
+		}
+		assertEquals(1000, histogram.getPercentile(100));
+		Histogram other = new Histogram();
+		other.record(5);
+		other.record(Long.MAX_VALUE);
+		histogram.add(other);
+		assertEquals(1002, histogram.getCount());
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+	}
+
+	private static Packet packet(Packet.Type type, int channelId, int time, int size) {
+		Header header = new Header(Header.Type.LARGE, channelId, type);
+		header.setTime(time);
+		header.setRelative(false);
+		Packet packet = new Packet(header, size);
+		packet.getData().limit(size);
+		return packet;
+	}
+
+	@Test
+	public void testCountsAndStalls() throws Exception {
+		StatsWriter writer = new StatsWriter(0, 50);
+		for(int i = 0; i < 10; i++) {
+			writer.write(packet(Packet.Type.VIDEO_DATA, 6, i * 40, 1000));
+			writer.write(packet(Packet.Type.AUDIO_DATA, 7, i * 40, 100));
+		}
+		Thread.sleep(80);
+		writer.write(packet(Packet.Type.VIDEO_DATA, 6, 400, 1000));
+		writer.close();
+		StreamStats stats = writer.getStats();
+		assertSame(stats, writer.getStats());
+		assertEquals(11, stats.getPackets(Packet.Type.VIDEO_DATA));
+		assertEquals(11000, stats.getBytes(Packet.Type.VIDEO_DATA));
+		assertEquals(10, stats.getPackets(Packet.Type.AUDIO_DATA));
+		assertEquals(12000, stats.getTotalBytes());
+		assertEquals(400, stats.getMediaMillis());
+		assertEquals(1, stats.getStallCount());
+		assertTrue(stats.getStallHistogram().getMax() >= 80);
+		assertEquals(20, stats.getJitterHistogram().getCount());
+		assertTrue(stats.getWallMillis() >= 80);
+		assertTrue(stats.getRealtimeRatio() > 0);
+	}
+
+}